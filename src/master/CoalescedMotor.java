@@ -0,0 +1,450 @@
+package master;
+
+import lejos.nxt.Motor;
+import lejos.nxt.NXTRegulatedMotor;
+
+/**
+ * Command layer in front of a regulated motor, which remembers the last
+ * direction and speed commanded and drops commands which would not change
+ * them. Control loops can then command the wheels after every update
+ * without flooding the motor regulator, or restarting it, for nothing.
+ * A direction is only taken as unchanged while the motor really runs: once
+ * the regulator has stopped it, after a stall or a completed rotation, the
+ * next command is issued again.
+ *
+ * There is one instance per motor port, shared by every class which drives
+ * the motor, so each knows what the others last commanded. Motors must
+ * only be commanded through it, or a command could be dropped while the
+ * motor is doing something else.
+ *
+ * A pair of motors can be synchronized, so that commands to both wheels
+ * take effect together, as one operation, instead of one after the other.
+ * The skew between the wheels, the time between the last command reaching
+ * each of them, is measured for each pair operation.
+ *
+ *
+ * @see TwoWheeledRobot
+ * @see MotorController
+ */
+public class CoalescedMotor {
+   
+   /** The motor is stopped. */
+   public static final int STOPPED = 0;
+   /** The motor runs forward. */
+   public static final int FORWARD = 1;
+   /** The motor runs backward. */
+   public static final int BACKWARD = 2;
+   /** The motor is rotating to a given angle, or has stopped there. */
+   public static final int ROTATING = 3;
+   
+   /** Motor port A, the robot's left wheel. */
+   public static final CoalescedMotor A = new CoalescedMotor(Motor.A);
+   /** Motor port B, the robot's right wheel. */
+   public static final CoalescedMotor B = new CoalescedMotor(Motor.B);
+   /** Motor port C. */
+   public static final CoalescedMotor C = new CoalescedMotor(Motor.C);
+   
+   private final NXTRegulatedMotor motor;
+   
+   // Last command sent to the motor, -1 if unknown
+   private int mode = -1;
+   private int speed = -1;
+   private int acceleration = -1;
+   
+   private int issued, suppressed;
+   
+   // Motor synchronized with this one, as the lead motor of a pair
+   private CoalescedMotor partner;
+   // Time of the last command issued, in ns, written with this layer's lock held
+   private volatile long lastIssue;
+   
+   // Skew of the last pair operation, and the largest one, in ns
+   private static long skew, maxSkew;
+   
+   /**
+    * Creates a command layer for a motor. Use get() for the motor ports.
+    *
+    * @param motor_ The motor to command.
+    */
+   private CoalescedMotor(NXTRegulatedMotor motor_) {
+      motor = motor_;
+   }
+   
+   /**
+    * Get the command layer of a motor: the shared instance of its port, or
+    * a new one if it is not one of the ports.
+    *
+    * @param motor The motor to command.
+    *
+    * @return The motor's command layer.
+    */
+   public static CoalescedMotor get(NXTRegulatedMotor motor) {
+      if (motor == Motor.A)
+         return A;
+      else if (motor == Motor.B)
+         return B;
+      else if (motor == Motor.C)
+         return C;
+      else
+         return new CoalescedMotor(motor);
+   }
+   
+   /**
+    * Synchronizes a pair of motors, or stops synchronizing them. While
+    * synchronized, the pair operations below take effect on both motors
+    * at once.
+    *
+    * @param left The left motor, which leads the pair.
+    * @param right The right motor.
+    * @param on True to synchronize the motors, false to command them one after the other.
+    */
+   public static void synchronize(CoalescedMotor left, CoalescedMotor right, boolean on) {
+      synchronized (CoalescedMotor.class) {
+         if (on == (left.partner == right))
+            return;
+         
+         if (on) {
+            left.motor.synchronizeWith(new NXTRegulatedMotor [] {right.motor});
+            left.partner = right;
+         } else {
+            left.motor.synchronizeWith(new NXTRegulatedMotor [0]);
+            left.partner = null;
+         }
+      }
+   }
+   
+   /**
+    * Drives two motors at the given signed speeds, applying the changes back
+    * to back, in a fixed order: both directions, left first, then both speeds.
+    *
+    * @param left The left motor.
+    * @param leftSpeed The left motor speed, in degrees/s, negative to run backward.
+    * @param right The right motor.
+    * @param rightSpeed The right motor speed, in degrees/s, negative to run backward.
+    */
+   public static void drive(CoalescedMotor left, int leftSpeed, CoalescedMotor right, int rightSpeed) {
+      synchronized (CoalescedMotor.class) {
+         begin(left, right);
+         
+         if (leftSpeed > 0)
+            left.forward();
+         else
+            left.backward();
+         
+         if (rightSpeed > 0)
+            right.forward();
+         else
+            right.backward();
+         
+         left.setSpeed(Math.abs(leftSpeed));
+         right.setSpeed(Math.abs(rightSpeed));
+         
+         end(left, right);
+      }
+   }
+   
+   /**
+    * Rotates two motors by the given angles, starting them together.
+    *
+    * @param left The left motor.
+    * @param leftAngle The angle to rotate the left motor by, in degrees.
+    * @param right The right motor.
+    * @param rightAngle The angle to rotate the right motor by, in degrees.
+    * @param immediateReturn If true, returns without waiting for the rotations to complete.
+    */
+   public static void rotate(CoalescedMotor left, int leftAngle, CoalescedMotor right, int rightAngle, boolean immediateReturn) {
+      synchronized (CoalescedMotor.class) {
+         begin(left, right);
+         left.rotate(leftAngle, true);
+         right.rotate(rightAngle, true);
+         end(left, right);
+      }
+      
+      if (!immediateReturn) {
+         left.motor.waitComplete();
+         right.motor.waitComplete();
+      }
+   }
+   
+   /**
+    * Stops two motors together.
+    *
+    * @param left The left motor.
+    * @param right The right motor.
+    * @param immediateReturn If true, returns without waiting for the motors to stop.
+    */
+   public static void stop(CoalescedMotor left, CoalescedMotor right, boolean immediateReturn) {
+      synchronized (CoalescedMotor.class) {
+         begin(left, right);
+         left.stop(true);
+         right.stop(true);
+         end(left, right);
+      }
+      
+      if (!immediateReturn) {
+         left.motor.waitComplete();
+         right.motor.waitComplete();
+      }
+   }
+   
+   /**
+    * Starts a pair operation. Called with the class lock held.
+    *
+    * @param left The left motor.
+    * @param right The right motor.
+    */
+   private static void begin(CoalescedMotor left, CoalescedMotor right) {
+      synchronized (left) {
+         left.lastIssue = 0;
+      }
+      synchronized (right) {
+         right.lastIssue = 0;
+      }
+      
+      if (left.partner == right)
+         left.motor.startSynchronization();
+   }
+   
+   /**
+    * Ends a pair operation, and measures the skew between the wheels if
+    * both were commanded. Synchronized commands take effect together,
+    * with no skew. Called with the class lock held.
+    *
+    * @param left The left motor.
+    * @param right The right motor.
+    */
+   private static void end(CoalescedMotor left, CoalescedMotor right) {
+      if (left.partner == right)
+         left.motor.endSynchronization();
+      
+      if (left.lastIssue == 0 || right.lastIssue == 0)
+         return;
+      
+      skew = (left.partner == right ? 0 : Math.abs(right.lastIssue - left.lastIssue));
+      if (skew > maxSkew)
+         maxSkew = skew;
+   }
+   
+   /**
+    * Get the skew between the wheels of the last pair operation which
+    * commanded both of them.
+    *
+    * @return The time between the last commands to each wheel, in microseconds.
+    */
+   public static synchronized long getSkew() {
+      return skew / 1000;
+   }
+   
+   /**
+    * Get the largest skew measured since the last reset.
+    *
+    * @return The largest time between the last commands to each wheel, in microseconds.
+    */
+   public static synchronized long getMaxSkew() {
+      return maxSkew / 1000;
+   }
+   
+   /**
+    * Resets the skew measurements.
+    */
+   public static synchronized void resetSkew() {
+      skew = 0;
+      maxSkew = 0;
+   }
+   
+   /**
+    * Runs the motor forward, unless it already is.
+    */
+   public synchronized void forward() {
+      if (mode == FORWARD && isRunning()) {
+         suppressed++;
+         return;
+      }
+      
+      motor.forward();
+      mode = FORWARD;
+      issued++;
+      lastIssue = System.nanoTime();
+   }
+   
+   /**
+    * Runs the motor backward, unless it already is.
+    */
+   public synchronized void backward() {
+      if (mode == BACKWARD && isRunning()) {
+         suppressed++;
+         return;
+      }
+      
+      motor.backward();
+      mode = BACKWARD;
+      issued++;
+      lastIssue = System.nanoTime();
+   }
+   
+   /**
+    * Sets the motor speed, unless it is already set.
+    *
+    * @param speed_ The speed, in degrees/s.
+    */
+   public synchronized void setSpeed(int speed_) {
+      if (speed_ == speed) {
+         suppressed++;
+         return;
+      }
+      
+      motor.setSpeed(speed_);
+      speed = speed_;
+      issued++;
+      lastIssue = System.nanoTime();
+   }
+   
+   /**
+    * Sets the motor acceleration, unless it is already set.
+    *
+    * @param acceleration_ The acceleration, in degrees/s^2.
+    */
+   public synchronized void setAcceleration(int acceleration_) {
+      if (acceleration_ == acceleration) {
+         suppressed++;
+         return;
+      }
+      
+      motor.setAcceleration(acceleration_);
+      acceleration = acceleration_;
+      issued++;
+   }
+   
+   /**
+    * Stops the motor, unless it is already stopped.
+    *
+    * @param immediateReturn If true, returns without waiting for the motor to stop.
+    */
+   public void stop(boolean immediateReturn) {
+      synchronized (this) {
+         if (mode == STOPPED && !motor.isMoving()) {
+            suppressed++;
+            return;
+         }
+         
+         mode = STOPPED;
+         issued++;
+      }
+      
+      // outside the lock, as this may wait for the motor
+      motor.stop(immediateReturn);
+      
+      synchronized (this) {
+         lastIssue = System.nanoTime();
+      }
+   }
+   
+   /**
+    * Rotates the motor by the given angle. Always issued.
+    *
+    * @param angle The angle to rotate by, in degrees.
+    * @param immediateReturn If true, returns without waiting for the rotation to complete.
+    */
+   public void rotate(int angle, boolean immediateReturn) {
+      synchronized (this) {
+         mode = ROTATING;
+         issued++;
+      }
+      
+      motor.rotate(angle, immediateReturn);
+      
+      synchronized (this) {
+         lastIssue = System.nanoTime();
+      }
+   }
+   
+   /**
+    * Rotates the motor by the given angle, and waits for the rotation to complete.
+    *
+    * @param angle The angle to rotate by, in degrees.
+    */
+   public void rotate(int angle) {
+      rotate(angle, false);
+   }
+   
+   /**
+    * Tells whether the motor is running as last commanded: moving, and not
+    * stalled. Called with this layer's lock held.
+    *
+    * @return True if the motor is running.
+    */
+   private boolean isRunning() {
+      return motor.isMoving() && !motor.isStalled();
+   }
+   
+   /**
+    * Forgets the last commands, so the next ones are all issued. Call this
+    * after commanding the motor directly.
+    */
+   public synchronized void invalidate() {
+      mode = -1;
+      speed = -1;
+      acceleration = -1;
+   }
+   
+   /**
+    * Tells whether the motor is moving.
+    *
+    * @return True if the motor is moving.
+    */
+   public boolean isMoving() {
+      return motor.isMoving();
+   }
+   
+   /**
+    * Get the motor's tacho count.
+    *
+    * @return The tacho count, in degrees.
+    */
+   public int getTachoCount() {
+      return motor.getTachoCount();
+   }
+   
+   /**
+    * Resets the motor's tacho count.
+    */
+   public void resetTachoCount() {
+      motor.resetTachoCount();
+   }
+   
+   /**
+    * Get the motor commanded by this layer.
+    *
+    * @return The regulated motor.
+    */
+   public NXTRegulatedMotor getMotor() {
+      return motor;
+   }
+   
+   /**
+    * Get the number of commands sent to the motor.
+    *
+    * @return The number of commands issued.
+    */
+   public synchronized int getIssued() {
+      return issued;
+   }
+   
+   /**
+    * Get the number of commands dropped because they would not change anything.
+    *
+    * @return The number of commands suppressed.
+    */
+   public synchronized int getSuppressed() {
+      return suppressed;
+   }
+   
+   /**
+    * Resets the command counters.
+    */
+   public synchronized void resetCounters() {
+      issued = 0;
+      suppressed = 0;
+   }
+
+}
@@ -16,6 +16,7 @@ public class Controller implements TimerListener {
 	private final Odometer odometer;
 	private final MotorController mc;
 	private final Timer ultrasonicLocalizerTimer;
+	private OdometerCheckpoint checkpoint;
 	
 	// fields
 	
@@ -98,6 +99,11 @@ public class Controller implements TimerListener {
 				
 				setUsLocalizerMode(false);
 				ultrasonicLocalizerTimer.stop();
+				
+				// the pose is now worth saving, so start checkpointing it
+				if(checkpoint != null) {
+					checkpoint.start();
+				}
 			}
 			// procedure waiting to begin
 			else {
@@ -150,6 +156,24 @@ public class Controller implements TimerListener {
 		
 	}
 	
+	// this method sets the checkpoint to start once ultrasonic localization is complete
+	public void setCheckpoint(OdometerCheckpoint checkpoint) {
+		
+		this.checkpoint = checkpoint;
+		
+	}
+	
+	// this method skips the localization step, once the robot has been
+	// resumed from a checkpoint, before the controller starts
+	public void setLocalized() {
+		
+		synchronized (modeLock) {
+			if(programCounter < 1)
+				programCounter = 1;
+		}
+		
+	}
+	
 
 
 		
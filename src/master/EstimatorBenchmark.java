@@ -0,0 +1,130 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of the pose estimator's line crossing updates against plain
+ * odometry, on a robot whose left wheel is slightly larger than the
+ * odometer believes. Runs anywhere: the motion is simulated, and fed to
+ * the odometer through Odometer.integrate(), so the motors never turn.
+ *
+ * The robot drives North from the middle of a tile, with both wheels
+ * turning the same amount, so the odometer sees a straight run while the
+ * robot veers to the right. Whenever one of the light sensors really
+ * crosses a grid line, the crossing is given to the estimator. The run is
+ * made without, then with the estimator, and the odometer's final position
+ * and heading errors are printed for each.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see PoseEstimator
+ * @see Odometer
+ */
+public class EstimatorBenchmark {
+   
+   /** Defines the distance driven, in cm. */
+   public static final double DISTANCE = 280.0;
+   /** Defines the distance each wheel is seen to travel per update, in cm. */
+   public static final double STEP = 0.1;
+   /** Defines how much further the left wheel really travels than it is seen to, as a fraction. */
+   public static final double RADIUS_BIAS = 0.005;
+   
+   /**
+    * Runs the benchmark without and with the estimator, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      double [] result = new double [5];
+      
+      for (int i = 0; i < 2; i++) {
+         boolean fuse = (i == 1);
+         run(robot, fuse, result);
+         
+         System.out.println(fuse ? "with estimator" : "odometry only");
+         System.out.println(" cross " + (float)result[0] + " cm");
+         System.out.println(" along " + (float)result[1] + " cm");
+         System.out.println(" head " + (float)result[2] + " deg");
+         if (fuse)
+            System.out.println(" lines " + (int)result[3] + "/" + (int)(result[3] + result[4]));
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Drives the simulated run once.
+    *
+    * @param robot The robot to give the odometer, whose motors are not used.
+    * @param fuse True to give the line crossings to an estimator.
+    * @param result The array in which the final cross-track, along-track and
+    * heading errors of the odometer, in cm and degrees, and the number of
+    * line crossings fused and rejected are returned.
+    */
+   public static void run(TwoWheeledRobot robot, boolean fuse, double [] result) {
+      Odometer odo = new Odometer(robot, Odometer.DEFAULT_PERIOD, false);
+      PoseEstimator estimator = new PoseEstimator(odo);
+      double start = PoseEstimator.TILE / 2.0;
+      
+      odo.setPosition(new double [] {start, start, 0.0}, new boolean [] {true, true, true});
+      
+      // the true pose, and the y coordinate of each light sensor
+      double x = start, y = start, theta = 0.0;
+      double [] sensor = new double [2];
+      sensors(x, y, theta, sensor);
+      
+      double dist = STEP * (1.0 + RADIUS_BIAS / 2.0);
+      double dTheta = STEP * RADIUS_BIAS / TwoWheeledRobot.ODO_WIDTH * 180.0 / Math.PI;
+      int steps = (int)(DISTANCE / STEP);
+      
+      for (int k = 0; k < steps; k++) {
+         
+         // the odometer sees both wheels turn the same amount
+         long now = System.currentTimeMillis();
+         odo.integrate(STEP, 0.0, now);
+         
+         x += dist * Math.sin((theta + dTheta / 2.0) * Math.PI / 180.0);
+         y += dist * Math.cos((theta + dTheta / 2.0) * Math.PI / 180.0);
+         theta += dTheta;
+         
+         // give the estimator each line a sensor really crossed
+         double left = sensor[0], right = sensor[1];
+         sensors(x, y, theta, sensor);
+         if (fuse && Math.floor(sensor[0] / PoseEstimator.TILE) != Math.floor(left / PoseEstimator.TILE))
+            estimator.lineCrossed(true, now);
+         if (fuse && Math.floor(sensor[1] / PoseEstimator.TILE) != Math.floor(right / PoseEstimator.TILE))
+            estimator.lineCrossed(false, now);
+      }
+      
+      int [] counts = new int [4];
+      estimator.getCounts(counts);
+      
+      result[0] = odo.getX() - x;
+      result[1] = odo.getY() - y;
+      result[2] = Odometer.minimumAngleFromTo(theta, odo.getTheta());
+      result[3] = counts[0];
+      result[4] = counts[1];
+   }
+   
+   /**
+    * Computes the y coordinate of both light sensors.
+    *
+    * @param x The robot's x coordinate, in cm.
+    * @param y The robot's y coordinate, in cm.
+    * @param theta The robot's orientation, in degrees.
+    * @param sensor The array in which the left and right sensors' y coordinates are returned, in cm.
+    */
+   private static void sensors(double x, double y, double theta, double [] sensor) {
+      double t = theta * Math.PI / 180.0;
+      double forward = PoseEstimator.LS_FORWARD * Math.cos(t);
+      double across = PoseEstimator.LS_LATERAL * Math.sin(t);
+      
+      // right is (cos, -sin), so the left sensor is ahead when turned right
+      sensor[0] = y + forward + across;
+      sensor[1] = y + forward - across;
+   }
+
+}
@@ -0,0 +1,167 @@
+package master;
+
+/**
+ * Odometry engine which integrates the robot's tacho counts using only
+ * integer math. Positions are kept in cm with 16 fractional bits, and the
+ * heading as a binary angle (65536 units per revolution), so that the
+ * midpoint update can use the table-based trig in Trig instead of the
+ * software-emulated floating point of the NXT.
+ * 
+ * Displacement and heading are always derived from the absolute tacho
+ * counts, and only their difference is integrated, so rounding errors in
+ * the conversion do not accumulate from one update to the next.
+ * 
+ * 
+ * @see Odometer
+ * @see Trig
+ */
+public class FixedPointOdometry {
+   
+   /** Defines the number of fractional bits used for the position, in cm. */
+   public static final int POSITION_BITS = 16;
+   
+   // Fractional bits of the tacho conversion coefficients
+   private static final int COEFF_BITS = 16;
+   
+   // Tacho degrees to displacement (cm, POSITION_BITS) and heading (binary angle)
+   private static final long DISP_LEFT = Math.round(TwoWheeledRobot.ODO_LEFT_RADIUS * Math.PI / 360.0 * (1L << (POSITION_BITS + COEFF_BITS)));
+   private static final long DISP_RIGHT = Math.round(TwoWheeledRobot.ODO_RIGHT_RADIUS * Math.PI / 360.0 * (1L << (POSITION_BITS + COEFF_BITS)));
+   private static final long HEAD_LEFT = Math.round(TwoWheeledRobot.ODO_LEFT_RADIUS / TwoWheeledRobot.ODO_WIDTH * Trig.FULL_CIRCLE / 360.0 * (1 << COEFF_BITS));
+   private static final long HEAD_RIGHT = Math.round(TwoWheeledRobot.ODO_RIGHT_RADIUS / TwoWheeledRobot.ODO_WIDTH * Trig.FULL_CIRCLE / 360.0 * (1 << COEFF_BITS));
+   
+   // Grid constants used for the node and direction data
+   private static final int TILE = (int)(30.48 * (1 << POSITION_BITS));
+   private static final int NODE_OFFSET = 12 << POSITION_BITS;
+   private static final int DIRECTION_OFFSET = Trig.toBinaryAngle(44.0);
+   
+   private static final int HALF = 1 << (Trig.FIXED_BITS - 1);
+   
+   private int x, y, theta;
+   private long oldDisp, oldHead;
+   
+   /**
+    * Integrates the motion since the last update, given the current
+    * absolute tacho counts of both motors.
+    * 
+    * @param leftTacho The left motor tacho count, in degrees.
+    * @param rightTacho The right motor tacho count, in degrees.
+    */
+   public void update(int leftTacho, int rightTacho) {
+      long disp = (leftTacho * DISP_LEFT + rightTacho * DISP_RIGHT) >> COEFF_BITS;
+      long head = (leftTacho * HEAD_LEFT - rightTacho * HEAD_RIGHT) >> COEFF_BITS;
+      
+      long dDisp = disp - oldDisp;
+      int dHead = (int)(head - oldHead);
+      int mid = theta + (dHead >> 1);
+      
+      x += (int)((dDisp * Trig.sinFixed(mid) + HALF) >> Trig.FIXED_BITS);
+      y += (int)((dDisp * Trig.cosFixed(mid) + HALF) >> Trig.FIXED_BITS);
+      theta = (theta + dHead) & (Trig.FULL_CIRCLE - 1);
+      
+      oldDisp = disp;
+      oldHead = head;
+   }
+   
+   /**
+    * Forgets the tacho baselines, to be called after the motors' tacho
+    * counts have been reset to zero.
+    */
+   public void resetTachos() {
+      oldDisp = 0;
+      oldHead = 0;
+   }
+   
+   /**
+    * Sets the tacho baselines to the given counts, so that the next update
+    * only integrates the motion made since the motors read them.
+    * 
+    * @param leftTacho The left motor tacho count, in degrees.
+    * @param rightTacho The right motor tacho count, in degrees.
+    */
+   public void setTachos(int leftTacho, int rightTacho) {
+      oldDisp = (leftTacho * DISP_LEFT + rightTacho * DISP_RIGHT) >> COEFF_BITS;
+      oldHead = (leftTacho * HEAD_LEFT - rightTacho * HEAD_RIGHT) >> COEFF_BITS;
+   }
+   
+   /**
+    * Get the x position of the robot.
+    * 
+    * @return The robot's x coordinate, in cm.
+    */
+   public double getX() {
+      return x / (double)(1 << POSITION_BITS);
+   }
+   
+   /**
+    * Get the y position of the robot.
+    * 
+    * @return The robot's y coordinate, in cm.
+    */
+   public double getY() {
+      return y / (double)(1 << POSITION_BITS);
+   }
+   
+   /**
+    * Get the orientation of the robot, relative to North.
+    * 
+    * @return The angle the robot is facing, in degrees.
+    */
+   public double getTheta() {
+      return Trig.fromBinaryAngle(theta);
+   }
+   
+   /**
+    * Get the nodal x position of the robot, without leaving integer math.
+    * 
+    * @return The robot's x node coordinate, in "feet".
+    */
+   public int getNodeX() {
+      return (x + NODE_OFFSET) / TILE;
+   }
+   
+   /**
+    * Get the nodal y position of the robot, without leaving integer math.
+    * 
+    * @return The robot's y node coordinate, in "feet".
+    */
+   public int getNodeY() {
+      return (y + NODE_OFFSET) / TILE;
+   }
+   
+   /**
+    * Get the orientation of the robot, as a direction.
+    * 
+    * @return The robot direction (0 = N, 1 = E, 2 = S, 3 = W).
+    */
+   public int getDirection() {
+      return ((theta + DIRECTION_OFFSET) & (Trig.FULL_CIRCLE - 1)) >> 14;
+   }
+   
+   /**
+    * Sets the x position of the robot.
+    * 
+    * @param xPos The new x coordinate, in cm.
+    */
+   public void setX(double xPos) {
+      x = (int)Math.floor(xPos * (1 << POSITION_BITS) + 0.5);
+   }
+   
+   /**
+    * Sets the y position of the robot.
+    * 
+    * @param yPos The new y coordinate, in cm.
+    */
+   public void setY(double yPos) {
+      y = (int)Math.floor(yPos * (1 << POSITION_BITS) + 0.5);
+   }
+   
+   /**
+    * Sets the orientation of the robot.
+    * 
+    * @param angle The new orientation of the robot, in degrees.
+    */
+   public void setTheta(double angle) {
+      theta = Trig.toBinaryAngle(angle);
+   }
+   
+}
@@ -7,7 +7,7 @@ package master;
  * @see LineDetector
  * @see Odometer
  */
-public class GridSnapper {
+public class GridSnapper implements PoseListener {
    
    /** Defines the maximum angle error to be considered by the GridSnapper, in degrees. */
    public static final int MAX_ERROR = 10;
@@ -20,10 +20,13 @@ public class GridSnapper {
    private static boolean enabled;
    
    private Odometer odo;
+   private PoseEstimator estimator;
    
    private double leftHit = 0;
    private double rightHit = 0;
    
+   private double [] pose = new double [3];
+   
    /**
     * Creates a new grid snapper, which controls the given robot's
     * coordinate correction through its odometer. Also registers this
@@ -37,6 +40,9 @@ public class GridSnapper {
       
       LineDetector.left.setGridSnapper(this);
       LineDetector.right.setGridSnapper(this);
+      LineDetector.left.setRobot(odo.getTwoWheeledRobot());
+      LineDetector.right.setRobot(odo.getTwoWheeledRobot());
+      odo.addPoseListener(this);
       
       enabled = start;
    }
@@ -51,42 +57,48 @@ public class GridSnapper {
     */
    public synchronized void lineDetected(LineDetector ld) {
       
-      if(enabled) {
+      if(enabled && estimator != null) {
+         
+         // Let the estimator weigh the crossing against the odometry
+         estimator.lineCrossed(ld.isLeft(), ld.getHitTime());
+         
+      } else if(enabled) {
          
          double angle;
          boolean left = ld.isLeft();
          
-         // Get the robot's direction
+         // Get the robot's direction, and its position when the line was sampled
          h = odo.getDirection();
+         odo.getPoseAt(ld.getHitTime(), pose);
          
          // Based on this direction, decide which value (x or y) to latch.
          if(h == 0) {
             
             if (left)
-               leftHit = odo.getY();
+               leftHit = pose[1];
             else
-               rightHit = odo.getY();
+               rightHit = pose[1];
             
          } else if(h == 1) {
             
             if (left)
-               leftHit = odo.getX();
+               leftHit = pose[0];
             else
-               rightHit = odo.getX();
+               rightHit = pose[0];
             
          } else if(h == 2) {
             
             if (left)
-               leftHit = odo.getY();
+               leftHit = pose[1];
             else
-               rightHit = odo.getY();
+               rightHit = pose[1];
             
          } else if(h == 3) {
             
             if (left)
-               leftHit = odo.getX();
+               leftHit = pose[0];
             else
-               rightHit = odo.getX();
+               rightHit = pose[0];
             
          }
          
@@ -117,6 +129,28 @@ public class GridSnapper {
       
    }
    
+   /**
+    * Called by the odometer when the robot enters a new grid node.
+    * 
+    * @param nodeX The robot's new x node coordinate.
+    * @param nodeY The robot's new y node coordinate.
+    */
+   public void nodeChanged(int nodeX, int nodeY) {
+   }
+   
+   /**
+    * Called by the odometer when the robot changes its cardinal direction.
+    * A line hit latched while facing another direction is on the other
+    * axis, so it is discarded rather than paired with the next one.
+    * 
+    * @param direction The robot's new direction (0 = N, 1 = E, 2 = S, 3 = W).
+    */
+   public synchronized void directionChanged(int direction) {
+      h = direction;
+      leftHit = 0;
+      rightHit = 0;
+   }
+   
    /**
     * Corrects the odometer's orientation, and resets the lineHit variables.
     * 
@@ -128,6 +162,49 @@ public class GridSnapper {
       rightHit = 0;
    }
    
+   /**
+    * Set a pose estimator to fuse the line crosses, instead of overwriting
+    * the odometer's orientation with the angle computed from both sensors.
+    * 
+    * @param estimator_ The estimator to use, or null to overwrite the orientation.
+    */
+   public void setEstimator(PoseEstimator estimator_) {
+      estimator = estimator_;
+   }
+   
+   /**
+    * Copies the line hits latched so far, so that they can be checkpointed.
+    * 
+    * @param hits The array in which the left and right hits are returned, 0 if none.
+    */
+   synchronized void getHits(double [] hits) {
+      hits[0] = leftHit;
+      hits[1] = rightHit;
+   }
+   
+   /**
+    * Restores the state of the GridSnapper from a checkpoint.
+    * 
+    * @param left The left line hit, 0 if none.
+    * @param right The right line hit, 0 if none.
+    * @param enable If true, enable the GridSnapper, otherwise disable it.
+    */
+   synchronized void restore(double left, double right, boolean enable) {
+      h = odo.getDirection();
+      leftHit = left;
+      rightHit = right;
+      enabled = enable;
+   }
+   
+   /**
+    * Tells whether the GridSnapper is enabled.
+    * 
+    * @return True if line crosses are used to correct the odometer.
+    */
+   public boolean isEnabled() {
+      return enabled;
+   }
+   
    /**
     * Enable the GridSnapper
     */
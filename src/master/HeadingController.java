@@ -0,0 +1,91 @@
+package master;
+
+/**
+ * PID controller which holds the robot's heading during straight runs, by
+ * computing the rotation speed to add to the forward motion from the
+ * odometer's heading error.
+ *
+ *
+ * @see TwoWheeledRobot#holdHeading(double)
+ * @see Odometer
+ */
+public class HeadingController {
+   
+   /** Defines the default proportional gain, in (degrees/s) per degree. */
+   public static final double DEFAULT_KP = 4.0;
+   /** Defines the default integral gain, in (degrees/s) per degree second. */
+   public static final double DEFAULT_KI = 1.0;
+   /** Defines the default derivative gain, in (degrees/s) per degree/s. */
+   public static final double DEFAULT_KD = 0.1;
+   /** Defines the largest rotation speed commanded by the controller, in degrees/s. */
+   public static final double MAX_CORRECTION = 30.0;
+   
+   private double kp, ki, kd;
+   private double integral, lastError;
+   private long lastTime;
+   
+   /**
+    * Creates a controller with the given gains.
+    *
+    * @param kp_ The proportional gain, in (degrees/s) per degree.
+    * @param ki_ The integral gain, in (degrees/s) per degree second.
+    * @param kd_ The derivative gain, in (degrees/s) per degree/s.
+    */
+   public HeadingController(double kp_, double ki_, double kd_) {
+      kp = kp_;
+      ki = ki_;
+      kd = kd_;
+   }
+   
+   /**
+    * Creates a controller with the default gains.
+    */
+   public HeadingController() {
+      this(DEFAULT_KP, DEFAULT_KI, DEFAULT_KD);
+   }
+   
+   /**
+    * Forgets the accumulated error, before holding a new heading.
+    */
+   public void reset() {
+      integral = 0.0;
+      lastError = 0.0;
+      lastTime = 0;
+   }
+   
+   /**
+    * Computes the rotation speed which steers the robot back to its heading.
+    *
+    * @param error The heading to hold minus the robot's heading, in degrees, between -180 and 180.
+    * @param time The time of the heading measurement, in ms.
+    *
+    * @return The rotation speed to command, in degrees/s.
+    */
+   public double update(double error, long time) {
+      double correction = kp * error;
+      
+      if (lastTime != 0 && time > lastTime) {
+         double dt = (time - lastTime) / 1000.0;
+         
+         // integrate, without letting the integral alone exceed the output limit
+         integral += error * dt;
+         if (ki * integral > MAX_CORRECTION)
+            integral = MAX_CORRECTION / ki;
+         else if (ki * integral < -MAX_CORRECTION)
+            integral = -MAX_CORRECTION / ki;
+         
+         correction += ki * integral + kd * (error - lastError) / dt;
+      }
+      
+      lastError = error;
+      lastTime = time;
+      
+      if (correction > MAX_CORRECTION)
+         return MAX_CORRECTION;
+      else if (correction < -MAX_CORRECTION)
+         return -MAX_CORRECTION;
+      else
+         return correction;
+   }
+
+}
@@ -0,0 +1,156 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of the accuracy of the odometer's integration modes, against
+ * the period they run at. Runs anywhere: the motion is simulated, and fed
+ * to the odometers through Odometer.integrate(), so the motors never turn.
+ *
+ * Each scenario is a pair of wheel speed profiles, which is integrated
+ * every TRUTH_STEP to give the true path. Along the way, one odometer per
+ * integration mode and period is fed the motion made since its last
+ * update, as its tachometers would have measured it. The distance between
+ * each odometer's position and the true one is printed at the end of the
+ * scenario.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see Odometer
+ * @see OdometryBenchmark
+ */
+public class IntegrationBenchmark {
+   
+   /** Defines the duration of each scenario, in s. */
+   public static final double DURATION = 15.0;
+   /** Defines the step of the true path's integration, in s. */
+   public static final double TRUTH_STEP = 0.0001;
+   /** Defines the number of scenarios. */
+   public static final int SCENARIOS = 4;
+   
+   private static final String [] NAMES = {"pivot", "smooth", "steps", "swerve"};
+   private static final Odometer.Integration [] MODES = {
+      Odometer.Integration.MIDPOINT, Odometer.Integration.EXACT_ARC, Odometer.Integration.QUADRATIC_ARC
+   };
+   private static final int [] PERIODS = {25, 50, 75, 100};
+   
+   /**
+    * Runs the benchmark, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      double [] error = new double [MODES.length * PERIODS.length];
+      
+      for (int scenario = 0; scenario < SCENARIOS; scenario++) {
+         run(robot, scenario, error);
+         
+         System.out.println(NAMES[scenario]);
+         for (int m = 0; m < MODES.length; m++) {
+            String line = " " + MODES[m].toString().substring(0, 3);
+            for (int p = 0; p < PERIODS.length; p++)
+               line += " " + PERIODS[p] + ":" + (float)error[m * PERIODS.length + p];
+            System.out.println(line);
+         }
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Runs one scenario through an odometer per integration mode and period.
+    *
+    * @param robot The robot to give the odometers, whose motors are not used.
+    * @param scenario The scenario, from 0 to SCENARIOS - 1.
+    * @param error The array in which the final position error of each
+    * odometer is returned, in cm, mode by mode, in the order of PERIODS.
+    */
+   public static void run(TwoWheeledRobot robot, int scenario, double [] error) {
+      int count = MODES.length * PERIODS.length;
+      Odometer [] odos = new Odometer [count];
+      int [] steps = new int [count];
+      double [] fromDist = new double [count], fromTheta = new double [count];
+      
+      for (int k = 0; k < count; k++) {
+         odos[k] = new Odometer(robot, PERIODS[k % PERIODS.length], false, MODES[k / PERIODS.length]);
+         odos[k].integrate(0.0, 0.0, 0);
+         steps[k] = (int)Math.round(PERIODS[k % PERIODS.length] / 1000.0 / TRUTH_STEP);
+      }
+      
+      // the true pose, and the distance and rotation made since the start
+      double x = 0.0, y = 0.0, theta = 0.0, dist = 0.0, turned = 0.0;
+      int n = (int)Math.round(DURATION / TRUTH_STEP);
+      
+      for (int i = 1; i <= n; i++) {
+         double t = (i - 0.5) * TRUTH_STEP;
+         double left = leftSpeed(scenario, t), right = rightSpeed(scenario, t);
+         double dDist = (left + right) / 2.0 * TRUTH_STEP;
+         double dTheta = (left - right) / TwoWheeledRobot.ODO_WIDTH * 180.0 / Math.PI * TRUTH_STEP;
+         
+         x += dDist * Math.sin((theta + dTheta / 2.0) * Math.PI / 180.0);
+         y += dDist * Math.cos((theta + dTheta / 2.0) * Math.PI / 180.0);
+         theta += dTheta;
+         dist += dDist;
+         turned += dTheta;
+         
+         for (int k = 0; k < count; k++) {
+            if (i % steps[k] == 0) {
+               odos[k].integrate(dist - fromDist[k], turned - fromTheta[k], Math.round(i * TRUTH_STEP * 1000.0));
+               fromDist[k] = dist;
+               fromTheta[k] = turned;
+            }
+         }
+      }
+      
+      for (int k = 0; k < count; k++) {
+         double dx = odos[k].getX() - x, dy = odos[k].getY() - y;
+         error[k] = Math.sqrt(dx * dx + dy * dy);
+      }
+   }
+   
+   /**
+    * Gives the left wheel's speed in a scenario.
+    *
+    * @param scenario The scenario.
+    * @param t The time since the start, in s.
+    *
+    * @return The speed, in cm/s.
+    */
+   private static double leftSpeed(int scenario, double t) {
+      switch (scenario) {
+      case 0:
+         return 7.0;
+      case 1:
+         return 7.0 + 10.0 * Math.sin(2.0 * t);
+      case 2:
+         return 15.2 * Math.min(1.0, t) * ((int)t % 2 == 0 ? 1.0 : -1.0);
+      default:
+         return 20.0 * Math.sin(1.3 * t) + 15.0;
+      }
+   }
+   
+   /**
+    * Gives the right wheel's speed in a scenario.
+    *
+    * @param scenario The scenario.
+    * @param t The time since the start, in s.
+    *
+    * @return The speed, in cm/s.
+    */
+   private static double rightSpeed(int scenario, double t) {
+      switch (scenario) {
+      case 0:
+         return 0.0;
+      case 1:
+         return 7.0 - 10.0 * Math.sin(1.7 * t);
+      case 2:
+         return -15.2 * Math.min(1.0, t) * ((int)t % 2 == 0 ? 1.0 : -1.0) + 3.0;
+      default:
+         return 15.0 - 20.0 * Math.cos(0.7 * t);
+      }
+   }
+
+}
@@ -0,0 +1,226 @@
+package master;
+
+/**
+ * Online calibration of the black line threshold of a light sensor. It
+ * learns the light values of the floor and of the lines from the samples
+ * taken while the robot drives, so detection keeps working on another
+ * floor or under other lighting, instead of relying on a hard-coded value.
+ *
+ * The floor is learned from every sample, as lines only take a small part
+ * of the samples taken while driving across the grid: its running median,
+ * and a low percentile as its tail towards the line. The line is learned
+ * from the samples closer to its median than to the floor's: its median,
+ * and its 90th percentile as its tail towards the floor. The threshold
+ * lies halfway between the tails, and the hysteresis is a fraction of the
+ * gap between them: a line starts below the threshold minus half the
+ * hysteresis, and ends above the threshold plus half of it.
+ *
+ * Learning from every sample keeps the floor right when the whole
+ * distribution shifts, on a darker floor for instance, where samples
+ * sorted by the old model would all have looked like line. Each tail
+ * moves along with its median, and the line follows the floor in
+ * proportion, so the model keeps up with a new floor within a tile.
+ *
+ * There is one calibrator per sensor, shared by the line detector and
+ * the localizer.
+ *
+ *
+ * @see LineDetector
+ * @see Localizer
+ */
+public class LightCalibrator {
+   
+   /** The calibrator of the left light sensor. */
+   public static final LightCalibrator left = new LightCalibrator();
+   /** The calibrator of the right light sensor. */
+   public static final LightCalibrator right = new LightCalibrator();
+   
+   /** Defines the initial median light value of the floor. */
+   public static final int DEFAULT_FLOOR = 540;
+   /** Defines the initial median light value of a black line. */
+   public static final int DEFAULT_LINE = 400;
+   /** Defines the initial spread of each side, between its median and its tail. */
+   public static final int DEFAULT_SPREAD = 30;
+   /** Defines the fraction of the gap between floor and line used as hysteresis. */
+   public static final double HYSTERESIS_FRACTION = 0.25;
+   /** Defines the smallest hysteresis, in light values. */
+   public static final int MIN_HYSTERESIS = 10;
+   /** Defines the smallest gap between floor and line for which the lines are told apart reliably. */
+   public static final int MIN_GAP = 30;
+   /** Defines how far each floor percentile moves per sample, in light values. */
+   public static final double STEP = 0.25;
+   /** Defines how far each line percentile moves per line sample, faster as line samples are few, in light values. */
+   public static final double LINE_STEP = 1.0;
+   /** Defines the percentile of all samples taken as the floor's tail, towards the line. */
+   private static final double FLOOR_TAIL = 0.15;
+   /** Defines the percentile of the line's tail, towards the floor. */
+   private static final double LINE_TAIL = 0.9;
+   
+   // Running percentiles of each side, guarded by this calibrator's monitor
+   private double floorMedian, floorTail, lineMedian, lineTail;
+   private int floorSamples, lineSamples;
+   
+   /**
+    * Creates a calibrator, with the default model. Use left or right.
+    */
+   private LightCalibrator() {
+      reset();
+   }
+   
+   /**
+    * Forgets what was learned, and goes back to the default model.
+    */
+   public synchronized void reset() {
+      floorMedian = DEFAULT_FLOOR;
+      floorTail = DEFAULT_FLOOR - DEFAULT_SPREAD;
+      lineMedian = DEFAULT_LINE;
+      lineTail = DEFAULT_LINE + DEFAULT_SPREAD;
+      floorSamples = 0;
+      lineSamples = 0;
+   }
+   
+   /**
+    * Learns from a light sample. Called by the line detector, on the
+    * sampler's thread, for each sample lit by the floodlight while the
+    * robot drives.
+    *
+    * @param value The normalized light value, from 0-1023.
+    */
+   public synchronized void update(int value) {
+      
+      // the whole model follows the floor, the line in proportion, as a
+      // change of lighting or surface scales both
+      double shift = step(value, floorMedian, 0.5);
+      floorMedian += shift;
+      floorTail += shift + step(value, floorTail, FLOOR_TAIL);
+      shift *= lineMedian / floorMedian;
+      lineMedian += shift;
+      lineTail += shift;
+      
+      double boundary = (floorMedian + lineMedian) / 2.0;
+      if (value > boundary) {
+         floorSamples++;
+      } else {
+         lineMedian += LINE_STEP / STEP * step(value, lineMedian, 0.5);
+         lineTail += LINE_STEP / STEP * step(value, lineTail, LINE_TAIL);
+         lineSamples++;
+      }
+      
+      // a tail cannot cross its side's median, nor the line's the samples it learns from
+      if (floorTail > floorMedian)
+         floorTail = floorMedian;
+      if (lineTail > boundary)
+         lineTail = boundary;
+      if (lineTail < lineMedian)
+         lineTail = lineMedian;
+   }
+   
+   /**
+    * Computes how far a running percentile moves for a sample: up by q
+    * steps if the sample is above it, down by 1 - q steps otherwise, so it
+    * settles where a fraction q of the samples are below it.
+    *
+    * @param value The sample.
+    * @param estimate The current estimate of the percentile.
+    * @param q The percentile, from 0 to 1.
+    *
+    * @return The change of the estimate.
+    */
+   private static double step(int value, double estimate, double q) {
+      return (value > estimate ? 2.0 * STEP * q : -2.0 * STEP * (1.0 - q));
+   }
+   
+   /**
+    * Get the threshold between floor and line, halfway between their tails.
+    *
+    * @return The threshold, in light values.
+    */
+   public synchronized int getThreshold() {
+      return (int)Math.round((floorTail + lineTail) / 2.0);
+   }
+   
+   /**
+    * Get the hysteresis around the threshold.
+    *
+    * @return The width of the band between the line and floor thresholds, in light values.
+    */
+   public synchronized int getHysteresis() {
+      double hysteresis = HYSTERESIS_FRACTION * (floorTail - lineTail);
+      return (int)Math.round(Math.max(hysteresis, MIN_HYSTERESIS));
+   }
+   
+   /**
+    * Get the light value below which the sensor is on a line.
+    *
+    * @return The line threshold, in light values.
+    */
+   public synchronized int getLineThreshold() {
+      return getThreshold() - getHysteresis() / 2;
+   }
+   
+   /**
+    * Get the light value above which the sensor is off the line again.
+    *
+    * @return The floor threshold, in light values.
+    */
+   public synchronized int getFloorThreshold() {
+      return getThreshold() + (getHysteresis() + 1) / 2;
+   }
+   
+   /**
+    * Get the median light value of the floor.
+    *
+    * @return The floor's median, in light values.
+    */
+   public synchronized int getFloorLevel() {
+      return (int)Math.round(floorMedian);
+   }
+   
+   /**
+    * Get the median light value of the lines.
+    *
+    * @return The line's median, in light values.
+    */
+   public synchronized int getLineLevel() {
+      return (int)Math.round(lineMedian);
+   }
+   
+   /**
+    * Get the gap between the darkest floor values and the brightest line
+    * values: the floor's tail minus the line's 90th percentile.
+    *
+    * @return The gap, in light values, negative if floor and line overlap.
+    */
+   public synchronized int getGap() {
+      return (int)Math.round(floorTail - lineTail);
+   }
+   
+   /**
+    * Tells whether floor and line are far enough apart to be told apart
+    * reliably, with the current model.
+    *
+    * @return True if the gap is at least MIN_GAP.
+    */
+   public boolean isReliable() {
+      return getGap() >= MIN_GAP;
+   }
+   
+   /**
+    * Get the number of samples closer to the floor than to the line, since the last reset.
+    *
+    * @return The number of floor samples.
+    */
+   public synchronized int getFloorSamples() {
+      return floorSamples;
+   }
+   
+   /**
+    * Get the number of samples learned as line, since the last reset.
+    *
+    * @return The number of line samples.
+    */
+   public synchronized int getLineSamples() {
+      return lineSamples;
+   }
+
+}
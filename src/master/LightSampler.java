@@ -0,0 +1,182 @@
+package master;
+
+/**
+ * Thread which samples the line detectors' light sensors at a fixed rate,
+ * both in the same tick, and lets each detector look for a line in its
+ * sample. It replaces one unthrottled polling thread per detector, which
+ * kept the brick's processor busy whenever the robot drove on the grid.
+ *
+ * The thread sleeps between ticks, and waits without polling while no
+ * detector is started. It counts its ticks, so the sampling rate achieved
+ * can be checked against the one asked for.
+ *
+ *
+ * @see LineDetector
+ */
+public class LightSampler extends Thread {
+   
+   /** Defines the time between ticks, in ms. */
+   public static final int PERIOD = 5;
+   /** Defines the maximum number of line detectors sampled. */
+   public static final int MAX_DETECTORS = 2;
+   
+   private static LightSampler instance;
+   
+   // Detectors, and which of them are started, guarded by this sampler's monitor
+   private LineDetector [] detectors = new LineDetector [MAX_DETECTORS];
+   private boolean [] started = new boolean [MAX_DETECTORS];
+   private int detectorCount, startedCount;
+   // True while the sampler reads the sensors and calls the detectors
+   private boolean busy;
+   
+   // Sampling statistics, since the first detector was started
+   private int ticks, overruns;
+   private long statsStart;
+   
+   /**
+    * Creates and starts the sampler thread, which waits for a detector to
+    * be started. Use get() for the shared sampler.
+    */
+   private LightSampler() {
+      this.setDaemon(true);
+      this.start();
+   }
+   
+   /**
+    * Get the sampler shared by the line detectors.
+    *
+    * @return The shared sampler.
+    */
+   public static synchronized LightSampler get() {
+      if (instance == null)
+         instance = new LightSampler();
+      
+      return instance;
+   }
+   
+   /**
+    * Registers a detector, stopped.
+    *
+    * @param detector The detector to sample.
+    */
+   synchronized void add(LineDetector detector) {
+      detectors[detectorCount++] = detector;
+   }
+   
+   /**
+    * Starts or stops sampling a detector. Once stopped, the detector is not
+    * called again, even if the sampler was in the middle of a tick.
+    *
+    * @param detector The detector to start or stop.
+    * @param on True to start sampling it, false to stop.
+    */
+   synchronized void setStarted(LineDetector detector, boolean on) {
+      for (int i = 0; i < detectorCount; i++) {
+         if (detectors[i] != detector || started[i] == on)
+            continue;
+         
+         started[i] = on;
+         if (on) {
+            if (startedCount++ == 0)
+               resetStats();
+            notifyAll();
+         }
+         else {
+            startedCount--;
+         }
+      }
+      
+      // let the current tick finish, if it samples the stopped detector,
+      // unless the detector is stopped from the tick itself
+      while (!on && busy && Thread.currentThread() != this) {
+         try { wait(); } catch (InterruptedException e) { break; }
+      }
+   }
+   
+   /**
+    * Samples the started detectors every PERIOD ms. If a tick runs late,
+    * the next one is scheduled from the current time, rather than running
+    * the missed ticks back to back.
+    */
+   public void run() {
+      boolean [] sample = new boolean [MAX_DETECTORS];
+      int count;
+      long next = 0;
+      
+      while (true) {
+         
+         // wait for a detector to be started, then take a snapshot of them
+         synchronized (this) {
+            while (startedCount == 0) {
+               next = 0;
+               try { wait(); } catch (InterruptedException e) {}
+            }
+            
+            count = detectorCount;
+            for (int i = 0; i < count; i++)
+               sample[i] = started[i];
+            busy = true;
+         }
+         
+         // sample every sensor of the tick at the same time
+         long time = System.currentTimeMillis();
+         for (int i = 0; i < count; i++) {
+            if (sample[i])
+               detectors[i].read();
+         }
+         for (int i = 0; i < count; i++) {
+            if (sample[i])
+               detectors[i].sample(time);
+         }
+         
+         synchronized (this) {
+            busy = false;
+            ticks++;
+            notifyAll();
+         }
+         
+         // sleep until the next tick
+         long now = System.currentTimeMillis();
+         next = (next == 0 ? now : next) + PERIOD;
+         if (next > now) {
+            try { Thread.sleep(next - now); } catch (InterruptedException e) {}
+         } else {
+            synchronized (this) {
+               overruns++;
+            }
+            next = now;
+         }
+      }
+   }
+   
+   /**
+    * Obtains the rate at which the sensors were sampled since the first
+    * detector was started.
+    *
+    * @return The sampling rate, in Hz.
+    */
+   public synchronized double getSampleRate() {
+      long elapsed = System.currentTimeMillis() - statsStart;
+      return (elapsed > 0 ? ticks * 1000.0 / elapsed : 0.0);
+   }
+   
+   /**
+    * Obtains the number of ticks which started late, because the previous
+    * one took longer than PERIOD ms.
+    *
+    * @return The number of late ticks.
+    */
+   public synchronized int getOverruns() {
+      return overruns;
+   }
+   
+   /**
+    * Resets the sampling statistics.
+    */
+   public synchronized void resetStats() {
+      ticks = 0;
+      overruns = 0;
+      statsStart = System.currentTimeMillis();
+   }
+
+}
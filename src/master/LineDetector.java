@@ -7,32 +7,36 @@ import lejos.nxt.SensorPort;
 /**
  * Line detector, which constantly polls the light sensors to detect line crosses.
  * When a line has been crossed, the grid snapper is notified and behaves accordingly.
+ * Both detectors are polled by the shared LightSampler, at a fixed rate.
  * 
  * 
  * @see GridSnapper
+ * @see LightSampler
  * @see LCDInfo
  */
-public class LineDetector implements Runnable {
+public class LineDetector {
    
    /** The left line detector, running on the left light sensor. */
-   public static final LineDetector left = new LineDetector(new LightSensor(SensorPort.S3, true), true);
+   public static final LineDetector left = new LineDetector(new LightSensor(SensorPort.S3, true), true, LightCalibrator.left);
    /** The right line detector, running on the right light sensor. */
-   public static final LineDetector right = new LineDetector(new LightSensor(SensorPort.S4, true), false);
-   
-   /** Defines the maximum light value threshold for a black line. */
-   public static final int THRESHOLD = 485;
+   public static final LineDetector right = new LineDetector(new LightSensor(SensorPort.S4, true), false, LightCalibrator.right);
    
    /** Defines the status of this line detector. True if it's running. */
    public boolean running;
-   /** This line detector's running thread. */
-   Thread line_detector_thread;
    
    private LightSensor ls;
    private boolean leftSide;
    private GridSnapper gs;
+   private LightCalibrator calibrator;
+   private TwoWheeledRobot robot;
+   private volatile boolean floodlight;
    
    private int newValue;
    private int lastValue;
+   private boolean onLine;
+   private long sampleTime;
+   private long hitTime;
+   private volatile int hits;
    
    /**
     * Creates a new line detector. It is private because no more than the above
@@ -40,53 +44,97 @@ public class LineDetector implements Runnable {
     * 
     * @param ls_ The light sensor to be polled.
     * @param leftSide_ If true, it's the left light sensor.
+    * @param calibrator_ The calibrator of the light sensor's threshold.
     */
-   private LineDetector (LightSensor ls_, boolean leftSide_) {
+   private LineDetector (LightSensor ls_, boolean leftSide_, LightCalibrator calibrator_) {
       ls = ls_;
       leftSide = leftSide_;
+      calibrator = calibrator_;
       lastValue = 0;
       
+      LightSampler.get().add(this);
       this.start();
    }
    
    /**
-    * Starts the line detector thread. In case it was already running, it will be
+    * Starts sampling this line detector. In case it was already running, it will be
     * stopped and restarted.
     */
    public void start() {
       stop();
       running = true;
-      this.ls.setFloodlight(true);
-      line_detector_thread = new Thread(this);
-      line_detector_thread.setDaemon(true);
-      line_detector_thread.start();
+      onLine = true;
+      setFloodlight(true);
+      LightSampler.get().setStarted(this, true);
    }
    
    /**
-    * Stop the current line detector, and let its thread yield to all others.
+    * Stop sampling this line detector. Once this returns, the grid snapper is
+    * not notified by it anymore.
     */
    public void stop() {
       
       if(running) {
          running = false;
-         this.ls.setFloodlight(false);
-         while(line_detector_thread != null && line_detector_thread.isAlive()) Thread.yield();
+         LightSampler.get().setStarted(this, false);
+         setFloodlight(false);
       }
    }
    
    /**
-    * Continuously checks the light sensor for a line, by comparing the light values
-    * to a set threshold. In order for the listener to be notified only once per line,
-    * the line is only latched for a falling edge, i.e. when the light value drops
-    * from above the threshold to under it.
+    * Turns the light sensor's floodlight on or off, keeping track of it.
+    * 
+    * @param on True to turn the floodlight on.
+    */
+   private void setFloodlight(boolean on) {
+      floodlight = on;
+      this.ls.setFloodlight(on);
+   }
+   
+   /**
+    * Reads the light sensor. Called by the sampler, for both detectors in turn,
+    * before either checks its value.
+    */
+   void read() {
+      newValue = ls.getNormalizedLightValue();
+   }
+   
+   /**
+    * Checks the light value read for a line, by comparing it to the calibrated
+    * thresholds, after letting the calibrator learn from it if it was lit by
+    * the floodlight while the robot drove, rather than parked on one spot.
+    * In order for the
+    * listener to be notified only once per line, the line is only latched for a
+    * falling edge, i.e. when the light value drops under the line threshold, and
+    * the next line only once it has risen back above the floor threshold.
+    * 
+    * @param sampleTime_ The time of the sampler's tick, as given by System.currentTimeMillis().
     */
-   public void run() {
+   void sample(long sampleTime_) {
+      sampleTime = sampleTime_;
+      
+      TwoWheeledRobot r = robot;
+      if (floodlight && r != null && r.getForwardSpeed() != 0.0)
+         calibrator.update(newValue);
       
-      while(running) {
-         newValue = ls.getNormalizedLightValue();
-         if(newValue < THRESHOLD && lastValue > THRESHOLD) notifyGridSnapper();
-         lastValue = newValue;
+      if(!onLine && newValue < calibrator.getLineThreshold()) {
+         onLine = true;
+         hitTime = sampleTime;
+         hits++;
+         notifyGridSnapper();
+      } else if(onLine && newValue > calibrator.getFloorThreshold()) {
+         onLine = false;
       }
+      lastValue = newValue;
+   }
+   
+   /**
+    * Get the calibrator of this line detector's light sensor.
+    * 
+    * @return The calibrator, shared with the localizer.
+    */
+   public LightCalibrator getCalibrator() {
+      return calibrator;
    }
    
    /**
@@ -98,6 +146,25 @@ public class LineDetector implements Runnable {
       return lastValue;
    }
    
+   /**
+    * Obtain the time at which the last line cross was sampled.
+    * 
+    * @return The time of the last line cross, as given by System.currentTimeMillis().
+    */
+   public long getHitTime() {
+      return hitTime;
+   }
+   
+   /**
+    * Obtain the number of line crosses detected so far, so that a caller can
+    * tell when the next one is sampled, and read its time with getHitTime().
+    * 
+    * @return The number of line crosses since the program started.
+    */
+   public int getHits() {
+      return hits;
+   }
+   
    /**
     * Set the grid snapper that will be listening to this line detector.
     * 
@@ -107,6 +174,16 @@ public class LineDetector implements Runnable {
       gs = gs_;
    }
    
+   /**
+    * Set the robot carrying this line detector, so that the calibrator only
+    * learns while it drives. Until it is set, the calibrator does not learn.
+    * 
+    * @param robot_ The robot, whose forward speed is checked at each sample.
+    */
+   public void setRobot(TwoWheeledRobot robot_){
+      robot = robot_;
+   }
+   
    /**
     * Notify the grid snapper that a line has been crossed.
     */
@@ -1,6 +1,5 @@
 package master;
 
-import lejos.nxt.LightSensor;
 import lejos.robotics.navigation.Navigator;
 
 /**
@@ -28,129 +27,189 @@ public class Localizer {
    public static final double LSOFFSET = 1.5;
    /** Defines the wall distance threshold for US localization, in cm. */
    public static final int WALLDIST = 35;
-   /** Defines the maximum light value threshold for a black line. */
-   public static final int THRESHOLD = 460;
+   /** Defines the largest position error accepted by the line crossing check, in cm. */
+   public static final double CHECK_POSITION_ERROR = 5.0;
+   /** Defines the largest heading error accepted by the line crossing check, in degrees. */
+   public static final double CHECK_HEADING_ERROR = 10.0;
+   /** Defines the maximum number of turns made by Monte Carlo localization. */
+   public static final int MCL_MAX_TURNS = 2;
+   /** Defines the particle position spread under which Monte Carlo localization has converged, in cm. */
+   public static final double MCL_POSITION_SPREAD = 4.0;
+   /** Defines the particle heading spread under which Monte Carlo localization has converged, in degrees. */
+   public static final double MCL_HEADING_SPREAD = 5.0;
+   /** Defines the longest wait for a wall edge during US localization, in ms: a full turn at RSPEED, with a margin. */
+   public static final long EDGE_TIMEOUT = 360 * 1000 / RSPEED + 3000;
    
    private Odometer odo;
    private TwoWheeledRobot robot;
-   private LightSensor lsL;
-   private LightSensor lsR;
    private USPoller usp;
+   private GridSnapper gs;
 
    
    /**
-    * This constructor is to be passed the odometer, and all the sensors 
-    * required to perform localization.
+    * This constructor is to be passed the odometer, and the sensors
+    * required to perform localization. The light sensors are sampled
+    * through the line detectors, at the light sampler's fixed rate, and
+    * share their calibration.
     * 
     * @param odo_ The odometer tracking the robot's position.
-    * @param lsL_ The light sensor on the left of the robot.
-    * @param lsR_ The light sensor on the right of the robot.
-    * @param usp_ The ultrasonic sensor mounted on the top of the robot.
+    * @param usp_ The ultrasonic sensor mounted on the top of the robot, or
+    * null if it has none, in which case only the light sensor routines may
+    * be used.
     */
-   public Localizer(Odometer odo_, LightSensor lsL_, LightSensor lsR_, USPoller usp_) {
+   public Localizer(Odometer odo_, USPoller usp_) {
       
       odo = odo_;
       robot = odo.getTwoWheeledRobot();
-      lsL = lsL_;
-      lsR = lsR_;
       usp = usp_;
-      
-      // Turn off the lights
-      lsL.setFloodlight(false);
-      lsR.setFloodlight(false);
    }
    
    /**
     * Performs light sensor based localization to accurately
-    * position the robot over the origin.
+    * position the robot over the origin. The line crosses are those of
+    * the line detectors, with their calibrated thresholds and hysteresis.
+    * 
+    * @return True if both sensors found the line, and the odometer was set.
     */
-   private void doLSLocalization(double x, double y, double h, boolean xDirection) {
+   private boolean doLSLocalization(double x, double y, double h, boolean xDirection) {
       
-      double angleC, distPastLine;
+      double angleC, distPastLine, overshoot;
       double line1, line2;
+      double [] pos = new double [3];
+      LineDetector first, second;
       
-      int lightL = 1000, lightR = 1000;
-      boolean leftFirst;
+      // The coordinate along the direction of travel
+      int axis = (xDirection ? 0 : 1);
       
-      // Turn on the floodlights
-      lsL.setFloodlight(true);
-      lsR.setFloodlight(true);
+      // Sample both light sensors, without the grid snapper
+      boolean snapping = pauseGridSnapper();
+      LineDetector.left.start();
+      LineDetector.right.start();
       
       // Back up a little bit
       Navigation.goForward(odo, -10);
       
-      // Drive up to the line
-      robot.setSpeeds(FSPEED, 0);
-      
-      while(lightL > THRESHOLD && lightR > THRESHOLD){
-         lightL = lsL.getNormalizedLightValue();
-         lightR = lsR.getNormalizedLightValue();
+      // Drive up to the line, and latch the position of the first LS line
+      // hit, as it was when sampled
+      first = awaitLine(LineDetector.left, LineDetector.right);
+      if (first != null) {
+         odo.getPoseAt(first.getHitTime(), pos);
+         line1 = pos[axis];
+      } else {
+         line1 = 0;
       }
       
-      // Latch y-position of first LS line hit
-      robot.setSpeeds(0, 0);
-      line1 = odo.getY();
-      
-
-      
-      // Back up a bit
-      Navigation.goForward(odo, -3);
-      
-      // If the left LS hit first, turn its light off and poll the right one
-      // until it hits a line, or else vice versa.
-      if (lightL <= THRESHOLD){
-         leftFirst = true;
-         lsL.setFloodlight(false);
-         
-         lightR = 1000;
-         
-         robot.setSpeeds(FSPEED, 0);
-         
-         while(lightR > THRESHOLD){
-            lightR = lsR.getNormalizedLightValue();
-         }
-         
-      } else {
-         leftFirst = false;
-         lsR.setFloodlight(false);
-         
-         lightL = 1000;
-         
-         robot.setSpeeds(FSPEED, 0);
-         
-         while(lightL > THRESHOLD){
-            lightL = lsL.getNormalizedLightValue();
-         }
-         
+      // Back up a bit, and stop the sensor which hit first, so only the
+      // other one is polled until it hits the line too
+      second = null;
+      if (first != null) {
+         Navigation.goForward(odo, -3);
+         first.stop();
+         second = awaitLine(first == LineDetector.left ? LineDetector.right : LineDetector.left, null);
       }
       
-      // latch y-position of second LS line hit
-      robot.setSpeeds(0, 0);
-      line2 = odo.getY();
+      LineDetector.left.stop();
+      LineDetector.right.stop();
+      if (snapping)
+         gs.enable();
       
-
+      if (second == null)
+         return false;
+      
+      // latch the position of second LS line hit, as it was when sampled,
+      // and how far the robot went past it before stopping
+      odo.getPoseAt(second.getHitTime(), pos);
+      line2 = pos[axis];
+      overshoot = (xDirection ? odo.getX() : odo.getY()) - line2;
       
       // Compute the angle error of the robot.
       angleC = Trig.atan((line2 - line1)/LSDIST);
       distPastLine = (LSDIST/2)*Trig.sin(angleC);
       
       // Turn to correct angle.
-      if (leftFirst)
+      if (first.isLeft())
          Navigation.turnTo(odo, (xDirection ? 90 - angleC : -angleC));
       else
          Navigation.turnTo(odo, (xDirection ? 90 + angleC : angleC));
       
       // Back up, to end up exactly over the line.
-      Navigation.goForward(odo, -(distPastLine + LSOFFSET));
+      Navigation.goForward(odo, -(distPastLine + LSOFFSET + overshoot));
       
       // Set new, correct position
       odo.setPosition(new double [] {x, y, h}, new boolean [] {xDirection, !xDirection, true});
       
-      // Turn off the lights
-      lsL.setFloodlight(false);
-      lsR.setFloodlight(false);
+      return true;
+   }
+   
+   /**
+    * Drives forward slowly until a line detector crosses a line, checking
+    * them after each odometer update. Gives up once the robot has driven a
+    * tile, has not moved for MotionExecutor.STALL_TIME, or has taken twice
+    * the time that should take.
+    * 
+    * @param a A started line detector.
+    * @param b Another started line detector, or null.
+    * 
+    * @return The detector which crossed a line first, or null if none did.
+    */
+   private LineDetector awaitLine(LineDetector a, LineDetector b) {
       
-
+      double [] start = new double [3], pos = new double [3], moved = new double [3];
+      LineDetector hit = null;
+      
+      long now = System.currentTimeMillis();
+      long deadline = now + (long)(2000.0 * PoseEstimator.TILE / FSPEED);
+      long moveTime = now;
+      
+      int countA = a.getHits();
+      int countB = (b == null ? 0 : b.getHits());
+      
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen = updates.getGeneration();
+      
+      odo.getPosition(start);
+      odo.getPosition(moved);
+      robot.setSpeeds(FSPEED, 0);
+      
+      while (hit == null) {
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
+         now = System.currentTimeMillis();
+         
+         if (a.getHits() != countA)
+            hit = a;
+         else if (b != null && b.getHits() != countB)
+            hit = b;
+         
+         odo.getPosition(pos);
+         if (distance(start, pos) > PoseEstimator.TILE)
+            break;
+         
+         // Give up if the robot is blocked, or too slow
+         if (distance(moved, pos) > MotionExecutor.STALL_DISTANCE) {
+            odo.getPosition(moved);
+            moveTime = now;
+         } else if (now - moveTime > MotionExecutor.STALL_TIME) {
+            break;
+         }
+         if (now > deadline || MotionExecutor.cancelRequested())
+            break;
+      }
+      
+      robot.setSpeeds(0, 0);
+      return hit;
+   }
+   
+   /**
+    * Computes the distance between two positions.
+    * 
+    * @param from The first position, x and y.
+    * @param to The second position, x and y.
+    * 
+    * @return The distance, in cm.
+    */
+   private static double distance(double [] from, double [] to) {
+      double dx = to[0] - from[0], dy = to[1] - from[1];
+      return Math.sqrt(dx * dx + dy * dy);
    }
    
    /**
@@ -161,28 +220,257 @@ public class Localizer {
     * @param x The robot's new x coordinate, in cm.
     * @param y The robot's new y coordinate, in cm.
     * @param h The robot's new orientation, in degrees.
+    * 
+    * @return True if the robot was localized; false if a line was not
+    * found, in which case the odometer is only set for the lines found.
     */
-   public void gridSnapTo(double x, double y, double h){
+   public boolean gridSnapTo(double x, double y, double h){
       
       // Localize y
-      doLSLocalization(x, y, h, false);
+      if (!doLSLocalization(x, y, h, false))
+         return false;
       Navigation.turnTo(odo, 90);
       // Localize x
-      doLSLocalization(x, y, h, true);
+      if (!doLSLocalization(x, y, h, true))
+         return false;
       Navigation.turnTo(odo, -90);
       // Set new position
       odo.resetMotorTachos();
       odo.setPosition(new double [] {x, y, h}, new boolean [] {true, true, true});
       
+      return true;
+   }
+   
+   /**
+    * Resumes from the last odometer checkpoint, instead of localizing from
+    * scratch. The checkpoint is only trusted if the next line crossing
+    * agrees with it, which takes at most one tile of driving.
+    * 
+    * @param checkpoint The checkpoint to resume from.
+    * 
+    * @return True if the checkpoint was restored and checked; otherwise
+    * the robot must be localized again.
+    */
+   public boolean resume(OdometerCheckpoint checkpoint) {
+      return checkpoint.restore() && checkLineCrossing();
+   }
+   
+   /**
+    * Set the grid snapper listening to the line detectors, so that it is
+    * paused while the localizer uses the line crosses itself.
+    * 
+    * @param gs_ The robot's grid snapper, or null if none is used.
+    */
+   public void setGridSnapper(GridSnapper gs_) {
+      gs = gs_;
+   }
+   
+   /**
+    * Pauses the grid snapper, if it is enabled.
+    * 
+    * @return True if the grid snapper was enabled, and must be enabled again.
+    */
+   private boolean pauseGridSnapper() {
+      boolean snapping = (gs != null && gs.isEnabled());
+      if (snapping)
+         gs.disable();
+      return snapping;
+   }
+   
+   /**
+    * Checks the odometer against the next gridline. The robot drives
+    * forward along its current cardinal direction until both line detectors
+    * have crossed a line, and compares where and at which angle they crossed
+    * it with the odometer. If both agree within CHECK_POSITION_ERROR and
+    * CHECK_HEADING_ERROR, the odometer is corrected along the direction of
+    * travel and its orientation is set to the measured one.
+    * 
+    * The detectors are checked after each odometer update. The check gives
+    * up once the robot has driven past the next line, has not moved for
+    * MotionExecutor.STALL_TIME, or has taken twice the time the drive
+    * should take.
+    * 
+    * @return True if the odometer agrees with the line crossing.
+    */
+   public boolean checkLineCrossing() {
+      
+      double [] pos = new double [3];
+      double [] start = new double [3];
+      double hitL = 0, hitR = 0;
+      boolean leftHit = false, rightHit = false;
+      
+      // The coordinate along the direction of travel, and its sign
+      int dir = odo.getDirection();
+      int axis = (dir % 2 == 1 ? 0 : 1);
+      double sign = (dir < 2 ? 1.0 : -1.0);
+      
+      // Drive for at most a tile, plus the lag between both sensors at the
+      // largest accepted angle, in at most twice the time it takes
+      double range = PoseEstimator.TILE + LSDIST * Trig.sin(CHECK_HEADING_ERROR);
+      long now = System.currentTimeMillis();
+      long deadline = now + (long)(2000.0 * range / FSPEED);
+      long moveTime = now;
+      double movePos;
+      
+      // Count the line crosses from now on, without the grid snapper
+      boolean snapping = pauseGridSnapper();
+      LineDetector.left.start();
+      LineDetector.right.start();
+      int countL = LineDetector.left.getHits();
+      int countR = LineDetector.right.getHits();
+      
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen = updates.getGeneration();
+      
+      odo.getPosition(start);
+      movePos = start[axis];
+      robot.setSpeeds(FSPEED, 0);
+      
+      while (!(leftHit && rightHit)) {
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
+         now = System.currentTimeMillis();
+         
+         // Latch the position of each line cross, as it was when sampled
+         if (!leftHit && LineDetector.left.getHits() != countL) {
+            odo.getPoseAt(LineDetector.left.getHitTime(), pos);
+            hitL = sign * pos[axis];
+            leftHit = true;
+         }
+         if (!rightHit && LineDetector.right.getHits() != countR) {
+            odo.getPoseAt(LineDetector.right.getHitTime(), pos);
+            hitR = sign * pos[axis];
+            rightHit = true;
+         }
+         
+         odo.getPosition(pos);
+         if (sign * (pos[axis] - start[axis]) > range)
+            break;
+         
+         // Give up if the robot is blocked, or too slow
+         if (Math.abs(pos[axis] - movePos) > MotionExecutor.STALL_DISTANCE) {
+            movePos = pos[axis];
+            moveTime = now;
+         } else if (now - moveTime > MotionExecutor.STALL_TIME) {
+            break;
+         }
+         if (now > deadline || MotionExecutor.cancelRequested())
+            break;
+      }
+      
+      robot.setSpeeds(0, 0);
+      LineDetector.left.stop();
+      LineDetector.right.stop();
+      if (snapping)
+         gs.enable();
+      
+      if (!(leftHit && rightHit))
+         return false;
+      
+      // The left sensor crosses first when the robot is turned clockwise.
+      // Both sensors sit LSOFFSET behind the wheel axis, so the axis was
+      // that far past the line when their midpoint crossed it.
+      double angle = Trig.atan((hitR - hitL) / LSDIST);
+      double line = (hitL + hitR) / 2.0 - LSOFFSET;
+      double error = line - Math.round(line / PoseEstimator.TILE) * PoseEstimator.TILE;
+      double cardinal = dir * 90.0;
+      double headingError = Odometer.minimumAngleFromTo(cardinal + angle, odo.getTheta());
+      
+      if (Math.abs(error) > CHECK_POSITION_ERROR || Math.abs(headingError) > CHECK_HEADING_ERROR)
+         return false;
+      
+      // Correct the odometer, which has moved on since the crossing
+      odo.getPosition(pos);
+      pos[axis] -= sign * error;
+      pos[2] = Odometer.fixAngle(cardinal + angle);
+      odo.setPosition(pos, new boolean [] {axis == 0, axis == 1, true});
+      
+      return true;
+   }
+   
+   /**
+    * Performs Monte Carlo localization with the ultrasonic sensor, which
+    * works from any starting orientation. The robot slowly spins in place
+    * while every new distance weighs the particles against the course walls,
+    * until they agree on a pose or the robot has made MCL_MAX_TURNS turns.
+    * The particles are spread over the starting quadrant, since the course
+    * walls alone cannot tell its corners apart.
+    * 
+    * @param pf The particle localizer to use.
+    * 
+    * @return True if the particles converged, in which case the odometer
+    * is set to their estimate.
+    */
+   public boolean doMCLocalization(ParticleLocalizer pf) {
+      
+      double [] last = new double [3], curr = new double [3], est = new double [5];
+      UpdateSignal updates = usp.getUpdateSignal();
+      int gen = updates.getGeneration();
+      boolean converged = false;
+      double turned = 0.0;
+      
+      pf.spread(PoseEstimator.WALL_MIN, PoseEstimator.WALL_MIN,
+                PoseEstimator.WALL_MAX / 2, PoseEstimator.WALL_MAX / 2);
+      odo.getPosition(last);
+      
+      robot.setSpeeds(0, RSPEED);
+      
+      while (!converged && turned < 360.0 * MCL_MAX_TURNS) {
+         
+         // wait for a new distance
+         int next = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
+         if (next == gen)
+            continue;
+         gen = next;
+         
+         // move the particles by the odometer's motion since the last distance
+         odo.getPosition(curr);
+         double dx = curr[0] - last[0], dy = curr[1] - last[1];
+         double dTheta = Odometer.minimumAngleFromTo(last[2], curr[2]);
+         pf.move(Math.sqrt(dx * dx + dy * dy), dTheta);
+         turned += Math.abs(dTheta);
+         last[0] = curr[0];
+         last[1] = curr[1];
+         last[2] = curr[2];
+         
+         pf.measure(usp.getDistHi(), usp.filter);
+         if (pf.getEffectiveCount() < pf.getCount() / 2)
+            pf.resample();
+         
+         // only trust the estimate once a full turn has been seen
+         pf.getEstimate(est);
+         converged = turned >= 360.0 && est[3] < MCL_POSITION_SPREAD && est[4] < MCL_HEADING_SPREAD;
+      }
+      
+      robot.setSpeeds(0, 0);
+      
+      if (converged) {
+         
+         // the particles tracked the robot up to the last distance; add the
+         // rotation made while stopping
+         odo.getPosition(curr);
+         est[2] += Odometer.minimumAngleFromTo(last[2], curr[2]);
+         odo.setPosition(new double [] {est[0], est[1], Odometer.fixAngle(est[2])},
+                         new boolean [] {true, true, true});
+      }
+      
+      return converged;
    }
    
    /**
     * Performs ultrasonic sensor based localization (falling edge) to have the 
     * robot oriented roughly North for the LS localization.
+    * 
+    * @return True if both walls were found, false if the motion was
+    * cancelled or a wall edge did not come within EDGE_TIMEOUT, in which
+    * case the robot is stopped and the odometer left as it was.
     */
-   public void doUSLocalization() {
+   public boolean doUSLocalization() {
+      
+      double angleA, angleB;
       
-      double angleA, angleB, angleC;
+      // Edges of the wall, seen by both sensors, with the heading at the sample
+      ThresholdSubscription wall = new ThresholdSubscription(odo, ThresholdSubscription.BOTH, WALLDIST, 5);
+      usp.subscribe(wall);
       
       try { Thread.sleep(250); } catch (Exception e) {}
       
@@ -191,26 +479,32 @@ public class Localizer {
       if (usp.getDistLo() < WALLDIST + 5)
          Navigation.turnRelative(odo, 135);
       
-      // rotate the robot until it sees no wall
+      // rotate the robot until it sees no wall, then keep rotating until
+      // it sees a wall, and latch the angle the robot had when the wall
+      // was pinged
       robot.setSpeeds(0, RSPEED);
-      while (usp.getDistLo() < WALLDIST + 5 || usp.getDistHi() < WALLDIST + 5);
-      
-      // keep rotating until the robot sees a wall, then latch the angle
-      while (usp.getDistLo() > WALLDIST || usp.getDistHi() > WALLDIST);
-      angleA = odo.getTheta();
+      if (!awaitWallEdge(wall, ThresholdSubscription.RISING)
+          || !awaitWallEdge(wall, ThresholdSubscription.FALLING)) {
+         usp.unsubscribe(wall);
+         return false;
+      }
+      angleA = wall.getTheta();
       
  
       
       // Turn away from the current wall
       Navigation.turnRelative(odo, -90);
       
-      // switch direction and wait until it sees no wall
+      // switch direction and wait until it sees no wall, then keep
+      // rotating until it sees a wall, and latch the angle
       robot.setSpeeds(0, -RSPEED);
-      while (usp.getDistLo() < WALLDIST + 5 || usp.getDistHi() < WALLDIST + 5);
-      
-      // keep rotating until the robot sees a wall, then latch the angle
-      while (usp.getDistLo() > WALLDIST || usp.getDistHi() > WALLDIST);
-      angleB = odo.getTheta();
+      if (!awaitWallEdge(wall, ThresholdSubscription.RISING)
+          || !awaitWallEdge(wall, ThresholdSubscription.FALLING)) {
+         usp.unsubscribe(wall);
+         return false;
+      }
+      angleB = wall.getTheta();
+      usp.unsubscribe(wall);
       
    
       
@@ -224,7 +518,31 @@ public class Localizer {
       // update the odometer position
       odo.setPosition(new double [] {0.0, 0.0, 0.0}, new boolean [] {true, true, true});
       
-
+      return true;
+   }
+   
+   /**
+    * Waits for an edge of the wall while the robot turns, MAX_WAIT at a
+    * time, so that a cancellation is noticed. Stops the robot if the edge
+    * does not come.
+    * 
+    * @param wall The subscription to the wall's edges.
+    * @param edge FALLING or RISING.
+    * 
+    * @return True if the edge was seen, false if the motion was cancelled
+    * or EDGE_TIMEOUT elapsed first.
+    */
+   private boolean awaitWallEdge(ThresholdSubscription wall, int edge) {
+      long end = System.currentTimeMillis() + EDGE_TIMEOUT;
+      
+      while (!wall.awaitEdge(edge, UpdateSignal.MAX_WAIT)) {
+         if (MotionExecutor.cancelRequested() || System.currentTimeMillis() >= end) {
+            robot.setSpeeds(0, 0);
+            return false;
+         }
+      }
+      
+      return true;
    }
    
 }
\ No newline at end of file
@@ -29,6 +29,10 @@ public class MainManager {
 	 public static double topUSDist = 13; 
 	 public static boolean pallet = false;
 	 public static final double FOOT = 30.48;
+	 
+	 // set to fail forward motions before they run into an obstacle; the guard
+	 // needs a high and a low ultrasonic sensor on S1 and S2, which are not wired by default
+	 public static final boolean OBSTACLE_GUARD = false;
 
 	public static void main(String[] args) {
 		
@@ -50,18 +54,36 @@ public class MainManager {
 		UltrasonicDataCollector ultrasonicDataCollector;
 		UltrasonicLocalizer ultrasonicLocalizer;
 		MotorController motorController;
-		Timer odometerTimer, controllerTimer;
+		Timer controllerTimer;
 		LightSensor lightSensor;
 		Controller controller;
 	
-		//instantiate odometer and its timer
+		//instantiate odometer, which runs its own timer
 		TwoWheeledRobot patBot = new TwoWheeledRobot(Motor.A, Motor.B);
 		Odometer odometer = new Odometer(patBot, true);	
-		odometerTimer = new Timer(50, odometer);
 		GridSnapper gs = new GridSnapper(odometer, true);
 		LightSensor lsL = new LightSensor(SensorPort.S3);
 	    LightSensor lsR = new LightSensor(SensorPort.S4);
 		
+		// instantiate the ultrasonic poller and the obstacle guard, if the robot is wired for them
+		USPoller usp = null;
+		if (OBSTACLE_GUARD) {
+			usp = new USPoller(new UltrasonicSensor(SensorPort.S1), new UltrasonicSensor(SensorPort.S2));
+			MotionExecutor.setObstacleGuard(usp, MotionExecutor.GUARD_DISTANCE);
+		}
+		
+		// resume from the last checkpoint if the next line crossing agrees
+		// with it; otherwise the controller localizes from scratch
+		Localizer localizer = new Localizer(odometer, usp);
+		localizer.setGridSnapper(gs);
+		OdometerCheckpoint checkpoint = new OdometerCheckpoint(odometer, gs);
+		boolean resumed = localizer.resume(checkpoint);
+		if (!resumed) {
+			// drop whatever pose the checkpoint left, as on a cold start
+			odometer.setPosition(new double [] {0.0, 0.0, 0.0}, new boolean [] {true, true, true});
+		}
+		Navigation.setLocalizer(localizer);
+		
 		
 		// instantiate ultrasonicDataCollecter object
 		ultrasonicDataCollector = new UltrasonicDataCollector(new UltrasonicSensor(SensorPort.S4));
@@ -78,15 +100,25 @@ public class MainManager {
 		//instantiate Controller object
 		controller = new Controller(ultrasonicLocalizer, odometer, ultrasonicDataCollector, motorController, lightSensor);
 		
+		// skip the controller's ultrasonic localization if the robot resumed,
+		// and keep checkpointing once the pose is known
+		if (resumed) {
+			controller.setLocalized();
+			checkpoint.start();
+		} else controller.setCheckpoint(checkpoint);
+		
 		//instantiate controller timer
 		controllerTimer = new Timer(50, controller);
 		
-		//start timers
+		//start controller timer
 		controllerTimer.start();
-		odometerTimer.start();
 		
-		// exit if escape is pressed
+		// exit if escape is pressed, stopping every motor first
 		while(Button.readButtons() != Button.ID_ESCAPE);
+		MotionExecutor.emergencyStop();
+		checkpoint.stop();
+		motorController.abort();
+		MasterCommunication.abort();
 		System.exit(0);
 		
 	}
@@ -12,6 +12,39 @@ public class MasterCommunication {
   * ************************************************************************
   */
   
+ /** Command code which aborts the slave's current move. */
+ public static final int ABORT = 11;
+ 
+ // Whether the slave completed the last command, or it was aborted
+ private static volatile boolean completed = true;
+ 
+  /**
+  * *******************************************************************
+  *         abort()
+  *  ******************************************************************
+  *  Stops the claw or arm move in progress on the slave, within one of
+  *  its ticks. Called from another thread than the one waiting for the
+  *  command, which then returns with wasCompleted() false.
+  */
+ public static void abort(){
+             try {
+                     MainManager.output.writeInt(ABORT);
+                     MainManager.output.flush();
+             } 
+             catch (Exception e){}
+ }
+ 
+  /**
+  * *******************************************************************
+  *         wasCompleted()
+  *  ******************************************************************
+  *  Tells whether the slave completed the last command, rather than
+  *  aborting it.
+  */
+ public static boolean wasCompleted(){
+        return completed;
+ }
+ 
 
   /**
   * *******************************************************************
@@ -39,10 +72,11 @@ public class MasterCommunication {
              }
    }
      
-      //Get confirmation that command was executed
+      //Get confirmation that command was executed, or aborted
       while (true){
               try {
-                      if (MainManager.input.readBoolean()) break;
+                      completed = MainManager.input.readBoolean();
+                      break;
               } 
               catch (Exception e) {
                       open(); //Recursive... 
@@ -78,10 +112,11 @@ public class MasterCommunication {
             }
    }
     
-      //Get confirmation that command was executed
+      //Get confirmation that command was executed, or aborted
       while (true){
               try {
-                      if (MainManager.input.readBoolean()) break;
+                      completed = MainManager.input.readBoolean();
+                      break;
               } 
               catch (Exception e) {
                       close(); //Recursive... 
@@ -116,10 +151,11 @@ public class MasterCommunication {
            }
    }
    
-      //Get confirmation that command was executed
+      //Get confirmation that command was executed, or aborted
       while (true){
               try {
-                      if (MainManager.input.readBoolean()) break;
+                      completed = MainManager.input.readBoolean();
+                      break;
               } 
               catch (Exception e) {
                       lower(); //Recursive... 
@@ -155,10 +191,11 @@ public class MasterCommunication {
            }
    }
    
-      //Get confirmation that command was executed
+      //Get confirmation that command was executed, or aborted
       while (true){
               try {
-                      if (MainManager.input.readBoolean()) break;
+                      completed = MainManager.input.readBoolean();
+                      break;
               } 
               catch (Exception e) {
                       raise(); //Recursive... 
@@ -0,0 +1,202 @@
+package master;
+
+/**
+ * Streaming median filter over the last few readings of a sensor, which
+ * removes single reading spikes, such as an ultrasonic ping which missed
+ * its echo or heard a stray one.
+ *
+ * The readings are kept twice: in arrival order, in a ring buffer, and in
+ * sorted order, so each new reading replaces the oldest one with a binary
+ * search and a short array shift, and the median is read in the middle.
+ * Nothing is allocated after construction.
+ *
+ * The shift makes an update O(n) rather than O(log n), which is deliberate.
+ * Windows are at most MAX_WINDOW readings, so the shift is a single
+ * arraycopy of a few ints. The Hampel spread is a median absolute
+ * deviation, which takes a pass over the window for every reading in any
+ * case. A heap or skip list would make the median O(log n) but could not
+ * give the deviation, and would chase pointers the sorted array avoids.
+ *
+ * Given an outlier threshold, it works as a Hampel filter instead: readings
+ * are passed through unchanged, unless they are further from the median than
+ * the threshold times the spread of the window (the median absolute
+ * deviation, scaled to a standard deviation), in which case the median is
+ * returned instead. Real changes then come through without delay, once they
+ * are no longer outliers.
+ *
+ *
+ * @see USPoller
+ * @see UltrasonicDataCollector
+ */
+public class MedianFilter {
+   
+   /** Defines the default window, in readings. */
+   public static final int DEFAULT_WINDOW = 5;
+   /** Defines the largest window, in readings, up to which the sorted array's O(n) updates stay cheap. */
+   public static final int MAX_WINDOW = 31;
+   /** Defines the default outlier threshold, in standard deviations. */
+   public static final double DEFAULT_THRESHOLD = 3.0;
+   /** Defines the smallest spread considered, so a steady window does not reject all changes. */
+   public static final int MIN_DEVIATION = 2;
+   /** Scales the median absolute deviation to a standard deviation, for normal noise. */
+   private static final double MAD_SCALE = 1.4826;
+   
+   private final int [] ring, sorted;
+   private final double threshold;
+   
+   // Position of the oldest reading in the ring
+   private int oldest;
+   private int outliers;
+   
+   /**
+    * Creates a Hampel filter, which replaces the readings further than the
+    * threshold from the median of the window.
+    *
+    * @param window The number of readings in the window, odd, at most MAX_WINDOW.
+    * @param threshold_ The outlier threshold, in standard deviations, or 0 to always return the median.
+    * @param initial The reading the window starts filled with.
+    *
+    * @throws IllegalArgumentException If the window is not between 1 and MAX_WINDOW.
+    */
+   public MedianFilter(int window, double threshold_, int initial) {
+      if (window < 1 || window > MAX_WINDOW)
+         throw new IllegalArgumentException("Bad window: " + window);
+      
+      ring = new int [window];
+      sorted = new int [window];
+      threshold = threshold_;
+      reset(initial);
+   }
+   
+   /**
+    * Creates a median filter, which always returns the median of the window.
+    *
+    * @param window The number of readings in the window, odd, at most MAX_WINDOW.
+    * @param initial The reading the window starts filled with.
+    *
+    * @throws IllegalArgumentException If the window is not between 1 and MAX_WINDOW.
+    */
+   public MedianFilter(int window, int initial) {
+      this(window, 0.0, initial);
+   }
+   
+   /**
+    * Fills the window with a reading, forgetting the previous ones.
+    *
+    * @param value The reading to fill the window with.
+    */
+   public void reset(int value) {
+      for (int i = 0; i < ring.length; i++) {
+         ring[i] = value;
+         sorted[i] = value;
+      }
+      oldest = 0;
+   }
+   
+   /**
+    * Adds a reading to the window, in place of the oldest one, and filters it.
+    *
+    * @param value The new reading.
+    *
+    * @return The median of the window, or with an outlier threshold, the
+    * reading itself unless it is an outlier.
+    */
+   public int filter(int value) {
+      int old = ring[oldest];
+      ring[oldest] = value;
+      oldest = (oldest + 1) % ring.length;
+      
+      // Replace the oldest reading in the sorted window, shifting the ones in between
+      int from = find(old), to = find(value);
+      if (to > from) {
+         to--;
+         System.arraycopy(sorted, from + 1, sorted, from, to - from);
+      } else if (to < from) {
+         System.arraycopy(sorted, to, sorted, to + 1, from - to);
+      }
+      sorted[to] = value;
+      
+      int median = getMedian();
+      if (threshold <= 0.0)
+         return median;
+      
+      int deviation = Math.abs(value - median);
+      if (deviation > threshold * Math.max(MAD_SCALE * getDeviation(), MIN_DEVIATION)) {
+         outliers++;
+         return median;
+      }
+      return value;
+   }
+   
+   /**
+    * Finds the position of a reading in the sorted window, or where it
+    * would be inserted, with a binary search.
+    *
+    * @param value The reading to find.
+    *
+    * @return The position of the first reading not smaller than value.
+    */
+   private int find(int value) {
+      int low = 0, high = sorted.length;
+      
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (sorted[mid] < value)
+            low = mid + 1;
+         else
+            high = mid;
+      }
+      
+      return low;
+   }
+   
+   /**
+    * Get the median of the window.
+    *
+    * @return The median reading.
+    */
+   public int getMedian() {
+      return sorted[sorted.length / 2];
+   }
+   
+   /**
+    * Computes the median absolute deviation of the window, merging the
+    * readings below and above the median outward, by their distance to it.
+    *
+    * @return The median distance of the readings to the median.
+    */
+   public int getDeviation() {
+      int m = sorted.length / 2;
+      int median = sorted[m];
+      int below = m - 1, above = m + 1, deviation = 0;
+      
+      // The median itself is the closest, at 0
+      for (int k = 0; k < m; k++) {
+         if (above >= sorted.length || (below >= 0 && median - sorted[below] <= sorted[above] - median))
+            deviation = median - sorted[below--];
+         else
+            deviation = sorted[above++] - median;
+      }
+      
+      return deviation;
+   }
+   
+   /**
+    * Get the number of readings replaced as outliers.
+    *
+    * @return The number of outliers.
+    */
+   public int getOutliers() {
+      return outliers;
+   }
+   
+   /**
+    * Get the number of readings in the window.
+    *
+    * @return The window size.
+    */
+   public int getWindow() {
+      return ring.length;
+   }
+
+}
@@ -0,0 +1,240 @@
+package master;
+
+/**
+ * Handle to a motion command queued on the MotionExecutor. The caller can
+ * poll it, wait for it to finish with a timeout, or cancel it, while the
+ * robot drives on the executor's control thread.
+ *
+ * A motion can also be given a deadline. It fails, and the robot stops,
+ * if it is still running by then, if the robot stalls, or if an obstacle
+ * comes too close (see MotionExecutor.setObstacleGuard()).
+ *
+ *
+ * @see MotionExecutor
+ * @see Navigation
+ */
+public class Motion {
+   
+   /** Drives forward a given distance. */
+   public static final int FORWARD = 0;
+   /** Turns to a given absolute orientation. */
+   public static final int TURN_TO = 1;
+   /** Turns by a given angle, relative to the orientation when the motion starts. */
+   public static final int TURN_RELATIVE = 2;
+   /** Navigates to a given point, around obstacles. */
+   public static final int GO_TO_POINT = 3;
+   /** Follows a path of waypoints. */
+   public static final int FOLLOW_PATH = 4;
+   /** Goes through a list of waypoints without stopping, around obstacles. */
+   public static final int GO_THROUGH = 5;
+   
+   /** The motion is waiting in the queue. */
+   public static final int PENDING = 0;
+   /** The motion is being executed. */
+   public static final int RUNNING = 1;
+   /** The motion completed. */
+   public static final int DONE = 2;
+   /** The motion was cancelled before completing. */
+   public static final int CANCELLED = 3;
+   /** The motion stopped short of its target. */
+   public static final int FAILED = 4;
+   
+   /** The motion did not fail, or did not converge on its target. */
+   public static final int NO_FAILURE = 0;
+   /** The motion was still running at its deadline. */
+   public static final int TIMED_OUT = 1;
+   /** The robot did not move while commanded to. */
+   public static final int STALLED = 2;
+   /** An obstacle came closer than the executor's obstacle guard. */
+   public static final int BLOCKED = 3;
+   
+   final int type;
+   final Odometer odo;
+   final USPoller usp;
+   final double a, b;
+   final PathTracker tracker;
+   
+   private int state = PENDING;
+   private volatile boolean cancelRequested;
+   private volatile long deadline;
+   private volatile int failure = NO_FAILURE;
+   
+   /**
+    * Creates a motion command. Use the Navigation methods to queue one.
+    *
+    * @param type_ The type of motion (FORWARD, TURN_TO, TURN_RELATIVE or GO_TO_POINT).
+    * @param odo_ The odometer tracking the robot's movement.
+    * @param usp_ The robot's ultrasonic poller, for GO_TO_POINT only.
+    * @param a_ The distance, angle, or x coordinate of the motion.
+    * @param b_ The y coordinate of the motion, for GO_TO_POINT only.
+    */
+   Motion(int type_, Odometer odo_, USPoller usp_, double a_, double b_) {
+      type = type_;
+      odo = odo_;
+      usp = usp_;
+      a = a_;
+      b = b_;
+      tracker = null;
+   }
+   
+   /**
+    * Creates a path following command.
+    *
+    * @param type_ The type of motion (FOLLOW_PATH or GO_THROUGH).
+    * @param odo_ The odometer tracking the robot's movement.
+    * @param usp_ The robot's ultrasonic poller, for GO_THROUGH only.
+    * @param tracker_ The path tracker, on which the path has been set.
+    */
+   Motion(int type_, Odometer odo_, USPoller usp_, PathTracker tracker_) {
+      type = type_;
+      odo = odo_;
+      usp = usp_;
+      a = 0;
+      b = 0;
+      tracker = tracker_;
+   }
+   
+   /**
+    * Get the state of this motion.
+    *
+    * @return PENDING, RUNNING, DONE, CANCELLED or FAILED.
+    */
+   public synchronized int getState() {
+      return state;
+   }
+   
+   /**
+    * Tells why this motion failed.
+    *
+    * @return NO_FAILURE, TIMED_OUT, STALLED or BLOCKED.
+    */
+   public int getFailure() {
+      return failure;
+   }
+   
+   /**
+    * Tells whether this motion is over, either completed, cancelled or failed.
+    *
+    * @return True if the motion is over.
+    */
+   public synchronized boolean isFinished() {
+      return state >= DONE;
+   }
+   
+   /**
+    * Waits until this motion is over, or the timeout elapses.
+    *
+    * @param timeout The longest time to wait, in ms, or 0 to wait forever.
+    *
+    * @return True if the motion is over.
+    */
+   public synchronized boolean waitFor(long timeout) {
+      long end = System.currentTimeMillis() + timeout;
+      
+      while (state < DONE) {
+         long remaining = end - System.currentTimeMillis();
+         if (timeout > 0 && remaining <= 0)
+            break;
+         
+         try {
+            wait(timeout > 0 ? remaining : 0);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      
+      return state >= DONE;
+   }
+   
+   /**
+    * Waits until this motion is over.
+    *
+    * @return True if the motion completed, false if it was cancelled or failed.
+    */
+   public boolean waitFor() {
+      waitFor(0);
+      return getState() == DONE;
+   }
+   
+   /**
+    * Cancels this motion. A pending motion will never start, and a running
+    * one stops the robot as soon as the executor notices.
+    *
+    * @return False if the motion was already over.
+    */
+   public synchronized boolean cancel() {
+      if (state == PENDING) {
+         finish(CANCELLED);
+         return true;
+      }
+      
+      cancelRequested = (state == RUNNING);
+      return cancelRequested;
+   }
+   
+   /**
+    * Sets a deadline for this motion, after which it fails and the robot
+    * stops. The deadline counts from now, whether the motion started yet
+    * or not.
+    *
+    * @param timeout The time the motion is given, in ms.
+    */
+   public void setTimeout(long timeout) {
+      deadline = System.currentTimeMillis() + timeout;
+   }
+   
+   /**
+    * Tells whether this motion's deadline has passed.
+    *
+    * @param now The current time, in ms.
+    *
+    * @return True if the motion has a deadline, and it has passed.
+    */
+   boolean isPastDeadline(long now) {
+      return deadline != 0 && now > deadline;
+   }
+   
+   /**
+    * Records why this motion must stop, the first time it is called.
+    * Called by the executor, on its control thread.
+    *
+    * @param failure_ TIMED_OUT, STALLED or BLOCKED.
+    */
+   void fail(int failure_) {
+      if (failure == NO_FAILURE)
+         failure = failure_;
+   }
+   
+   /**
+    * Tells whether this motion was asked to stop.
+    *
+    * @return True if cancel() was called.
+    */
+   public boolean isCancelRequested() {
+      return cancelRequested || getState() == CANCELLED;
+   }
+   
+   /**
+    * Marks this motion as started, unless it was cancelled while pending.
+    *
+    * @return True if the motion should be executed.
+    */
+   synchronized boolean begin() {
+      if (state != PENDING)
+         return false;
+      
+      state = RUNNING;
+      return true;
+   }
+   
+   /**
+    * Marks this motion as over, and wakes up the threads waiting for it.
+    *
+    * @param result DONE, CANCELLED or FAILED.
+    */
+   synchronized void finish(int result) {
+      state = result;
+      notifyAll();
+   }
+
+}
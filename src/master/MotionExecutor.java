@@ -0,0 +1,265 @@
+package master;
+
+/**
+ * Control thread which executes the robot's motion commands, one at a time,
+ * in the order they were queued. Callers get a Motion handle back
+ * immediately, so they are free to sweep, communicate with the slave brick
+ * or update the map while the robot drives.
+ *
+ * Motion loops check cancelRequested() after each odometer update, so a
+ * motion stops within one control tick of being cancelled, passing its
+ * deadline, stalling, or an obstacle coming within the obstacle guard.
+ *
+ *
+ * @see Motion
+ * @see Navigation
+ */
+public class MotionExecutor extends Thread {
+   
+   /** Defines the maximum number of motions waiting to be executed. */
+   public static final int QUEUE_SIZE = 8;
+   /** Defines the time after which a robot which does not move while commanded to is stalled, in ms. */
+   public static final long STALL_TIME = 2000;
+   /** Defines the distance the robot must cover within STALL_TIME not to be stalled, in cm. */
+   public static final double STALL_DISTANCE = 1.0;
+   /** Defines the angle the robot must turn within STALL_TIME not to be stalled, in degrees. */
+   public static final double STALL_ANGLE = 2.0;
+   /** Defines the default obstacle guard distance, inside Navigation.CLEARANCE_NEAR, in cm. */
+   public static final int GUARD_DISTANCE = 15;
+   
+   private static volatile MotionExecutor executor;
+   
+   // Obstacle guard, which stops forward motions
+   private static volatile USPoller guard;
+   private static volatile int guardDistance;
+   
+   // Motion queue, guarded by this executor's monitor
+   private Motion [] queue;
+   private int head, count;
+   private volatile Motion current;
+   
+   // Last time and position at which the robot was seen moving, on the control thread
+   private long moveTime;
+   private double [] movePos = new double [3], pos = new double [3];
+   
+   /**
+    * Creates and starts a new executor thread.
+    */
+   private MotionExecutor() {
+      queue = new Motion [QUEUE_SIZE];
+      
+      this.setDaemon(true);
+      this.start();
+   }
+   
+   /**
+    * Get the robot's motion executor, which is started on first use.
+    *
+    * @return The motion executor.
+    */
+   public static synchronized MotionExecutor getExecutor() {
+      if (executor == null)
+         executor = new MotionExecutor();
+      
+      return executor;
+   }
+   
+   /**
+    * Queues a motion for execution. If the queue is full, waits until
+    * there is room for it.
+    *
+    * @param motion The motion to execute.
+    *
+    * @return The queued motion.
+    */
+   public synchronized Motion submit(Motion motion) {
+      while (count == QUEUE_SIZE) {
+         try {
+            wait();
+         } catch (InterruptedException e) {}
+      }
+      
+      queue[(head + count) % QUEUE_SIZE] = motion;
+      count++;
+      
+      notifyAll();
+      return motion;
+   }
+   
+   /**
+    * Cancels every queued motion, and the one being executed.
+    */
+   public synchronized void cancelAll() {
+      while (count > 0) {
+         queue[head].cancel();
+         queue[head] = null;
+         head = (head + 1) % QUEUE_SIZE;
+         count--;
+      }
+      
+      Motion m = current;
+      if (m != null)
+         m.cancel();
+      
+      notifyAll();
+   }
+   
+   /**
+    * Stops the robot at once: cancels every motion, and stops the wheels
+    * from the calling thread, without waiting for the control thread to
+    * notice. Call this on a mission abort.
+    */
+   public static void emergencyStop() {
+      MotionExecutor e = executor;
+      if (e == null)
+         return;
+      
+      Motion m = e.current;
+      e.cancelAll();
+      
+      if (m != null) {
+         TwoWheeledRobot robot = m.odo.getTwoWheeledRobot();
+         robot.releaseHeading();
+         robot.setSpeeds(0, 0);
+      }
+   }
+   
+   /**
+    * Sets the obstacle guard: forward motions fail as soon as an obstacle is
+    * seen closer than the given distance. It should be smaller than
+    * Navigation.CLEARANCE_NEAR, which goToPoint() drives up to.
+    *
+    * @param usp The robot's ultrasonic poller, or null to remove the guard.
+    * @param distance The distance below which the robot stops, in cm.
+    */
+   public static void setObstacleGuard(USPoller usp, int distance) {
+      guardDistance = distance;
+      guard = usp;
+   }
+   
+   /**
+    * Tells whether the calling thread is the executor's control thread,
+    * in which case motions must run inline rather than be queued.
+    *
+    * @return True if called from the control thread.
+    */
+   public static boolean onControlThread() {
+      return Thread.currentThread() == executor;
+   }
+   
+   /**
+    * Tells whether the motion being executed on the calling thread must
+    * stop: it was cancelled, its deadline passed, the robot stalled, or an
+    * obstacle is within the guard. Motion loops call this to stop early.
+    *
+    * @return True if the caller should stop its motion.
+    */
+   public static boolean cancelRequested() {
+      Thread t = Thread.currentThread();
+      if (t != executor)
+         return false;
+      
+      MotionExecutor e = (MotionExecutor)t;
+      Motion m = e.current;
+      if (m == null)
+         return false;
+      if (m.isCancelRequested() || m.getFailure() != Motion.NO_FAILURE)
+         return true;
+      
+      long now = System.currentTimeMillis();
+      TwoWheeledRobot robot = m.odo.getTwoWheeledRobot();
+      USPoller usp = guard;
+      
+      if (m.isPastDeadline(now))
+         m.fail(Motion.TIMED_OUT);
+      else if (usp != null && robot.getForwardSpeed() > 0.0 && usp.getDistHi() < guardDistance)
+         m.fail(Motion.BLOCKED);
+      else if (e.isStalled(robot, now))
+         m.fail(Motion.STALLED);
+      
+      return m.getFailure() != Motion.NO_FAILURE;
+   }
+   
+   /**
+    * Checks whether the robot has not moved for STALL_TIME while
+    * commanded to. Called on the control thread.
+    *
+    * @param robot The robot being driven.
+    * @param now The current time, in ms.
+    *
+    * @return True if the robot is stalled.
+    */
+   private boolean isStalled(TwoWheeledRobot robot, long now) {
+      current.odo.getPosition(pos);
+      
+      // standing still on purpose, or moving: start over
+      if ((robot.getForwardSpeed() == 0.0 && robot.getRotationSpeed() == 0.0)
+          || Math.abs(pos[0] - movePos[0]) + Math.abs(pos[1] - movePos[1]) > STALL_DISTANCE
+          || Math.abs(Odometer.minimumAngleFromTo(movePos[2], pos[2])) > STALL_ANGLE) {
+         moveTime = now;
+         movePos[0] = pos[0];
+         movePos[1] = pos[1];
+         movePos[2] = pos[2];
+         return false;
+      }
+      
+      return now - moveTime > STALL_TIME;
+   }
+   
+   /**
+    * Executes the queued motions, in order.
+    */
+   public void run() {
+      Motion m;
+      
+      while (true) {
+         synchronized (this) {
+            while (count == 0) {
+               try {
+                  wait();
+               } catch (InterruptedException e) {}
+            }
+            
+            m = queue[head];
+            queue[head] = null;
+            head = (head + 1) % QUEUE_SIZE;
+            count--;
+            
+            notifyAll();
+         }
+         
+         if (!m.begin())
+            continue;
+         
+         moveTime = System.currentTimeMillis();
+         m.odo.getPosition(movePos);
+         
+         // a motion which throws fails, and the control thread goes on
+         // to the next one
+         boolean completed;
+         current = m;
+         try {
+            completed = Navigation.execute(m);
+         } catch (RuntimeException e) {
+            TwoWheeledRobot robot = m.odo.getTwoWheeledRobot();
+            robot.releaseHeading();
+            robot.setSpeeds(0, 0);
+            m.finish(Motion.FAILED);
+            continue;
+         } finally {
+            current = null;
+         }
+         
+         if (m.isCancelRequested()) {
+            m.odo.getTwoWheeledRobot().setSpeeds(0, 0);
+            m.finish(Motion.CANCELLED);
+         } else if (!completed || m.getFailure() != Motion.NO_FAILURE) {
+            m.odo.getTwoWheeledRobot().setSpeeds(0, 0);
+            m.finish(Motion.FAILED);
+         } else {
+            m.finish(Motion.DONE);
+         }
+      }
+   }
+
+}
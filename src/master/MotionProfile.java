@@ -0,0 +1,192 @@
+package master;
+
+/**
+ * Velocity profile for straight and rotational moves, which plans an
+ * acceleration, a cruise and a deceleration phase. The speed is computed
+ * from the distance travelled and the distance remaining, as measured by
+ * the odometer, rather than from the time elapsed, so the robot always
+ * brakes in time to land on its target, whatever the motors actually did.
+ *
+ * Trapezoidal profiles accelerate and brake at a constant rate. S-curve
+ * profiles ease in and out of each ramp, with the same peak acceleration,
+ * which limits wheel slip at the cost of slightly longer ramps.
+ *
+ *
+ * @see Navigation
+ */
+public class MotionProfile {
+   
+   /** Constant acceleration ramps. */
+   public static final int TRAPEZOIDAL = 0;
+   /** Sinusoidal acceleration ramps, with no sudden change of acceleration. */
+   public static final int S_CURVE = 1;
+   
+   /** Defines the number of entries in the S-curve ramp table. */
+   private static final int TABLE_SIZE = 32;
+   
+   /**
+    * Normalized S-curve ramp: speed as a fraction of the cruise speed, as a
+    * function of the distance from the end where the robot is stopped, as a
+    * fraction of the ramp length. With v = (1 - cos(pi t / T)) / 2, the
+    * distance covered is (t - T / pi sin(pi t / T)) / 2, so the table is
+    * built by sampling the ramp in time.
+    */
+   private static final float [] S_RAMP = new float [TABLE_SIZE + 1];
+   
+   static {
+      int n = 8 * TABLE_SIZE, j = 0;
+      double prevU = 0.0, prevV = 0.0;
+      
+      for (int i = 1; i <= n; i++) {
+         double t = (double)i / n;
+         double u = t - Math.sin(Math.PI * t) / Math.PI;
+         double v = (1.0 - Math.cos(Math.PI * t)) / 2.0;
+         
+         // interpolate at each table position passed by this sample
+         while (j <= TABLE_SIZE && (double)j / TABLE_SIZE <= u) {
+            double k = ((double)j / TABLE_SIZE - prevU) / (u - prevU);
+            S_RAMP[j] = (float)(prevV + k * (v - prevV));
+            j++;
+         }
+         prevU = u;
+         prevV = v;
+      }
+      while (j <= TABLE_SIZE)
+         S_RAMP[j++] = 1.0f;
+   }
+   
+   private int type;
+   private double maxSpeed, accel, minSpeed;
+   private double rampLength;
+   private double length;
+   
+   /**
+    * Creates a new profile.
+    *
+    * @param type_ TRAPEZOIDAL or S_CURVE.
+    * @param maxSpeed_ The cruise speed, in cm/s or degrees/s.
+    * @param accel_ The peak acceleration, in cm/s^2 or degrees/s^2.
+    * @param minSpeed_ The lowest speed commanded, so the robot never stalls short of its target.
+    */
+   public MotionProfile(int type_, double maxSpeed_, double accel_, double minSpeed_) {
+      type = type_;
+      maxSpeed = maxSpeed_;
+      accel = accel_;
+      minSpeed = minSpeed_;
+      
+      // distance needed to reach the cruise speed from a stop
+      if (type == S_CURVE)
+         rampLength = Math.PI * maxSpeed * maxSpeed / (4.0 * accel);
+      else
+         rampLength = maxSpeed * maxSpeed / (2.0 * accel);
+   }
+   
+   /**
+    * Plans a move of the given length. If it is too short to reach the
+    * cruise speed, the robot starts braking as soon as it has accelerated
+    * halfway.
+    *
+    * @param length_ The length of the move, in cm or degrees.
+    */
+   public void plan(double length_) {
+      length = Math.abs(length_);
+   }
+   
+   /**
+    * Computes the speed at which the robot should move.
+    *
+    * @param travelled The distance travelled since the start of the move, in cm or degrees.
+    *
+    * @return The speed to command, between the minimum and cruise speeds.
+    */
+   public double getSpeed(double travelled) {
+      double remaining = length - Math.abs(travelled);
+      double speed = maxSpeed * Math.min(ramp(Math.abs(travelled)), ramp(remaining));
+      
+      return (speed < minSpeed ? minSpeed : speed);
+   }
+   
+   /**
+    * Computes the highest speed at a distance from a point which the robot
+    * must pass at a given speed, so it can brake down to that speed before
+    * the point, or accelerate out of it, along the profile's ramps.
+    *
+    * @param distance The distance from the point, in cm or degrees.
+    * @param speed The speed at the point.
+    *
+    * @return The speed to command, between the minimum and cruise speeds.
+    */
+   public double getSpeedAround(double distance, double speed) {
+      double d = Math.abs(distance) + rampDistance(speed / maxSpeed);
+      double s = maxSpeed * ramp(d);
+      
+      return (s < minSpeed ? minSpeed : s);
+   }
+   
+   /**
+    * Get the cruise speed of this profile.
+    *
+    * @return The cruise speed, in cm/s or degrees/s.
+    */
+   public double getMaxSpeed() {
+      return maxSpeed;
+   }
+   
+   /**
+    * Get the distance needed to reach the cruise speed from a stop, and
+    * to brake from it.
+    *
+    * @return The length of each ramp, in cm or degrees.
+    */
+   public double getRampLength() {
+      return rampLength;
+   }
+   
+   /**
+    * Computes the ramp speed at a distance from a stop.
+    *
+    * @param d The distance from the point where the robot is stopped.
+    *
+    * @return The speed as a fraction of the cruise speed.
+    */
+   private double ramp(double d) {
+      if (d <= 0.0)
+         return 0.0;
+      if (d >= rampLength)
+         return 1.0;
+      
+      double u = d / rampLength;
+      if (type == TRAPEZOIDAL)
+         return Math.sqrt(u);
+      
+      double x = u * TABLE_SIZE;
+      int i = (int)x;
+      return S_RAMP[i] + (x - i) * (S_RAMP[i + 1] - S_RAMP[i]);
+   }
+   
+   /**
+    * Computes the distance from a stop at which the ramp reaches a speed,
+    * the inverse of ramp().
+    *
+    * @param fraction The speed as a fraction of the cruise speed.
+    *
+    * @return The distance from the point where the robot is stopped.
+    */
+   private double rampDistance(double fraction) {
+      if (fraction <= 0.0)
+         return 0.0;
+      if (fraction >= 1.0)
+         return rampLength;
+      
+      if (type == TRAPEZOIDAL)
+         return fraction * fraction * rampLength;
+      
+      int i = 0;
+      while (i < TABLE_SIZE - 1 && S_RAMP[i + 1] < fraction)
+         i++;
+      
+      double k = (fraction - S_RAMP[i]) / (S_RAMP[i + 1] - S_RAMP[i]);
+      return (i + k) / TABLE_SIZE * rampLength;
+   }
+
+}
@@ -9,8 +9,8 @@ import lejos.nxt.NXTRegulatedMotor;
 public class MotorController {
 
 	// object declaration
-	private final NXTRegulatedMotor leftMotor;
-	private final NXTRegulatedMotor rightMotor;
+	private final CoalescedMotor leftMotor;
+	private final CoalescedMotor rightMotor;
 	private LightSensor lightSensor;
 	private final Odometer odometer;
 	
@@ -21,47 +21,59 @@ public class MotorController {
 	private final int ROTATE_SPEED = 170;
 	private final int SEARCH_SPEED = 170; 
 	private final int ACCELERATION = 400; 
+	private final int TICK = 20;
+	private final long TIMEOUT_MARGIN = 1000;
 	
-	// constructor
+	// set by abort(), stops every move until resume() is called
+	private volatile boolean aborted = false;
+	
+	// constructor, the motors are commanded through their shared CoalescedMotor layer
 	public MotorController(NXTRegulatedMotor leftMotor, NXTRegulatedMotor rightMotor, LightSensor lightSensor, Odometer odometer) {
 		
-		this.leftMotor = leftMotor;
-		this.rightMotor = rightMotor;
-		leftMotor.setAcceleration(ACCELERATION);
-		rightMotor.setAcceleration(ACCELERATION);
+		this.leftMotor = CoalescedMotor.get(leftMotor);
+		this.rightMotor = CoalescedMotor.get(rightMotor);
+		this.leftMotor.setAcceleration(ACCELERATION);
+		this.rightMotor.setAcceleration(ACCELERATION);
+		CoalescedMotor.synchronize(this.leftMotor, this.rightMotor, true);
 		this.lightSensor = lightSensor;
 		this.odometer = odometer;
 		
 	}
 	
 
-	// this method moves the robot forward until it reaches the distance given as argument
+	// this method moves the robot forward until it reaches the distance given as argument,
+	// returns false if aborted, or if the wheels did not get there in twice the expected time
 	public boolean forward(double distance) {
 		
+		if (aborted)
+			return false;
+		
 		leftMotor.setSpeed(FORWARD_SPEED);
 		rightMotor.setSpeed(FORWARD_SPEED);
-			
-		leftMotor.rotate(convertDistance(distance), true);
-		rightMotor.rotate(convertDistance(distance), false);
 		
-		return true;
+		// both wheels start and stop together
+		CoalescedMotor.rotate(leftMotor, convertDistance(distance), rightMotor, convertDistance(distance), true);
+		
+		return waitForMotors(Math.abs(convertDistance(distance)), FORWARD_SPEED);
 		
 	}	
 	
 	// this method rotates the robot to the true bearing given as argument, returns true when complete
+	// returns false if aborted, or if the wheels did not get there in twice the expected time
 	public boolean rotate(double angle) {
 
 		double test;
 		
+		if (aborted)
+			return false;
+		
 		leftMotor.setSpeed(ROTATE_SPEED);
 		rightMotor.setSpeed(ROTATE_SPEED);
 
-		leftMotor.rotate(convertAngle(angle), true);
-	
-		rightMotor.rotate(-convertAngle(angle), false);
+		CoalescedMotor.rotate(leftMotor, convertAngle(angle), rightMotor, -convertAngle(angle), true);
 		
 		
-		return true;
+		return waitForMotors(Math.abs(convertAngle(angle)), ROTATE_SPEED);
 		
 	}
 	
@@ -69,41 +81,37 @@ public class MotorController {
 	// this method causes the robot to rotate clockwise indefinitely until motors are given other orders
 	public void searchRotateCW() {
 		
-		leftMotor.setSpeed(SEARCH_SPEED);
-		rightMotor.setSpeed(SEARCH_SPEED);
+		if (aborted)
+			return;
 		
-		leftMotor.forward();
-		rightMotor.backward();
+		CoalescedMotor.drive(leftMotor, SEARCH_SPEED, rightMotor, -SEARCH_SPEED);
 		
 	}
 	
 	// this method causes the robot to rotate anticlockwise indefinitely until motors are given other orders
 	public void searchRotateACW() {
 		
-		leftMotor.setSpeed(SEARCH_SPEED);
-		rightMotor.setSpeed(SEARCH_SPEED);
+		if (aborted)
+			return;
 		
-		leftMotor.backward();
-		rightMotor.forward();
+		CoalescedMotor.drive(leftMotor, -SEARCH_SPEED, rightMotor, SEARCH_SPEED);
 		
 	}
 	
 	// this method causes the robot to move forward indefinitely until motors are given other orders
 	public void searchForward() {
 		
-		leftMotor.setSpeed(SEARCH_SPEED);
-		rightMotor.setSpeed(SEARCH_SPEED);
+		if (aborted)
+			return;
 		
-		leftMotor.forward();
-		rightMotor.forward();
+		CoalescedMotor.drive(leftMotor, SEARCH_SPEED, rightMotor, SEARCH_SPEED);
 		
 	}
 	
 	// this method stops the robot, returns true when complete
 	public boolean stop() {
 		
-		leftMotor.stop(true);
-		rightMotor.stop(false);
+		CoalescedMotor.stop(leftMotor, rightMotor, false);
 		return true;
 		
 	}
@@ -122,11 +130,56 @@ public class MotorController {
 	// this method causes the wheels to move forward with speed given as argument
 	public void wheelSpeed(int leftSpeed, int rightSpeed) {
 		
-		leftMotor.setSpeed(leftSpeed);
-		rightMotor.setSpeed(rightSpeed);
+		if (aborted)
+			return;
+		
+		CoalescedMotor.drive(leftMotor, Math.abs(leftSpeed), rightMotor, Math.abs(rightSpeed));
+		
+	}
+	
+	// this method stops the robot at once, and keeps it stopped until resume() is called;
+	// moves in progress on other threads return false within one tick
+	public void abort() {
+		
+		aborted = true;
+		CoalescedMotor.stop(leftMotor, rightMotor, true);
+		
+	}
+	
+	// this method allows the robot to move again after abort()
+	public void resume() {
+		
+		aborted = false;
+		
+	}
+	
+	// this method returns true if abort() was called
+	public boolean isAborted() {
+		
+		return aborted;
+		
+	}
+	
+	// this method waits until both wheels have rotated the given angle at the given speed,
+	// returns false and stops the wheels if aborted, or if they take twice the expected time
+	private boolean waitForMotors(int degrees, int speed) {
+		
+		long deadline = System.currentTimeMillis() + 2000L * degrees / speed + TIMEOUT_MARGIN;
+		
+		while (isMoving()) {
+			
+			if (aborted || System.currentTimeMillis() > deadline) {
+				CoalescedMotor.stop(leftMotor, rightMotor, true);
+				return false;
+			}
+			
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {}
+			
+		}
 		
-		leftMotor.forward();
-		rightMotor.forward();
+		return !aborted;
 		
 	}
 	
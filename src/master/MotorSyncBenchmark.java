@@ -0,0 +1,118 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of the heading drift caused by starting and stopping the
+ * wheels one after the other, against starting and stopping them as one
+ * synchronized pair. Run it on the brick with the wheels off the ground,
+ * or call measure() with a simulated motor pair.
+ *
+ * Each cycle starts both wheels at the same speed, lets them run, and
+ * stops them. The heading error of a cycle is the difference between the
+ * two wheels' travel, turned into an angle with the mean wheel radius, so
+ * only the timing of the commands counts, not the wheels' calibration.
+ * The inter-wheel skew measured by CoalescedMotor is printed alongside.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see CoalescedMotor
+ * @see TwoWheeledRobot
+ */
+public class MotorSyncBenchmark {
+   
+   /** Defines the number of start/stop cycles per mode. */
+   public static final int CYCLES = 100;
+   /** Defines the wheel speed, in degrees/s. */
+   public static final int SPEED = 360;
+   /** Defines how long the wheels run in each cycle, in ms. */
+   public static final int RUN_TIME = 200;
+   /** Defines how long the wheels are left to settle after each stop, in ms. */
+   public static final int SETTLE_TIME = 20;
+   
+   /**
+    * Runs the benchmark on the robot's wheels, one by one then synchronized,
+    * and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      double [] result = new double [5];
+      
+      for (int i = 0; i < 2; i++) {
+         boolean sync = (i == 1);
+         measure(robot, sync, CYCLES, result);
+         
+         System.out.println(sync ? "synchronized" : "one by one");
+         System.out.println(" mean " + (float)result[0] + " deg");
+         System.out.println(" max " + (float)result[1] + " deg");
+         System.out.println(" net " + (float)result[2] + " deg");
+         System.out.println(" skew " + (long)result[3] + "/" + (long)result[4] + "us");
+      }
+      
+      robot.setSynchronized(true);
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Runs start/stop cycles on a robot's wheels, and measures the heading
+    * error each of them leaves.
+    *
+    * @param robot The robot, whose wheels may be real or simulated.
+    * @param sync True to synchronize the wheels, false to command them one after the other.
+    * @param cycles The number of cycles.
+    * @param result The array in which the mean and largest heading error per
+    * cycle, and the net heading error after all cycles, in degrees, and the
+    * mean and largest skew, in us, are returned.
+    */
+   public static void measure(TwoWheeledRobot robot, boolean sync, int cycles, double [] result) {
+      CoalescedMotor left = robot.getLeftMotor(), right = robot.getRightMotor();
+      double scale = (TwoWheeledRobot.ODO_LEFT_RADIUS + TwoWheeledRobot.ODO_RIGHT_RADIUS) / 2.0
+                     / TwoWheeledRobot.ODO_WIDTH;
+      int [] before = new int [2], after = new int [2];
+      double sum = 0.0, max = 0.0, net = 0.0;
+      long skewSum = 0;
+      
+      robot.setSynchronized(sync);
+      CoalescedMotor.resetSkew();
+      
+      for (int k = 0; k < cycles; k++) {
+         robot.getTachoCounts(before);
+         
+         CoalescedMotor.drive(left, SPEED, right, SPEED);
+         skewSum += CoalescedMotor.getSkew();
+         pause(RUN_TIME);
+         
+         CoalescedMotor.stop(left, right, true);
+         skewSum += CoalescedMotor.getSkew();
+         pause(SETTLE_TIME);
+         
+         robot.getTachoCounts(after);
+         double error = ((after[0] - before[0]) - (after[1] - before[1])) * scale;
+         sum += Math.abs(error);
+         max = Math.max(max, Math.abs(error));
+         net += error;
+      }
+      
+      result[0] = sum / cycles;
+      result[1] = max;
+      result[2] = net;
+      result[3] = skewSum / (2 * cycles);
+      result[4] = CoalescedMotor.getMaxSkew();
+   }
+   
+   /**
+    * Sleeps for a while.
+    *
+    * @param time The time to sleep, in ms.
+    */
+   private static void pause(int time) {
+      try {
+         Thread.sleep(time);
+      } catch (InterruptedException e) {}
+   }
+
+}
@@ -27,6 +27,22 @@ public class Navigation {
    public static final double FSPEED = 7.0;
    /** Defines the default rotation speed, in degrees/s. */
    public static final double RSPEED = 50.0;
+   /** Defines the cruise speed of profiled forward motions, in cm/s. */
+   public static final double FORWARD_CRUISE = 20.0;
+   /** Defines the peak acceleration of profiled forward motions, in cm/s^2. */
+   public static final double FORWARD_ACCEL = 15.0;
+   /** Defines the lowest speed of profiled forward motions, in cm/s. */
+   public static final double FORWARD_MIN_SPEED = 2.0;
+   /** Defines the cruise speed of profiled rotations, in degrees/s. */
+   public static final double ROTATION_CRUISE = 150.0;
+   /** Defines the peak acceleration of profiled rotations, in degrees/s^2. */
+   public static final double ROTATION_ACCEL = 200.0;
+   /**
+    * Defines the lowest speed of profiled rotations, in degrees/s, which is
+    * slow enough for the robot to turn less than ROTATION_TOLERANCE between
+    * two odometer updates.
+    */
+   public static final double ROTATION_MIN_SPEED = 8.0;
    /** Defines the maximum tolerable error when turning, in degrees. */
    public static final double ROTATION_TOLERANCE = 0.5;
    /** Defines the minimum obstacle clearance needed for the robot, in cm. */
@@ -37,44 +53,128 @@ public class Navigation {
    public static final int BLOCK_WALL_DIFF = 15;
    /** Defines the arc to be swept, in degrees. */
    public static final int SWEEP_ARC = 90;
+   /** Defines the number of readings whose median checkAhead() compares to the clearances. */
+   public static final int SWEEP_WINDOW = 5;
+   /**
+    * Defines the default heading error bound above which go() stops to
+    * square up, in degrees. It leaves room for the turning tolerance and two
+    * standard deviations of the uncertainty of two turns and runs since the
+    * last line correction, but not of a third.
+    */
+   public static final double DEFAULT_HEADING_BOUND = 2.5;
+   /** Defines the default position uncertainty bound above which relocalization is needed, in cm. */
+   public static final double DEFAULT_POSITION_BOUND = 5.0;
+   /** Defines the number of passes along x and y goToPoint() makes before giving up on reaching the point. */
+   public static final int MAX_PASSES = 4;
    
    private static double angleP;
+   private static double headingBound = DEFAULT_HEADING_BOUND;
+   private static double positionBound = DEFAULT_POSITION_BOUND;
+   private static MotionProfile forwardProfile = new MotionProfile(MotionProfile.S_CURVE, FORWARD_CRUISE, FORWARD_ACCEL, FORWARD_MIN_SPEED);
+   private static MotionProfile rotationProfile = new MotionProfile(MotionProfile.S_CURVE, ROTATION_CRUISE, ROTATION_ACCEL, ROTATION_MIN_SPEED);
+   private static boolean pursuit = false;
+   private static Localizer localizer;
    
    /**
     * Goes forward for a specified distance. This is blocking, hence it will 
     * prevent the following line of code from executing until completion.
+    * The robot holds the heading it had when starting.
     * 
     * @param odo The odometer tracking the robot's movement.
     * @param distance The desired distance in cm to be travelled forward.
     */
    public static void goForward(Odometer odo, double distance) {
+      goForward(odo, distance, Double.NaN);
+   }
+   
+   /**
+    * Goes forward for a specified distance, while holding the given
+    * heading. This is blocking, like goForward(odo, distance).
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param distance The desired distance in cm to be travelled forward.
+    * @param heading The heading to hold, in degrees, or NaN to hold the heading when starting.
+    */
+   public static void goForward(Odometer odo, double distance, double heading) {
+      if (MotionExecutor.onControlThread())
+         forward(odo, distance, heading);
+      else
+         goForwardAsync(odo, distance, heading).waitFor();
+   }
+   
+   /**
+    * Queues a forward motion on the motion executor, and returns immediately.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param distance The desired distance in cm to be travelled forward.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion goForwardAsync(Odometer odo, double distance) {
+      return goForwardAsync(odo, distance, Double.NaN);
+   }
+   
+   /**
+    * Queues a forward motion which holds the given heading on the motion
+    * executor, and returns immediately.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param distance The desired distance in cm to be travelled forward.
+    * @param heading The heading to hold, in degrees, or NaN to hold the heading when starting.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion goForwardAsync(Odometer odo, double distance, double heading) {
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.FORWARD, odo, null, distance, heading));
+   }
+   
+   /**
+    * Goes forward for a specified distance, on the calling thread, while
+    * the robot holds its heading.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param distance The desired distance in cm to be travelled forward.
+    * @param heading The heading to hold, in degrees, or NaN to hold the heading when starting.
+    * 
+    * @return True if the robot covered the distance.
+    */
+   private static boolean forward(Odometer odo, double distance, double heading) {
       
       TwoWheeledRobot robot = odo.getTwoWheeledRobot();
+      MotionProfile profile = forwardProfile;
       double [] initPos = new double [3], currPos = new double [3];
+      double travelled = 0.0;
       
       // stop any rotational motion
       robot.setSpeeds(0, 0);
       
-      // latch the initial position
+      // latch the initial position, and hold the heading
       odo.getPosition(initPos);
       odo.getPosition(currPos);
+      robot.holdHeading(Double.isNaN(heading) ? initPos[2] : heading);
       
-      // start the motors and wait to reach the appropriate distance from
-      // the initial position
-      if (distance < 0.0)
-         robot.setSpeeds(-FSPEED, 0);
-      else
-         robot.setSpeeds(FSPEED, 0);
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen = updates.getGeneration();
+      
+      // follow the profile, based on the distance travelled from the
+      // initial position, until reaching the appropriate distance
+      profile.plan(distance);
       
-      while ((currPos[0] - initPos[0]) * (currPos[0] - initPos[0]) +
-             (currPos[1] - initPos[1]) * (currPos[1] - initPos[1]) <
-             distance * distance) {
+      while (travelled < Math.abs(distance) && !MotionExecutor.cancelRequested()) {
+         double speed = profile.getSpeed(travelled);
+         robot.setSpeeds(distance < 0.0 ? -speed : speed, 0);
+         
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
          odo.getPosition(currPos);
+         travelled = Math.sqrt((currPos[0] - initPos[0]) * (currPos[0] - initPos[0]) +
+                               (currPos[1] - initPos[1]) * (currPos[1] - initPos[1]));
       }
       
-      // stop the motors
+      // stop holding the heading, then stop the motors
+      robot.releaseHeading();
       robot.setSpeeds(0, 0);
       
+      return travelled >= Math.abs(distance);
    }
    
    /**
@@ -86,36 +186,67 @@ public class Navigation {
     * @param angle The desired angle in degrees to which the robot should rotate.
     */
    public static void turnTo(Odometer odo, double angle) {
+      if (MotionExecutor.onControlThread())
+         rotateTo(odo, angle);
+      else
+         turnToAsync(odo, angle).waitFor();
+   }
+   
+   /**
+    * Queues a rotation to the given orientation on the motion executor,
+    * and returns immediately.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param angle The desired angle in degrees to which the robot should rotate.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion turnToAsync(Odometer odo, double angle) {
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.TURN_TO, odo, null, angle, 0));
+   }
+   
+   /**
+    * Rotates the robot to the given orientation, on the calling thread.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param angle The desired angle in degrees to which the robot should rotate.
+    * 
+    * @return True if the robot reached the orientation.
+    */
+   private static boolean rotateTo(Odometer odo, double angle) {
       
       TwoWheeledRobot robot = odo.getTwoWheeledRobot();
+      MotionProfile profile = rotationProfile;
       double [] currPos = new double [3];
-      double currSpeed = RSPEED;
-      double angDiff;
+      double initAngle, angDiff;
       
       // stop any forward motion
       robot.setSpeeds(0, 0);
       
       // latch the initial position
       odo.getPosition(currPos);
+      initAngle = currPos[2];
       angDiff = Odometer.minimumAngleFromTo(currPos[2], angle);
-      if (angDiff > 0.0)
-         robot.setSpeeds(0, currSpeed);
-      else
-         robot.setSpeeds(0, currSpeed *= -1);
+      profile.plan(angDiff);
+      
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen = updates.getGeneration();
       
-      // turn to the appropriate angle
-      while (Math.abs(angDiff) > ROTATION_TOLERANCE) {
-         if (currSpeed > 0.0 && angDiff < 0.0)
-            robot.setSpeeds(0, currSpeed *= -0.5);
-         else if (currSpeed < 0.0 && angDiff > 0.0)
-            robot.setSpeeds(0, currSpeed *= -0.5);
+      // turn to the appropriate angle, following the profile; if the robot
+      // overshoots, it comes back at the profile's lowest speed
+      while (Math.abs(angDiff) > ROTATION_TOLERANCE && !MotionExecutor.cancelRequested()) {
+         double speed = profile.getSpeed(Odometer.minimumAngleFromTo(initAngle, currPos[2]));
+         robot.setSpeeds(0, angDiff > 0.0 ? speed : -speed);
          
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
          odo.getPosition(currPos);
          angDiff = Odometer.minimumAngleFromTo(currPos[2], angle);
       }
       
       // stop the motors
       robot.setSpeeds(0, 0);
+      
+      return Math.abs(angDiff) <= ROTATION_TOLERANCE;
    }
    
    /**
@@ -127,11 +258,30 @@ public class Navigation {
     */
    public static void turnRelative(Odometer odo, double angle){
       
+      if (!MotionExecutor.onControlThread()) {
+         turnRelativeAsync(odo, angle).waitFor();
+         return;
+      }
+      
       // Latch current angle
       double h = odo.getTheta();
       
       // Turn set number of degrees relative to current angle.
-      turnTo(odo, h + angle);
+      rotateTo(odo, h + angle);
+   }
+   
+   /**
+    * Queues a relative rotation on the motion executor, and returns
+    * immediately. The angle is relative to the robot's orientation
+    * when the motion starts, not when it is queued.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param angle The desired relative angle in degrees the robot should rotate.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion turnRelativeAsync(Odometer odo, double angle) {
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.TURN_RELATIVE, odo, null, angle, 0));
    }
    
    /**
@@ -152,13 +302,13 @@ public class Navigation {
       //Motor.A.setSpeed((int)RSPEED*3);
       //Motor.B.setSpeed((int)RSPEED*3);
       
-      Motor.A.rotate(rotdegs, true);
-      Motor.B.rotate(-rotdegs, true);
+      CoalescedMotor.rotate(robot.getLeftMotor(), rotdegs, robot.getRightMotor(), -rotdegs, true);
    }
    
    /**
     * This method allows the robot to rotate about one of its wheels
-    * for a set angle.
+    * for a set angle. The turn stops early if the motion running it is
+    * cancelled.
     * 
     * @param odo The odometer that tracks the robot's motion.
     * @param angle The angle in degrees that the robot should rotate.
@@ -167,18 +317,30 @@ public class Navigation {
    public static void turnAboutWheel(Odometer odo, double angle, boolean left){
       
       TwoWheeledRobot robot = odo.getTwoWheeledRobot();
+      CoalescedMotor wheel = (left ? robot.getRightMotor() : robot.getLeftMotor());
       
       // Calculates the require tachometer change
       int rotdegs = (int)((2 * angle * robot.NAV_WIDTH) / (robot.NAV_LEFT_RADIUS + robot.NAV_RIGHT_RADIUS));
       
       if (left) { 
-         Motor.A.setSpeed(0);
-         Motor.B.setSpeed((int)RSPEED*4);
-         Motor.B.rotate(rotdegs);
+         robot.getLeftMotor().setSpeed(0);
+         robot.getRightMotor().setSpeed((int)RSPEED*4);
       } else {
-         Motor.A.setSpeed((int)RSPEED*4);
-         Motor.B.setSpeed(0);
-         Motor.A.rotate(rotdegs);
+         robot.getLeftMotor().setSpeed((int)RSPEED*4);
+         robot.getRightMotor().setSpeed(0);
+      }
+      wheel.rotate(rotdegs, true);
+      
+      // Wait for the turn, checking for a cancel after each odometer update
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen = updates.getGeneration();
+      
+      while (wheel.isMoving()) {
+         if (MotionExecutor.cancelRequested()) {
+            wheel.stop(false);
+            break;
+         }
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
       }
       
    }
@@ -194,8 +356,207 @@ public class Navigation {
     * @param py The y coordinate of the desired destination, in cm.
     */
    public static void goToPoint(Odometer odo, USPoller usp, double px, double py){
+      if (MotionExecutor.onControlThread())
+         travelTo(odo, usp, px, py);
+      else
+         goToPointAsync(odo, usp, px, py).waitFor();
+   }
+   
+   /**
+    * Queues a navigation to the specified point on the motion executor,
+    * and returns immediately.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param usp The robot's ultrasonic polling system.
+    * @param px The x coordinate of the desired destination, in cm.
+    * @param py The y coordinate of the desired destination, in cm.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion goToPointAsync(Odometer odo, USPoller usp, double px, double py) {
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.GO_TO_POINT, odo, usp, px, py));
+   }
+   
+   /**
+    * Executes a motion command. Called by the motion executor, on its
+    * control thread.
+    * 
+    * @param m The motion to execute.
+    * 
+    * @return True if the motion reached its target.
+    */
+   static boolean execute(Motion m) {
+      switch (m.type) {
+      case Motion.FORWARD:
+         return forward(m.odo, m.a, m.b);
+      case Motion.TURN_TO:
+         return rotateTo(m.odo, m.a);
+      case Motion.TURN_RELATIVE:
+         return rotateTo(m.odo, m.odo.getTheta() + m.a);
+      case Motion.GO_TO_POINT:
+         return travelTo(m.odo, m.usp, m.a, m.b);
+      case Motion.FOLLOW_PATH:
+         return m.tracker.follow();
+      case Motion.GO_THROUGH:
+         return traverse(m.odo, m.usp, m.tracker);
+      default:
+         return false;
+      }
+   }
+   
+   /**
+    * Follows the path set on the given tracker, through each of its
+    * waypoints, with pure pursuit. This is blocking.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param tracker The path tracker, on which the path has been set.
+    * 
+    * @return True if the robot reached the last waypoint.
+    */
+   public static boolean followPath(Odometer odo, PathTracker tracker) {
+      if (MotionExecutor.onControlThread())
+         return tracker.follow();
+      
+      followPathAsync(odo, tracker).waitFor();
+      return tracker.isComplete();
+   }
+   
+   /**
+    * Queues a path following motion on the motion executor, and returns
+    * immediately. The tracker reports the cross-track error as the robot goes.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param tracker The path tracker, on which the path has been set.
+    * 
+    * @return The handle of the queued motion.
+    */
+   public static Motion followPathAsync(Odometer odo, PathTracker tracker) {
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.FOLLOW_PATH, odo, null, tracker));
+   }
+   
+   /**
+    * Makes the robot go through each of the given waypoints in turn,
+    * carrying its speed through them and rounding the corners between
+    * legs, and only stopping at the last one. If an obstacle blocks the
+    * way, the robot goes around it along the axes, as goToPoint() does,
+    * through the remaining waypoints. This is blocking.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param usp The robot's ultrasonic polling system.
+    * @param xs The x coordinates of the waypoints, in cm.
+    * @param ys The y coordinates of the waypoints, in cm.
+    * @param n The number of waypoints, at most PathTracker.MAX_WAYPOINTS - 1.
+    * 
+    * @throws IllegalArgumentException If there are too many waypoints.
+    */
+   public static void goThrough(Odometer odo, USPoller usp, double [] xs, double [] ys, int n) {
+      if (MotionExecutor.onControlThread()) {
+         PathTracker tracker = createPathTracker(odo);
+         if (!tracker.setPath(xs, ys, n))
+            throw new IllegalArgumentException("Too many waypoints: " + n);
+         traverse(odo, usp, tracker);
+      } else {
+         goThroughAsync(odo, usp, xs, ys, n).waitFor();
+      }
+   }
+   
+   /**
+    * Queues a traversal of the given waypoints on the motion executor,
+    * and returns immediately.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param usp The robot's ultrasonic polling system.
+    * @param xs The x coordinates of the waypoints, in cm.
+    * @param ys The y coordinates of the waypoints, in cm.
+    * @param n The number of waypoints, at most PathTracker.MAX_WAYPOINTS - 1.
+    * 
+    * @return The handle of the queued motion.
+    * 
+    * @throws IllegalArgumentException If there are too many waypoints.
+    */
+   public static Motion goThroughAsync(Odometer odo, USPoller usp, double [] xs, double [] ys, int n) {
+      PathTracker tracker = createPathTracker(odo);
+      if (!tracker.setPath(xs, ys, n))
+         throw new IllegalArgumentException("Too many waypoints: " + n);
+      return MotionExecutor.getExecutor().submit(new Motion(Motion.GO_THROUGH, odo, usp, tracker));
+   }
+   
+   /**
+    * Creates a path tracker which follows paths at the same speeds as
+    * goForward().
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * 
+    * @return A new path tracker, with the default lookahead distance.
+    */
+   public static PathTracker createPathTracker(Odometer odo) {
+      return new PathTracker(odo, new MotionProfile(MotionProfile.S_CURVE, FORWARD_CRUISE, FORWARD_ACCEL, FORWARD_MIN_SPEED),
+                             PathTracker.DEFAULT_LOOKAHEAD);
+   }
+   
+   /**
+    * Selects how goToPoint() travels. Along the axes, the robot sweeps
+    * ahead of each tile and goes around obstacles. In pursuit mode, it
+    * drives straight to the point, and only falls back on the axes if
+    * an obstacle blocks its way.
+    * 
+    * @param pursuit_ If true, drive straight to the point with pure pursuit.
+    */
+   public static void setPathMode(boolean pursuit_) {
+      pursuit = pursuit_;
+   }
+   
+   /**
+    * Goes through the waypoints of a path, on the calling thread.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param usp The robot's ultrasonic polling system.
+    * @param tracker The path tracker, on which the waypoints have been set.
+    * 
+    * @return True if the robot reached the last waypoint.
+    */
+   private static boolean traverse(Odometer odo, USPoller usp, PathTracker tracker) {
+      tracker.setUSPoller(usp);
+      if (tracker.follow())
+         return true;
+      if (MotionExecutor.cancelRequested())
+         return false;
+      
+      // Blocked: go around the obstacle, then through the rest of the waypoints
+      for (int i = tracker.getNextWaypoint(); i < tracker.getWaypointCount(); i++) {
+         if (!travelTo(odo, usp, tracker.getWaypointX(i), tracker.getWaypointY(i)))
+            return false;
+      }
+      
+      return true;
+   }
+   
+   /**
+    * Navigates to the specified point, on the calling thread.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param usp The robot's ultrasonic polling system.
+    * @param px The x coordinate of the desired destination, in cm.
+    * @param py The y coordinate of the desired destination, in cm.
+    * 
+    * @return True if the robot reached the point, within 1 cm.
+    */
+   private static boolean travelTo(Odometer odo, USPoller usp, double px, double py){
       double [] pos = new double [3];
       double x, y, error;
+      int passes = 0;
+      
+      if (pursuit) {
+         PathTracker tracker = createPathTracker(odo);
+         tracker.setUSPoller(usp);
+         tracker.setPath(new double [] {px}, new double [] {py}, 1);
+         
+         // If blocked on the way, continue along the axes, around the obstacle
+         if (tracker.follow())
+            return true;
+         if (MotionExecutor.cancelRequested())
+            return false;
+      }
       
       // Calculate error between current location and desired point
       odo.getPosition(pos);
@@ -205,8 +566,8 @@ public class Navigation {
       
       turnTo(odo, (px > x ? 90 : 270));
       
-      // Repeat goTowards() until error is less than 1cm
-      while (error > 1.0) {
+      // Repeat goTowards() until error is less than 1cm, or it does not converge
+      while (error > 1.0 && passes++ < MAX_PASSES && !MotionExecutor.cancelRequested()) {
          
          goTowardsX(odo, usp, px, py);
          
@@ -240,6 +601,7 @@ public class Navigation {
          
       }
       
+      return error <= 1.0 && !MotionExecutor.cancelRequested();
    }
    
    /**
@@ -258,6 +620,9 @@ public class Navigation {
       double x, y;
       int distL, distR;
       boolean cinder = false, pathBlocked = false;
+      UpdateSignal updates = odo.getUpdateSignal();
+      SpeedGovernor governor = new SpeedGovernor(usp, CLEARANCE_NEAR);
+      int gen;
       
       // get current positions
       x = odo.getX();
@@ -268,7 +633,7 @@ public class Navigation {
       if (px > x) {
          
          // While the path is clear for 31 cm, and coordinates don't match...
-         while (px - x > 31 && !cinder) {
+         while (px - x > 31 && !cinder && !MotionExecutor.cancelRequested()) {
             
             turnRelative(odo, -30);
             distL = usp.getDistHi();
@@ -286,10 +651,13 @@ public class Navigation {
             x = odo.getX();
          }
          
-         robot.setSpeeds(FSPEED, 0);
+         governor.reset();
+         gen = updates.getGeneration();
          
          // For the reMainManagering distance ( > 31cm), drive straight.
-         while (x < px && usp.getDistHi() > CLEARANCE_NEAR){
+         while (x < px && usp.getDistHi() > CLEARANCE_NEAR && !MotionExecutor.cancelRequested()){
+            robot.setSpeeds(governor.getSpeed(px - x), 0);
+            gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
             x = odo.getX();
          }
          
@@ -298,7 +666,7 @@ public class Navigation {
       } else {
          
          // Same logic as above, for moving right instead of left
-         while (x - px > 31 && !cinder) {
+         while (x - px > 31 && !cinder && !MotionExecutor.cancelRequested()) {
             
             Navigation.turnRelative(odo, -30);
             distL = usp.getDistHi();
@@ -314,9 +682,12 @@ public class Navigation {
             x = odo.getX();
          }
          
-         robot.setSpeeds(FSPEED, 0);
+         governor.reset();
+         gen = updates.getGeneration();
          
-         while ((x > px && usp.getDistHi() > CLEARANCE_NEAR)){
+         while ((x > px && usp.getDistHi() > CLEARANCE_NEAR) && !MotionExecutor.cancelRequested()){
+            robot.setSpeeds(governor.getSpeed(x - px), 0);
+            gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
             x = odo.getX();
          }
          
@@ -351,6 +722,9 @@ public class Navigation {
       double x, y;
       int distL, distR;
       boolean cinder = false, pathBlocked = false;
+      UpdateSignal updates = odo.getUpdateSignal();
+      SpeedGovernor governor = new SpeedGovernor(usp, CLEARANCE_NEAR);
+      int gen;
       
       // All the same logic as goTowardsX, see above...
       x = odo.getX();
@@ -359,7 +733,7 @@ public class Navigation {
       
       if (py > y) {
          
-         while (py - y > 31 && !cinder) {
+         while (py - y > 31 && !cinder && !MotionExecutor.cancelRequested()) {
             
             Navigation.turnRelative(odo, -30);
             distL = usp.getDistHi();
@@ -375,9 +749,12 @@ public class Navigation {
             y = odo.getY();
          }
          
-         robot.setSpeeds(FSPEED, 0);
+         governor.reset();
+         gen = updates.getGeneration();
          
-         while (py > y && usp.getDistHi() > CLEARANCE_NEAR){
+         while (py > y && usp.getDistHi() > CLEARANCE_NEAR && !MotionExecutor.cancelRequested()){
+            robot.setSpeeds(governor.getSpeed(py - y), 0);
+            gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
             y = odo.getY();
          }
          
@@ -385,7 +762,7 @@ public class Navigation {
          
       } else {
          
-         while (y - py > 31 && !cinder) {
+         while (y - py > 31 && !cinder && !MotionExecutor.cancelRequested()) {
             
             Navigation.turnRelative(odo, -30);
             distL = usp.getDistHi();
@@ -401,9 +778,12 @@ public class Navigation {
             y = odo.getY();
          }
          
-         robot.setSpeeds(FSPEED, 0);
+         governor.reset();
+         gen = updates.getGeneration();
          
-         while (y > py && usp.getDistHi() > CLEARANCE_NEAR){
+         while (y > py && usp.getDistHi() > CLEARANCE_NEAR && !MotionExecutor.cancelRequested()){
+            robot.setSpeeds(governor.getSpeed(y - py), 0);
+            gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
             y = odo.getY();
          }
          
@@ -497,15 +877,16 @@ public class Navigation {
     * @param usp The robot's ultrasonic sensor polling system.
     * @param arc The arc that the robot will check ahead for, in degrees.
     * 
-    * @return Returns 0 for a clear field, -1 for a cinder block, 1 for a pallet.
+    * @return Returns 0 for a clear field, -1 for a cinder block, 1 for a pallet,
+    * or -1 if the motion running the sweep is cancelled, since the field was not seen clear.
     */
    public static int checkAhead(Odometer odo, USPoller usp, int arc) {
       
       TwoWheeledRobot robot = odo.getTwoWheeledRobot();
       
       // Set up sweeping data
-      int [] distsHi = {100, 100, 100, 100, 100};
-      int [] distsDiff = {0, 0, 0, 0, 0};
+      MedianFilter distsHi = new MedianFilter(SWEEP_WINDOW, 100);
+      MedianFilter distsDiff = new MedianFilter(SWEEP_WINDOW, 0);
       int avgHi = 100, avgDiff = 0, angleI = 0;
       boolean leftWall = false, rightWall = false, clear = true, pallet = false;
       
@@ -539,20 +920,23 @@ public class Navigation {
          turn(odo, arc);
       }
       
-      // Keep track of the 5 last distances read.
-      for(int i = 0; Motor.A.isMoving() || Motor.B.isMoving(); i++) {
+      // Keep track of the median of the last distances read, until the
+      // sweep ends or the motion running it is cancelled.
+      while (robot.getLeftMotor().isMoving() || robot.getRightMotor().isMoving()) {
          
-         distsHi[i] = usp.getDistHi();
-         avgHi = (distsHi[0] + distsHi[1] + distsHi[2] + distsHi[3] + distsHi[4]) / 5;
+         if (MotionExecutor.cancelRequested()) {
+            robot.setSpeeds(0, 0);
+            return -1;
+         }
          
-         distsDiff[i] = usp.getDistDiff();
-         avgDiff = (distsDiff[0] + distsDiff[1] + distsDiff[2] + distsDiff[3] + distsDiff[4]) / 5;
+         avgHi = distsHi.filter(usp.getDistHi());
+         avgDiff = distsDiff.filter(usp.getDistDiff());
          
-         // If their average falls under the clearance, the path is considered blocked.
+         // If their median falls under the clearance, the path is considered blocked.
          if (avgHi < CLEARANCE_FAR)
             clear = false;
          
-         // If the average distance difference (between top and bottom) is above the
+         // If the median distance difference (between top and bottom) is above the
          // minimum clearance, a pallet has been found.
          if (avgDiff > BLOCK_WALL_DIFF) {
             pallet = true;
@@ -560,8 +944,6 @@ public class Navigation {
          }
          
          try { Thread.sleep(50); } catch (Exception e) {}
-         
-         i %= 4;
       }
       
       try { Thread.sleep(250); } catch (Exception e) {}
@@ -583,24 +965,132 @@ public class Navigation {
    
    /**
     * Turn on the line detectors and advance 30.48 cm, so that 
-    * movement is corrected in 12 inch increments.
+    * movement is corrected in 12 inch increments. The robot holds its
+    * cardinal direction while driving, and only stops to square up or
+    * relocalize before the run, as goTiles() does.
     * 
     * @param odo The odometer tracking the robot's movement.
     */
    public static void go(Odometer odo) {
+      goTiles(odo, 1);
+   }
+   
+   /**
+    * Turn on the line detectors and advance several grid tiles in one
+    * run, without stopping between them. The robot holds its cardinal
+    * direction, while the grid snapper corrects the odometer at each line.
+    * Before the run, the robot relocalizes or squares up if the odometer
+    * may be off by more than the correction bounds.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * @param tiles The number of tiles to advance.
+    */
+   public static void goTiles(Odometer odo, int tiles) {
+      
+      correct(odo);
       
       LineDetector.left.start();
       LineDetector.right.start();
       
-      // advance one grid tile, and correct orientation.
-      Navigation.goForward(odo, 30.48);
-      Navigation.turnTo(odo, odo.getDirection() * 90);
-
+      // advance the grid tiles, holding the cardinal direction.
+      Navigation.goForward(odo, tiles * 30.48, odo.getDirection() * 90);
       
       LineDetector.left.stop();
       LineDetector.right.stop();
    }
    
+   /**
+    * Selects the shape of the velocity profiles used by goForward() and turnTo().
+    * 
+    * @param type MotionProfile.TRAPEZOIDAL or MotionProfile.S_CURVE.
+    */
+   public static void setProfile(int type) {
+      forwardProfile = new MotionProfile(type, FORWARD_CRUISE, FORWARD_ACCEL, FORWARD_MIN_SPEED);
+      rotationProfile = new MotionProfile(type, ROTATION_CRUISE, ROTATION_ACCEL, ROTATION_MIN_SPEED);
+   }
+   
+   /**
+    * Checks whether the robot may be off its cardinal direction by more
+    * than the heading bound, taking into account both the odometer's
+    * heading error and two standard deviations of its uncertainty.
+    * Straight runs hold their heading, so goTiles() only checks it
+    * before each run.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * 
+    * @return True if the robot should stop and turn to its cardinal direction.
+    */
+   public static boolean needsHeadingCorrection(Odometer odo) {
+      double error = Odometer.minimumAngleFromTo(odo.getTheta(), odo.getDirection() * 90);
+      
+      return Math.abs(error) + 2.0 * odo.getHeadingUncertainty() > headingBound;
+   }
+   
+   /**
+    * Checks whether the odometer's position uncertainty has grown past the
+    * position bound, in which case the robot should relocalize on the grid.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    * 
+    * @return True if the position estimate is no longer trustworthy.
+    */
+   public static boolean needsRelocalization(Odometer odo) {
+      return odo.getPositionUncertainty() > positionBound;
+   }
+   
+   /**
+    * Sets the bounds used to decide when the robot must stop to correct
+    * its heading, or relocalize.
+    * 
+    * @param heading The heading error bound, in degrees.
+    * @param position The position uncertainty bound, in cm.
+    */
+   public static void setCorrectionBounds(double heading, double position) {
+      headingBound = heading;
+      positionBound = position;
+   }
+   
+   /**
+    * Sets the localizer used to relocalize on the grid once the position
+    * uncertainty grows past the position bound.
+    * 
+    * @param localizer_ The robot's localizer, or null to never relocalize.
+    */
+   public static void setLocalizer(Localizer localizer_) {
+      localizer = localizer_;
+   }
+   
+   /**
+    * Corrects the odometer before a run from a node, if it may be off by
+    * more than the correction bounds. If the position is no longer
+    * trustworthy, or the heading uncertainty alone is past the heading
+    * bound, the robot relocalizes on the node, facing North, and turns back
+    * to its cardinal direction: only a line correction lowers the
+    * uncertainty. Otherwise, if the heading may be off, the robot stops and
+    * turns to its cardinal direction. Without a localizer, the robot does
+    * not stop to turn when that cannot bring it within the bound, and the
+    * grid snapper's next line correction is left to do it.
+    * 
+    * @param odo The odometer tracking the robot's movement.
+    */
+   private static void correct(Odometer odo) {
+      int direction = odo.getDirection();
+      
+      // the heading may still be this far off after squaring up
+      boolean uncertain = ROTATION_TOLERANCE + 2.0 * odo.getHeadingUncertainty() > headingBound;
+      
+      if (localizer != null && (uncertain || needsRelocalization(odo))) {
+         double x = Math.round(odo.getX() / PoseEstimator.TILE) * PoseEstimator.TILE;
+         double y = Math.round(odo.getY() / PoseEstimator.TILE) * PoseEstimator.TILE;
+         
+         turnTo(odo, 0);
+         localizer.gridSnapTo(x, y, 0);
+         turnTo(odo, direction * 90);
+      } else if (!uncertain && needsHeadingCorrection(odo)) {
+         turnTo(odo, direction * 90);
+      }
+   }
+   
    /**
     * Basically a combination of checkAhead() and go() with some added logic
     * based on their results. This method will check ahead of the robot, determine
@@ -19,42 +19,146 @@ public class Odometer implements TimerListener {
    /** Defines the default time period between Odometer position updates, in ms. */
    public static final int DEFAULT_PERIOD = 25;
    
+   /** Defines a longer time period between updates, for the arc integration modes, in ms. */
+   public static final int ARC_PERIOD = 75;
+   
+   /** Defines the shortest period used by the adaptive scheduling mode, in ms. */
+   public static final int MIN_PERIOD = 5;
+   /** Defines the period used by the adaptive scheduling mode while stopped, in ms. */
+   public static final int IDLE_PERIOD = 200;
+   /** Defines the largest distance the adaptive mode lets the robot travel between updates, in cm. */
+   public static final double MAX_STEP_DISTANCE = 0.5;
+   /** Defines the largest rotation the adaptive mode lets the robot make between updates, in degrees. */
+   public static final double MAX_STEP_ANGLE = 0.25;
+   
+   /** Defines the position variance added per cm travelled, along the direction of travel, in cm^2/cm. */
+   public static final double DISTANCE_NOISE = 0.01;
+   /**
+    * Defines the heading variance added per degree turned, in deg^2/deg:
+    * a 90 degree turn adds a standard deviation of about 0.5 degrees.
+    */
+   public static final double TURN_NOISE = 0.0025;
+   /**
+    * Defines the heading variance added per cm travelled, in deg^2/cm: a
+    * tile, with the heading held, adds a standard deviation of about 0.25 degrees.
+    */
+   public static final double DRIFT_NOISE = 0.002;
+   /** Defines the position variance left after a coordinate is set, in cm^2. */
+   public static final double FIX_POSITION_VARIANCE = 0.25;
+   /** Defines the heading variance left after the orientation is set, in deg^2. */
+   public static final double FIX_HEADING_VARIANCE = 0.25;
+   
+   /** Defines the number of timestamped poses kept in the pose history. */
+   public static final int HISTORY_SIZE = 64;
+   
+   /** Defines the engines available to integrate the robot's motion. */
+   public enum Integration {
+      /** Midpoint heading integration from the published heading, in double precision. */
+      MIDPOINT,
+      /** Midpoint heading integration, in fixed-point integer math with table-based trig. */
+      FIXED_POINT,
+      /** Exact circular arc integration, assuming constant wheel speeds over each update. */
+      EXACT_ARC,
+      /**
+       * Higher-order arc integration, assuming wheel speeds which change linearly
+       * over each update, as estimated from the previous one.
+       */
+      QUADRATIC_ARC
+   };
+   
    private TwoWheeledRobot robot;
    private Timer odometerTimer;
+   private Integration integration;
+   private FixedPointOdometry fixed;
+   private int [] tachos;
    
-   // Position data
+   // Scheduling data
+   private int basePeriod, currentPeriod;
+   private boolean adaptive;
+   private double schedX, schedY, schedTheta;
+   private long schedTime, rateStart;
+   private int rateTicks;
+   private volatile double effectiveRate;
+   
+   // Position data, written under the lock and published through the
+   // sequence counter: odd while an update is in progress, even otherwise
    private Object lock;
-   private double x, y, theta;
-   private double [] oldDH, dDH;
+   private volatile int seq;
+   private volatile double x, y, theta;
+   private double [] oldDH, dDH, lastDH;
+   
+   // Tacho counts up to which the position has been integrated
+   private int baseLeft, baseRight;
+   
+   // Pose covariance (x and y in cm, theta in degrees), published with the position
+   private volatile double pxx, pxy, pxt, pyy, pyt, ptt;
+   private long lastTime;
+   private int lastPeriod;
+   
+   // Node and direction data, and the thread telling listeners of their changes
+   private volatile int nodeX = 0, nodeY = 0, direction = 0;
+   private PoseEventDispatcher events;
+   
+   // Signal fired after each update, for threads waiting on the position
+   private UpdateSignal updates;
    
-   // Node and direction data
-   private int nodeX = 0, nodeY = 0, direction = 0;
-   private int i = 0;
+   // Pose history ring, written with the position data
+   private long [] historyTime;
+   private double [] historyX, historyY, historyTheta;
+   private volatile int historyHead, historyCount;
    
    /**
     * Contructor that defines a new Odometer assigned to a specific robot,
-    * and polls the tachometers at a set rate.
+    * polls the tachometers at a set rate, and integrates them with the
+    * given engine.
     * 
     * @param prawnBot The robot whose motion will be tracked.
     * @param period The polling rate of the odometer, in ms.
     * @param start If true, the odometer starts polling immediately.
+    * @param mode The engine used to integrate the robot's motion.
     */
-   public Odometer(TwoWheeledRobot prawnBot, int period, boolean start) {
+   public Odometer(TwoWheeledRobot prawnBot, int period, boolean start, Integration mode) {
       
       robot = prawnBot;
+      robot.setOdometer(this);
       odometerTimer = new Timer(period, this);
+      basePeriod = period;
+      currentPeriod = period;
+      integration = mode;
       x = 0.0;
       y = 0.0;
       theta = 0.0;
       oldDH = new double [2];
       dDH = new double [2];
+      lastDH = new double [2];
+      tachos = new int [2];
       lock = new Object();
+      updates = new UpdateSignal();
+      historyTime = new long [HISTORY_SIZE];
+      historyX = new double [HISTORY_SIZE];
+      historyY = new double [HISTORY_SIZE];
+      historyTheta = new double [HISTORY_SIZE];
+      
+      if (integration == Integration.FIXED_POINT)
+         fixed = new FixedPointOdometry();
       
       // start the odometer immediately, if necessary
       if (start)
          odometerTimer.start();
    }
    
+   /**
+    * Contructor that defines a new Odometer assigned to a specific robot,
+    * and polls the tachometers at a set rate, using midpoint integration.
+    * 
+    * @param prawnBot The robot whose motion will be tracked.
+    * @param period The polling rate of the odometer, in ms.
+    * @param start If true, the odometer starts polling immediately.
+    */
+   public Odometer(TwoWheeledRobot prawnBot, int period, boolean start) {
+      this(prawnBot, period, start, Integration.MIDPOINT);
+   }
+   
    /**
     * Constructor which is only passed a robot; the default refresh
     * rate will be used, and it will not start automatically.
@@ -86,52 +190,662 @@ public class Odometer implements TimerListener {
     * updating it accordingly.
     */
    public void timedOut() {
-      robot.getDisplacementAndHeading(dDH);
-      dDH[0] -= oldDH[0];
-      dDH[1] -= oldDH[1];
+      
+      if (fixed != null) {
+         fixedTimedOut();
+         schedule();
+         return;
+      }
+      
+      long now = System.currentTimeMillis();
+      
+      robot.getTachoCounts(tachos);
+      TwoWheeledRobot.toDisplacementAndHeading(tachos[0], tachos[1], dDH);
+      
+      advance(now, true);
+      schedule();
+   }
+   
+   /**
+    * Integrates a motion measured elsewhere than by the robot's motors, as
+    * one update, so that a simulation can drive an odometer which is not
+    * polling. Only the floating point engines can be driven this way.
+    * 
+    * @param dDist The distance travelled since the last update, in cm.
+    * @param dTheta The rotation made since the last update, in degrees.
+    * @param now The time of the update, as given by System.currentTimeMillis().
+    */
+   void integrate(double dDist, double dTheta, long now) {
+      dDH[0] = dDist;
+      dDH[1] = dTheta;
+      advance(now, false);
+   }
+   
+   /**
+    * Integrates one update, publishes the new pose, and signals it.
+    * 
+    * @param now The time of the update, as given by System.currentTimeMillis().
+    * @param fromTachos If true, dDH holds the displacement and heading of
+    * the tacho counts in tachos, from which the change is taken; otherwise
+    * dDH holds the change itself.
+    */
+   private void advance(long now, boolean fromTachos) {
+      int period = (int)(now - lastTime);
+      int changes;
       
       // update the position in a critical region
       synchronized (lock) {
-         x += dDH[0] * Math.sin((oldDH[1] + dDH[1] / 2.0) * Math.PI / 180.0);
-         y += dDH[0] * Math.cos((oldDH[1] + dDH[1] / 2.0) * Math.PI / 180.0);
-         theta += dDH[1];
+         seq++;
          
-         // keep theta between 0 and 360
-         if (theta < 0.0)
-            theta += 360.0;
-         else if (theta >= 360.0)
-            theta -= 360.0;
+         if (fromTachos) {
+            dDH[0] -= oldDH[0];
+            dDH[1] -= oldDH[1];
+            oldDH[0] += dDH[0];
+            oldDH[1] += dDH[1];
+            baseLeft = tachos[0];
+            baseRight = tachos[1];
+         }
          
-         // Only updates node and direction data every 10 odometer cycles
-         if (i > 9) {
-            
-            nodeX = (int)((x + 12.0) / 30.48);
-            nodeY = (int)((y + 12.0) / 30.48);
-            direction = (int)(((theta + 44.0) / 90.0) % 4);
+         double px = x, py = y;
+         if (integration == Integration.EXACT_ARC) {
+            exactArc(dDH[0], dDH[1]);
+         } else if (integration == Integration.QUADRATIC_ARC) {
+            quadraticArc(dDH[0], dDH[1], period);
+         } else {
+            // integrate from the published heading, like the other engines,
+            // so that heading corrections steer the position too
+            x += dDH[0] * Math.sin((theta + dDH[1] / 2.0) * Math.PI / 180.0);
+            y += dDH[0] * Math.cos((theta + dDH[1] / 2.0) * Math.PI / 180.0);
          }
          
-         i++;
-         i %= 11;
+         // keep theta between 0 and 360, publishing only the wrapped value
+         double h = theta + dDH[1];
+         if (h < 0.0)
+            h += 360.0;
+         else if (h >= 360.0)
+            h -= 360.0;
+         theta = h;
+         
+         propagate(x - px, y - py, dDH[1]);
+         
+         changes = publishNodes((int)((x + 12.0) / 30.48),
+                                (int)((y + 12.0) / 30.48),
+                                (int)(((theta + 44.0) / 90.0) % 4));
          
+         record();
+         seq++;
+      }
+      
+      if (changes != 0)
+         events.post(changes, nodeX, nodeY, direction);
+      robot.headingUpdate(theta, now);
+      updates.fire();
+      
+      lastDH[0] = dDH[0];
+      lastDH[1] = dDH[1];
+      lastTime = now;
+      lastPeriod = period;
+   }
+   
+   /**
+    * Integrates a motion along the exact circular arc that a differential
+    * drive follows when both wheel speeds are constant. This is the midpoint
+    * update, with the distance scaled down to the length of the arc's chord,
+    * so it stays exact no matter how much the robot turns in one update.
+    * 
+    * @param dist The distance travelled along the arc, in cm.
+    * @param dTheta The change of orientation, in degrees.
+    */
+   private void exactArc(double dist, double dTheta) {
+      double half = dTheta * Math.PI / 360.0;
+      double mid = theta * Math.PI / 180.0 + half;
+      double chord;
+      
+      // chord = dist * sin(half) / half, using its series for small turns
+      if (half > 0.5 || half < -0.5) {
+         chord = dist * Math.sin(half) / half;
+      } else {
+         double h2 = half * half;
+         chord = dist * (1.0 - h2 / 6.0 * (1.0 - h2 / 20.0 * (1.0 - h2 / 42.0)));
       }
       
-      oldDH[0] += dDH[0];
-      oldDH[1] += dDH[1];
+      x += chord * Math.sin(mid);
+      y += chord * Math.cos(mid);
+   }
+   
+   /**
+    * Integrates a motion assuming the wheel speeds change linearly over the
+    * update, with the slope estimated from the previous update. The path is
+    * integrated with Simpson's rule, which captures accelerating turns that
+    * the exact arc treats as constant.
+    * 
+    * @param dist The distance travelled, in cm.
+    * @param dTheta The change of orientation, in degrees.
+    * @param period The duration of this update, in ms.
+    */
+   private void quadraticArc(double dist, double dTheta, int period) {
+      double kDist = 0.0, kTheta = 0.0;
       
+      // rate slopes from the previous update, scaled to this update's duration
+      if (lastPeriod > 0 && period > 0 && period < 4 * lastPeriod) {
+         double r = (double)period / lastPeriod;
+         double k = 2.0 * r / (r + 1.0);
+         kDist = k * (dist - lastDH[0] * r);
+         kTheta = k * (dTheta - lastDH[1] * r);
+      }
+      
+      double t0 = theta * Math.PI / 180.0;
+      double t1 = (theta + dTheta / 2.0 - kTheta / 8.0) * Math.PI / 180.0;
+      double t2 = (theta + dTheta) * Math.PI / 180.0;
+      double d0 = dist - kDist / 2.0;
+      double d2 = dist + kDist / 2.0;
+      
+      x += (d0 * Math.sin(t0) + 4.0 * dist * Math.sin(t1) + d2 * Math.sin(t2)) / 6.0;
+      y += (d0 * Math.cos(t0) + 4.0 * dist * Math.cos(t1) + d2 * Math.cos(t2)) / 6.0;
+   }
+   
+   /**
+    * Fixed-point counterpart of timedOut(). The motion is integrated in
+    * integer math by the FixedPointOdometry, and only converted back to
+    * double precision for the getters.
+    */
+   private void fixedTimedOut() {
+      int changes;
+      
+      robot.getTachoCounts(tachos);
+      
+      synchronized (lock) {
+         seq++;
+         
+         double px = x, py = y, pt = theta;
+         fixed.update(tachos[0], tachos[1]);
+         baseLeft = tachos[0];
+         baseRight = tachos[1];
+         x = fixed.getX();
+         y = fixed.getY();
+         theta = fixed.getTheta();
+         
+         propagate(x - px, y - py, minimumAngleFromTo(pt, theta));
+         
+         changes = publishNodes(fixed.getNodeX(), fixed.getNodeY(), fixed.getDirection());
+         
+         record();
+         seq++;
+      }
+      
+      if (changes != 0)
+         events.post(changes, nodeX, nodeY, direction);
+      robot.headingUpdate(theta, System.currentTimeMillis());
+      updates.fire();
+   }
+   
+   /**
+    * Propagates the pose covariance through one update. The Jacobian of the
+    * motion with respect to the heading is obtained from the position change
+    * itself (dx = d sin h, dy = d cos h), so no trig is needed, and the noise
+    * grows with the distance travelled and the angle turned.
+    * Must be called while the position is being updated.
+    * 
+    * @param dx The change of x position, in cm.
+    * @param dy The change of y position, in cm.
+    * @param dTheta The change of orientation, in degrees.
+    */
+   private void propagate(double dx, double dy, double dTheta) {
+      double dist = Math.sqrt(dx * dx + dy * dy);
+      double a = dy * Math.PI / 180.0;
+      double b = -dx * Math.PI / 180.0;
+      double qxx = 0.0, qxy = 0.0, qyy = 0.0;
+      
+      // distance noise, along the direction of travel
+      if (dist > 0.0) {
+         double k = DISTANCE_NOISE / dist;
+         qxx = k * dx * dx;
+         qxy = k * dx * dy;
+         qyy = k * dy * dy;
+      }
+      
+      // P = F P F' + Q, with F = [1 0 a; 0 1 b; 0 0 1]
+      double xt = pxt, yt = pyt, tt = ptt;
+      pxx += 2.0 * a * xt + a * a * tt + qxx;
+      pxy += a * yt + b * xt + a * b * tt + qxy;
+      pyy += 2.0 * b * yt + b * b * tt + qyy;
+      pxt = xt + a * tt;
+      pyt = yt + b * tt;
+      ptt = tt + TURN_NOISE * Math.abs(dTheta) + DRIFT_NOISE * dist;
+   }
+   
+   /**
+    * Applies a scalar extended Kalman filter measurement update to the pose
+    * and its covariance, as a single published update. The measurement is
+    * rejected if its innovation falls outside the given number of standard
+    * deviations of its expected value.
+    * 
+    * @param h The measurement Jacobian with respect to (x, y, theta), in cm and degrees.
+    * @param innovation The measured value minus its predicted value.
+    * @param variance The measurement noise variance.
+    * @param gate The validation gate, in standard deviations.
+    * 
+    * @return True if the measurement was applied.
+    */
+   boolean fuse(double [] h, double innovation, double variance, double gate) {
+      int changes;
+      
+      synchronized (lock) {
+         
+         // P h' and the innovation variance h P h' + R
+         double phx = pxx * h[0] + pxy * h[1] + pxt * h[2];
+         double phy = pxy * h[0] + pyy * h[1] + pyt * h[2];
+         double pht = pxt * h[0] + pyt * h[1] + ptt * h[2];
+         double var = h[0] * phx + h[1] * phy + h[2] * pht + variance;
+         
+         if (innovation * innovation > gate * gate * var)
+            return false;
+         
+         seq++;
+         
+         // K = P h' / var
+         double dx = phx / var * innovation;
+         double dy = phy / var * innovation;
+         double dt = pht / var * innovation;
+         
+         x += dx;
+         y += dy;
+         theta = fixAngle(theta + dt);
+         
+         if (fixed != null) {
+            fixed.setX(x);
+            fixed.setY(y);
+            fixed.setTheta(theta);
+         }
+         
+         // P = P - K h P = P - (P h')(P h')' / var
+         pxx -= phx * phx / var;
+         pxy -= phx * phy / var;
+         pxt -= phx * pht / var;
+         pyy -= phy * phy / var;
+         pyt -= phy * pht / var;
+         ptt -= pht * pht / var;
+         
+         shiftHistory(dx, dy, dt);
+         record();
+         changes = publishNodes((int)((x + 12.0) / 30.48),
+                                (int)((y + 12.0) / 30.48),
+                                (int)(((theta + 44.0) / 90.0) % 4));
+         seq++;
+      }
+      
+      // the corrected pose is a new pose, for the threads waiting on one
+      if (changes != 0)
+         events.post(changes, nodeX, nodeY, direction);
+      updates.fire();
+      
+      return true;
+   }
+   
+   /**
+    * Makes a consistent snapshot of the pose covariance accessible.
+    * 
+    * @param cov The array of 9 double in which the covariance of (x, y, theta)
+    * is returned, row by row, in cm and degrees.
+    */
+   public void getCovariance(double [] cov) {
+      int s;
+      
+      do {
+         s = seq;
+         cov[0] = pxx;  cov[1] = pxy;  cov[2] = pxt;
+         cov[3] = pxy;  cov[4] = pyy;  cov[5] = pyt;
+         cov[6] = pxt;  cov[7] = pyt;  cov[8] = ptt;
+      } while ((s & 1) != 0 || s != seq);
+   }
+   
+   /**
+    * Get the standard deviation of the robot's position estimate.
+    * 
+    * @return The position uncertainty, in cm.
+    */
+   public double getPositionUncertainty() {
+      int s;
+      double var;
+      
+      do {
+         s = seq;
+         var = pxx + pyy;
+      } while ((s & 1) != 0 || s != seq);
+      
+      return Math.sqrt(var);
+   }
+   
+   /**
+    * Get the standard deviation of the robot's orientation estimate.
+    * 
+    * @return The heading uncertainty, in degrees.
+    */
+   public double getHeadingUncertainty() {
+      return Math.sqrt(ptt);
+   }
+   
+   /**
+    * Updates the node and direction data, and finds which of them changed.
+    * Must be called while the position is being updated.
+    * 
+    * @param nx The new nodal x position.
+    * @param ny The new nodal y position.
+    * @param dir The new direction.
+    * 
+    * @return The changes to report to the listeners (NODE_CHANGED and/or
+    * DIRECTION_CHANGED), or 0 if there are none or no one is listening.
+    */
+   private int publishNodes(int nx, int ny, int dir) {
+      int changes = 0;
+      
+      if (nx != nodeX || ny != nodeY)
+         changes |= PoseEventDispatcher.NODE_CHANGED;
+      if (dir != direction)
+         changes |= PoseEventDispatcher.DIRECTION_CHANGED;
+      
+      nodeX = nx;
+      nodeY = ny;
+      direction = dir;
+      
+      return (events == null ? 0 : changes);
+   }
+   
+   /**
+    * Get the signal fired after each position update, so that threads
+    * waiting for the robot to reach a position can block on it instead
+    * of polling the odometer.
+    * 
+    * @return The odometer's update signal.
+    */
+   public UpdateSignal getUpdateSignal() {
+      return updates;
+   }
+   
+   /**
+    * Registers a listener to be told as soon as the robot enters a new grid
+    * node or changes its cardinal direction. Callbacks are made from a
+    * dedicated thread, which is started with the first listener.
+    * 
+    * @param listener The listener to be added.
+    * 
+    * @return False if the maximum number of listeners is already registered.
+    */
+   public boolean addPoseListener(PoseListener listener) {
+      synchronized (lock) {
+         if (events == null)
+            events = new PoseEventDispatcher();
+      }
+      
+      return events.addListener(listener);
+   }
+   
+   /**
+    * Unregisters a listener of node and direction changes.
+    * 
+    * @param listener The listener to be removed.
+    */
+   public void removePoseListener(PoseListener listener) {
+      if (events != null)
+         events.removeListener(listener);
+   }
+   
+   /**
+    * Keeps track of the effective update rate and, in the adaptive scheduling
+    * mode, sets the period for the next update from the robot's motion.
+    * The speeds measured since the last update are combined with the speeds
+    * last commanded to the robot, so that a motion which is just starting
+    * is not integrated at the idle rate.
+    */
+   private void schedule() {
+      long now = System.currentTimeMillis();
+      
+      rateTicks++;
+      if (now - rateStart >= 1000) {
+         effectiveRate = rateTicks * 1000.0 / (now - rateStart);
+         rateTicks = 0;
+         rateStart = now;
+      }
+      
+      if (adaptive && now > schedTime) {
+         double dt = (now - schedTime) / 1000.0;
+         double speed = (Math.abs(x - schedX) + Math.abs(y - schedY)) / dt;
+         double turn = Math.abs(minimumAngleFromTo(schedTheta, theta)) / dt;
+         
+         setPeriod(periodFor(Math.max(speed, Math.abs(robot.getForwardSpeed())),
+                             Math.max(turn, Math.abs(robot.getRotationSpeed()))));
+      }
+      
+      schedX = x;
+      schedY = y;
+      schedTheta = theta;
+      schedTime = now;
+   }
+   
+   /**
+    * Finds the longest period which keeps the motion between updates
+    * within MAX_STEP_DISTANCE and MAX_STEP_ANGLE.
+    * 
+    * @param speed The forward speed of the robot, in cm/s.
+    * @param turn The rotation speed of the robot, in degrees/s.
+    * 
+    * @return The update period, between MIN_PERIOD and IDLE_PERIOD, in ms.
+    */
+   private static int periodFor(double speed, double turn) {
+      double period = IDLE_PERIOD;
+      
+      if (speed * period > MAX_STEP_DISTANCE * 1000.0)
+         period = MAX_STEP_DISTANCE * 1000.0 / speed;
+      if (turn * period > MAX_STEP_ANGLE * 1000.0)
+         period = MAX_STEP_ANGLE * 1000.0 / turn;
+      
+      return (period < MIN_PERIOD ? MIN_PERIOD : (int)period);
+   }
+   
+   /**
+    * Changes the period of the odometer timer, if it differs from the current one.
+    * 
+    * @param period The new period, in ms.
+    */
+   private synchronized void setPeriod(int period) {
+      if (period != currentPeriod) {
+         currentPeriod = period;
+         odometerTimer.setDelay(period);
+      }
+   }
+   
+   /**
+    * Called by the robot when new speeds are commanded. In the adaptive
+    * scheduling mode, the period is shortened right away when the robot
+    * starts moving or turning faster, instead of at the next update.
+    */
+   public void speedsChanged() {
+      if (adaptive) {
+         int period = periodFor(Math.abs(robot.getForwardSpeed()), Math.abs(robot.getRotationSpeed()));
+         if (period < currentPeriod)
+            setPeriod(period);
+      }
+   }
+   
+   /**
+    * Enables or disables the adaptive scheduling mode, in which the period
+    * follows the robot's motion: IDLE_PERIOD while stopped, down to
+    * MIN_PERIOD during fast turns. When disabled, the period given at
+    * construction is restored.
+    * 
+    * @param enable If true, the period adapts to the robot's motion.
+    */
+   public void setAdaptivePeriod(boolean enable) {
+      adaptive = enable;
+      if (!enable)
+         setPeriod(basePeriod);
+   }
+   
+   /**
+    * Get the period currently used between odometer updates.
+    * 
+    * @return The current update period, in ms.
+    */
+   public int getPeriod() {
+      return currentPeriod;
+   }
+   
+   /**
+    * Get the number of odometer updates actually performed per second,
+    * measured over the last second or so.
+    * 
+    * @return The effective update rate, in Hz.
+    */
+   public double getEffectiveRate() {
+      return effectiveRate;
+   }
+   
+   /**
+    * Stores the current pose in the history ring, overwriting the oldest
+    * entry. Must be called while the position is being updated.
+    */
+   private void record() {
+      int head = (historyHead + 1) % HISTORY_SIZE;
+      
+      historyTime[head] = System.currentTimeMillis();
+      historyX[head] = x;
+      historyY[head] = y;
+      historyTheta[head] = theta;
+      
+      historyHead = head;
+      if (historyCount < HISTORY_SIZE)
+         historyCount++;
+   }
+   
+   /**
+    * Moves the whole pose history by a correction, so that poses looked up
+    * for measurements still waiting to be fused are in the corrected frame.
+    * Must be called while the position is being updated.
+    * 
+    * @param dx The x correction, in cm.
+    * @param dy The y correction, in cm.
+    * @param dTheta The orientation correction, in degrees.
+    */
+   private void shiftHistory(double dx, double dy, double dTheta) {
+      for (int n = 0, index = historyHead; n < historyCount; n++) {
+         historyX[index] += dx;
+         historyY[index] += dy;
+         historyTheta[index] = fixAngle(historyTheta[index] + dTheta);
+         index = (index + HISTORY_SIZE - 1) % HISTORY_SIZE;
+      }
+   }
+   
+   /**
+    * Discards the pose history, keeping only the current pose. Called when
+    * the position is reset, since older poses are then in another frame.
+    */
+   private void clearHistory() {
+      historyCount = 0;
+      record();
+   }
+   
+   /**
+    * Get the engine used to integrate the robot's motion.
+    * 
+    * @return The odometer's integration engine.
+    */
+   public Integration getIntegration() {
+      return integration;
    }
    
    /**
     * Method which makes the current position values of
-    * the robot accessible.
+    * the robot accessible. The values are read without locking, and
+    * read again if an update was published in the meantime, so they
+    * always come from the same odometer update.
     * 
     * @param pos The array of double in which the robot's position is returned.
     */
    public void getPosition(double [] pos) {
-      synchronized (lock) {
+      int s;
+      
+      do {
+         s = seq;
          pos[0] = x;
          pos[1] = y;
          pos[2] = theta;
-      }
+      } while ((s & 1) != 0 || s != seq);
+   }
+   
+   /**
+    * Makes a consistent snapshot of the robot's position, node and
+    * direction accessible, without locking.
+    * 
+    * @param pos The array of double in which the robot's x, y and theta are returned.
+    * @param node The array of int in which the robot's node x, node y and direction are returned.
+    */
+   public void getPose(double [] pos, int [] node) {
+      int s;
+      
+      do {
+         s = seq;
+         pos[0] = x;
+         pos[1] = y;
+         pos[2] = theta;
+         node[0] = nodeX;
+         node[1] = nodeY;
+         node[2] = direction;
+      } while ((s & 1) != 0 || s != seq);
+   }
+   
+   /**
+    * Finds the robot's position at a given time in the recent past, by
+    * interpolating between the two poses of the history which surround it.
+    * Sensors can use this to place an event at the moment it was sampled,
+    * rather than the moment their thread got around to handling it.
+    * 
+    * @param timeMs The time of interest, as given by System.currentTimeMillis().
+    * @param pos The array of double in which the robot's position at that time is returned.
+    * 
+    * @return False if the time is older than the history, in which case the
+    * oldest pose of the history is returned. Times after the last update
+    * return the latest pose.
+    */
+   public boolean getPoseAt(long timeMs, double [] pos) {
+      int s, head, count, index, older;
+      boolean found;
+      
+      do {
+         s = seq;
+         head = historyHead;
+         count = historyCount;
+         found = true;
+         
+         // walk back from the newest pose to the first one not after the given time
+         index = head;
+         for (int n = 1; n < count && historyTime[index] > timeMs; n++)
+            index = (index + HISTORY_SIZE - 1) % HISTORY_SIZE;
+         
+         if (count == 0) {
+            pos[0] = x;
+            pos[1] = y;
+            pos[2] = theta;
+            found = false;
+         } else if (index == head || historyTime[index] > timeMs) {
+            
+            // newer than the last pose, or older than the first one
+            pos[0] = historyX[index];
+            pos[1] = historyY[index];
+            pos[2] = historyTheta[index];
+            found = (historyTime[index] <= timeMs);
+         } else {
+            
+            // interpolate between this pose and the following one
+            older = index;
+            index = (older + 1) % HISTORY_SIZE;
+            double f = (double)(timeMs - historyTime[older]) / (historyTime[index] - historyTime[older]);
+            pos[0] = historyX[older] + f * (historyX[index] - historyX[older]);
+            pos[1] = historyY[older] + f * (historyY[index] - historyY[older]);
+            pos[2] = fixAngle(historyTheta[older] + f * minimumAngleFromTo(historyTheta[older], historyTheta[index]));
+         }
+      } while ((s & 1) != 0 || s != seq);
+      
+      return found;
    }
    
    /**
@@ -140,9 +854,7 @@ public class Odometer implements TimerListener {
     * @return The robot's x coordinate, in cm.
     */
    public double getX() {
-      synchronized (lock) {
-         return x;
-      }
+      return x;
    }
    
    /**
@@ -151,9 +863,7 @@ public class Odometer implements TimerListener {
     * @return The robot's y coordinate, in cm.
     */
    public double getY() {
-      synchronized (lock) {
-         return y;
-      }
+      return y;
    }
    
    /**
@@ -162,9 +872,7 @@ public class Odometer implements TimerListener {
     * @return The angle the robot is facing, in degrees.
     */
    public double getTheta() {
-      synchronized (lock) {
-         return theta;
-      }
+      return theta;
    }
    
    /**
@@ -173,9 +881,7 @@ public class Odometer implements TimerListener {
     * @return The robot's x node coordinate, in "feet".
     */
    public int getNodeX() {
-      synchronized (lock) {
-         return nodeX;
-      }
+      return nodeX;
    }
    
    /**
@@ -184,9 +890,7 @@ public class Odometer implements TimerListener {
     * @return The robot's y node coordinate, in "feet".
     */
    public int getNodeY() {
-      synchronized (lock) {
-         return nodeY;
-      }
+      return nodeY;
    }
    
    /**
@@ -195,9 +899,7 @@ public class Odometer implements TimerListener {
     * @return The robot direction (0 = N, 1 = E, 2 = S, 3 = W).
     */
    public int getDirection() {
-      synchronized (lock) {
-         return direction;
-      }
+      return direction;
    }
    
    /**
@@ -214,10 +916,17 @@ public class Odometer implements TimerListener {
     */
    public void resetMotorTachos() {
       robot.resetTachos();
-      oldDH[0] = 0;
-      oldDH[1] = 0;
+      synchronized (lock) {
+         if (fixed != null)
+            fixed.resetTachos();
+         oldDH[0] = 0;
+         oldDH[1] = 0;
+         baseLeft = 0;
+         baseRight = 0;
+      }
       dDH[0] = 0;
       dDH[1] = 0;
+      lastPeriod = 0;
    }
    
    /**
@@ -228,9 +937,92 @@ public class Odometer implements TimerListener {
     */
    public void setPosition(double [] pos, boolean [] update) {
       synchronized (lock) {
+         seq++;
+         
          if (update[0]) x = pos[0];
          if (update[1]) y = pos[1];
          if (update[2]) theta = pos[2];
+         
+         // a coordinate which was set is no longer correlated with the others
+         if (update[0]) {
+            pxx = FIX_POSITION_VARIANCE;
+            pxy = 0.0;
+            pxt = 0.0;
+         }
+         if (update[1]) {
+            pyy = FIX_POSITION_VARIANCE;
+            pxy = 0.0;
+            pyt = 0.0;
+         }
+         if (update[2]) {
+            ptt = FIX_HEADING_VARIANCE;
+            pxt = 0.0;
+            pyt = 0.0;
+         }
+         
+         if (fixed != null) {
+            if (update[0]) fixed.setX(pos[0]);
+            if (update[1]) fixed.setY(pos[1]);
+            if (update[2]) fixed.setTheta(pos[2]);
+         }
+         
+         clearHistory();
+         seq++;
+      }
+      
+      updates.fire();
+   }
+   
+   /**
+    * Copies the state needed to resume odometry after a restart: the
+    * position, and the tacho counts up to which it was integrated.
+    * 
+    * @param pos The array in which x, y and theta are returned.
+    * @param tachoBase The array in which the left and right tacho baselines are returned, in degrees.
+    */
+   void getCheckpoint(double [] pos, int [] tachoBase) {
+      synchronized (lock) {
+         pos[0] = x;
+         pos[1] = y;
+         pos[2] = theta;
+         tachoBase[0] = baseLeft;
+         tachoBase[1] = baseRight;
+      }
+   }
+   
+   /**
+    * Resumes odometry from a checkpoint. The position is set as if by
+    * setPosition, and the next update integrates the motion made since the
+    * given tacho baselines, so that moves made after the checkpoint was
+    * written are not lost. If the motors' tacho counts have been reset since,
+    * the baselines are meaningless and false should be passed for keepBase,
+    * in which case odometry resumes from the current counts.
+    * 
+    * @param pos The position values to be set.
+    * @param tachoBase The left and right tacho baselines of the checkpoint, in degrees.
+    * @param keepBase If true, integrate from the checkpoint's baselines, otherwise from the current counts.
+    */
+   void restoreCheckpoint(double [] pos, int [] tachoBase, boolean keepBase) {
+      int left = tachoBase[0], right = tachoBase[1];
+      
+      if (!keepBase) {
+         int [] counts = new int [2];
+         robot.getTachoCounts(counts);
+         left = counts[0];
+         right = counts[1];
+      }
+      
+      setPosition(pos, new boolean [] {true, true, true});
+      
+      synchronized (lock) {
+         TwoWheeledRobot.toDisplacementAndHeading(left, right, oldDH);
+         baseLeft = left;
+         baseRight = right;
+         if (fixed != null)
+            fixed.setTachos(left, right);
+         lastDH[0] = 0;
+         lastDH[1] = 0;
+         lastPeriod = 0;
       }
    }
    
@@ -241,8 +1033,17 @@ public class Odometer implements TimerListener {
     */
    public void setTheta(double angle) {
       synchronized (lock) {
+         seq++;
          theta = angle;
+         ptt = FIX_HEADING_VARIANCE;
+         pxt = 0.0;
+         pyt = 0.0;
+         if (fixed != null) fixed.setTheta(angle);
+         clearHistory();
+         seq++;
       }
+      
+      updates.fire();
    }
    
    /**
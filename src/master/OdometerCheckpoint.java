@@ -0,0 +1,367 @@
+package master;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import lejos.util.Timer;
+import lejos.util.TimerListener;
+
+/**
+ * Periodically saves the odometer's position, its tacho baselines and the
+ * grid snapper's state to flash, so that the robot can resume after a
+ * restart without running the full localization routine again.
+ *
+ * Each checkpoint is a small fixed-size record, built in memory and appended
+ * with a single call to a file which is kept open, so a checkpoint costs a
+ * write of the file's last page rather than deleting and recreating a file.
+ * Once a file holds RECORDS_PER_FILE records, writing switches to the other
+ * file, which is only then recreated. Records carry a sequence number and a
+ * checksum, so that a write cut short by a crash leaves the previous record
+ * intact. Nothing is written while the robot stands still, to spare the
+ * flash.
+ *
+ *
+ * @see Odometer
+ * @see GridSnapper
+ * @see Localizer#resume(OdometerCheckpoint)
+ */
+public class OdometerCheckpoint implements TimerListener {
+   
+   /** Defines the default time period between checkpoints, in ms. */
+   public static final int DEFAULT_PERIOD = 2000;
+   /** Defines the distance the robot must move before a new checkpoint is written, in cm. */
+   public static final double MIN_MOVE = 0.5;
+   /** Defines the rotation the robot must make before a new checkpoint is written, in degrees. */
+   public static final double MIN_TURN = 0.5;
+   /** Defines the largest tacho count, in degrees, still considered to have been reset to zero. */
+   public static final int RESET_TOLERANCE = 5;
+   /** Defines the number of records appended to a file before switching to the other one. */
+   public static final int RECORDS_PER_FILE = 64;
+   
+   /** Defines the names of the two files the checkpoints alternate between. */
+   private static final String [] FILE_NAMES = {"odo0.ckp", "odo1.ckp"};
+   private static final int MAGIC = 0x4F444F31;
+   private static final int RECORD_SIZE = 41;
+   private static final int ENABLED = 1;
+   
+   private Odometer odo;
+   private GridSnapper snapper;
+   private Timer checkpointTimer;
+   
+   private int sequence;
+   private boolean written;
+   
+   // Newest record found while restoring
+   private boolean found;
+   private int foundSequence;
+   
+   // File being appended to, and the number of records in it
+   private FileOutputStream out;
+   private int file, records;
+   
+   // Preallocated record and state buffers
+   private byte [] record = new byte [RECORD_SIZE];
+   private byte [] scratch = new byte [RECORD_SIZE];
+   private double [] pos = new double [3];
+   private double [] hits = new double [2];
+   private int [] tachoBase = new int [2];
+   
+   // State of the last checkpoint written
+   private double [] lastPos = new double [3];
+   private double [] lastHits = new double [2];
+   private boolean lastEnabled;
+   
+   /**
+    * Creates a checkpoint writer for the given odometer and grid snapper.
+    *
+    * @param odo_ The odometer whose state is saved.
+    * @param snapper_ The grid snapper whose state is saved, or null if none is used.
+    * @param period The time period between checkpoints, in ms.
+    * @param start If true, start writing checkpoints immediately.
+    */
+   public OdometerCheckpoint(Odometer odo_, GridSnapper snapper_, int period, boolean start) {
+      odo = odo_;
+      snapper = snapper_;
+      checkpointTimer = new Timer(period, this);
+      
+      if (start)
+         checkpointTimer.start();
+   }
+   
+   /**
+    * Constructor which uses the default period, and does not start automatically.
+    */
+   public OdometerCheckpoint(Odometer odo_, GridSnapper snapper_) {
+      this(odo_, snapper_, DEFAULT_PERIOD, false);
+   }
+   
+   /**
+    * Writes a checkpoint, if the robot has moved since the last one.
+    */
+   public void timedOut() {
+      save(false);
+   }
+   
+   /**
+    * Start writing checkpoints periodically.
+    */
+   public void start() {
+      checkpointTimer.start();
+   }
+   
+   /**
+    * Stop writing checkpoints, and close the file being appended to.
+    */
+   public void stop() {
+      checkpointTimer.stop();
+      synchronized (this) {
+         close();
+      }
+   }
+   
+   /**
+    * Writes a checkpoint of the current state.
+    *
+    * @param force If true, write even if nothing changed since the last checkpoint.
+    *
+    * @return True if a checkpoint was written.
+    */
+   public synchronized boolean save(boolean force) {
+      boolean enabled = false;
+      
+      odo.getCheckpoint(pos, tachoBase);
+      hits[0] = 0;
+      hits[1] = 0;
+      if (snapper != null) {
+         snapper.getHits(hits);
+         enabled = snapper.isEnabled();
+      }
+      
+      if (!force && written && !changed(enabled))
+         return false;
+      
+      // build the whole record, then write it at once
+      sequence++;
+      int i = putInt(record, 0, MAGIC);
+      i = putInt(record, i, sequence);
+      i = putInt(record, i, Float.floatToIntBits((float)pos[0]));
+      i = putInt(record, i, Float.floatToIntBits((float)pos[1]));
+      i = putInt(record, i, Float.floatToIntBits((float)pos[2]));
+      i = putInt(record, i, tachoBase[0]);
+      i = putInt(record, i, tachoBase[1]);
+      i = putInt(record, i, Float.floatToIntBits((float)hits[0]));
+      i = putInt(record, i, Float.floatToIntBits((float)hits[1]));
+      record[i++] = (byte)(enabled ? ENABLED : 0);
+      putInt(record, i, checksum(record, i));
+      
+      // append to the open file, switching to the other one once it is
+      // full, so the newer records survive until the switch
+      try {
+         if (out == null || records >= RECORDS_PER_FILE)
+            open(1 - file);
+         out.write(record, 0, RECORD_SIZE);
+         out.flush();
+         records++;
+      } catch (IOException e) {
+         close();
+         return false;
+      }
+      
+      for (int j = 0; j < 3; j++)
+         lastPos[j] = pos[j];
+      lastHits[0] = hits[0];
+      lastHits[1] = hits[1];
+      lastEnabled = enabled;
+      written = true;
+      
+      return true;
+   }
+   
+   /**
+    * Restores the odometer and grid snapper from the newest valid checkpoint.
+    * If the motors' tacho counts have been reset since it was written, as
+    * they are when the program restarts, odometry resumes from the current
+    * counts, and any motion made after the checkpoint is lost; the position
+    * should then be checked before it is trusted.
+    *
+    * @return True if a valid checkpoint was found and restored.
+    */
+   public synchronized boolean restore() {
+      
+      // find the newest valid record of both files, left in the record buffer
+      close();
+      found = false;
+      for (int f = 0; f < FILE_NAMES.length; f++) {
+         if (read(FILE_NAMES[f]))
+            file = f;
+      }
+      
+      if (!found)
+         return false;
+      
+      pos[0] = Float.intBitsToFloat(getInt(record, 8));
+      pos[1] = Float.intBitsToFloat(getInt(record, 12));
+      pos[2] = Float.intBitsToFloat(getInt(record, 16));
+      tachoBase[0] = getInt(record, 20);
+      tachoBase[1] = getInt(record, 24);
+      hits[0] = Float.intBitsToFloat(getInt(record, 28));
+      hits[1] = Float.intBitsToFloat(getInt(record, 32));
+      boolean enabled = (record[36] & ENABLED) != 0;
+      
+      // keep the baselines, unless the tacho counts were reset since
+      int [] counts = new int [2];
+      odo.getTwoWheeledRobot().getTachoCounts(counts);
+      boolean reset = Math.abs(counts[0]) <= RESET_TOLERANCE && Math.abs(counts[1]) <= RESET_TOLERANCE
+            && (Math.abs(tachoBase[0]) > RESET_TOLERANCE || Math.abs(tachoBase[1]) > RESET_TOLERANCE);
+      
+      odo.restoreCheckpoint(pos, tachoBase, !reset);
+      if (snapper != null)
+         snapper.restore(hits[0], hits[1], enabled);
+      
+      // continue the sequence, writing next to the other file
+      sequence = foundSequence;
+      written = false;
+      
+      return true;
+   }
+   
+   /**
+    * Deletes both checkpoint files, so that the next start is a cold one.
+    */
+   public synchronized void clear() {
+      close();
+      for (int f = 0; f < FILE_NAMES.length; f++) {
+         File file = new File(FILE_NAMES[f]);
+         if (file.exists())
+            file.delete();
+      }
+      written = false;
+   }
+   
+   /**
+    * Tells whether the state differs enough from the last checkpoint
+    * written to be worth writing again.
+    */
+   private boolean changed(boolean enabled) {
+      double dx = pos[0] - lastPos[0];
+      double dy = pos[1] - lastPos[1];
+      
+      return dx * dx + dy * dy > MIN_MOVE * MIN_MOVE
+            || Math.abs(Odometer.minimumAngleFromTo(lastPos[2], pos[2])) > MIN_TURN
+            || hits[0] != lastHits[0] || hits[1] != lastHits[1]
+            || enabled != lastEnabled;
+   }
+   
+   /**
+    * Starts appending to a checkpoint file, recreating it empty.
+    *
+    * @param f The index of the file.
+    */
+   private void open(int f) throws IOException {
+      close();
+      
+      File next = new File(FILE_NAMES[f]);
+      if (next.exists())
+         next.delete();
+      next.createNewFile();
+      out = new FileOutputStream(next);
+      file = f;
+      records = 0;
+   }
+   
+   /**
+    * Closes the file being appended to, if any.
+    */
+   private void close() {
+      if (out != null) {
+         try {
+            out.close();
+         } catch (IOException e) {}
+         out = null;
+      }
+   }
+   
+   /**
+    * Reads the records of a checkpoint file, and keeps the newest valid one
+    * found so far in the record buffer. An incomplete record at the end of
+    * the file, cut short by a crash, is ignored.
+    *
+    * @return True if the file holds a valid record newer than any found before.
+    */
+   private boolean read(String name) {
+      File f = new File(name);
+      if (!f.exists())
+         return false;
+      
+      boolean newer = false;
+      FileInputStream in = null;
+      try {
+         in = new FileInputStream(f);
+         while (true) {
+            int n = 0;
+            while (n < RECORD_SIZE) {
+               int r = in.read(scratch, n, RECORD_SIZE - n);
+               if (r < 0)
+                  return newer;
+               n += r;
+            }
+            
+            if (getInt(scratch, 0) != MAGIC
+                  || getInt(scratch, RECORD_SIZE - 4) != checksum(scratch, RECORD_SIZE - 4))
+               continue;
+            
+            int s = getInt(scratch, 4);
+            if (!found || s - foundSequence > 0) {
+               System.arraycopy(scratch, 0, record, 0, RECORD_SIZE);
+               found = true;
+               foundSequence = s;
+               newer = true;
+            }
+         }
+      } catch (IOException e) {
+         return newer;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {}
+         }
+      }
+   }
+   
+   /**
+    * Computes the Adler-32 checksum of the first bytes of a buffer.
+    */
+   private static int checksum(byte [] buf, int length) {
+      int a = 1, b = 0;
+      for (int i = 0; i < length; i++) {
+         a = (a + (buf[i] & 0xFF)) % 65521;
+         b = (b + a) % 65521;
+      }
+      return (b << 16) | a;
+   }
+   
+   /**
+    * Stores an int in a buffer, most significant byte first.
+    *
+    * @return The index following the int.
+    */
+   private static int putInt(byte [] buf, int i, int value) {
+      buf[i] = (byte)(value >>> 24);
+      buf[i + 1] = (byte)(value >>> 16);
+      buf[i + 2] = (byte)(value >>> 8);
+      buf[i + 3] = (byte)value;
+      return i + 4;
+   }
+   
+   /**
+    * Reads an int from a buffer, most significant byte first.
+    */
+   private static int getInt(byte [] buf, int i) {
+      return ((buf[i] & 0xFF) << 24) | ((buf[i + 1] & 0xFF) << 16)
+            | ((buf[i + 2] & 0xFF) << 8) | (buf[i + 3] & 0xFF);
+   }
+
+}
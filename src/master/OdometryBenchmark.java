@@ -0,0 +1,186 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of the odometry engines, to be run on the brick, which checks
+ * whether the odometer can poll every 5-10 ms.
+ *
+ * It first feeds the same scripted tacho counts, a mix of straight runs,
+ * pivots and uneven arcs, to the fixed-point engine and to the double
+ * precision midpoint integration, and prints how far apart their poses
+ * got. It then times both engines on that script, and a full odometer
+ * cycle (timedOut(), with the tachometers read from the motors) for each
+ * integration mode, and prints each cost per update along with the share
+ * of a MIN_PERIOD and a 10 ms period it takes up.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see FixedPointOdometry
+ * @see Odometer
+ */
+public class OdometryBenchmark {
+   
+   /** Defines the number of scripted updates. */
+   public static final int STEPS = 40000;
+   /** Defines the number of updates per segment of the script. */
+   public static final int SEGMENT = 400;
+   /** Defines the number of odometer cycles timed per integration mode. */
+   public static final int CYCLES = 2000;
+   
+   /**
+    * Runs the benchmark, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      int [] left = new int [STEPS], right = new int [STEPS];
+      script(left, right);
+      
+      accuracy(left, right);
+      
+      long start = System.currentTimeMillis();
+      integrateFixed(left, right, new FixedPointOdometry());
+      report("fixed engine", System.currentTimeMillis() - start, STEPS);
+      
+      start = System.currentTimeMillis();
+      integrateDouble(left, right, new double [3]);
+      report("double engine", System.currentTimeMillis() - start, STEPS);
+      
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      Odometer.Integration [] modes = Odometer.Integration.values();
+      for (int i = 0; i < modes.length; i++) {
+         Odometer odo = new Odometer(robot, Odometer.DEFAULT_PERIOD, false, modes[i]);
+         
+         start = System.currentTimeMillis();
+         for (int k = 0; k < CYCLES; k++)
+            odo.timedOut();
+         report(modes[i].toString(), System.currentTimeMillis() - start, CYCLES);
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Fills in the scripted tacho counts: straight runs, pivots in place and
+    * arcs with a jittery outer wheel, in turn.
+    *
+    * @param left The left tacho counts, in degrees.
+    * @param right The right tacho counts, in degrees.
+    */
+   private static void script(int [] left, int [] right) {
+      java.util.Random random = new java.util.Random(1);
+      int l = 0, r = 0;
+      
+      for (int k = 0; k < left.length; k++) {
+         int segment = (k / SEGMENT) % 3;
+         if (segment == 0) {
+            l += 4;
+            r += 4;
+         } else if (segment == 1) {
+            l += 6;
+            r -= 6;
+         } else {
+            l += 5 + random.nextInt(3);
+            r += 3;
+         }
+         left[k] = l;
+         right[k] = r;
+      }
+   }
+   
+   /**
+    * Runs the script through both engines side by side, and prints the
+    * largest distance between their positions, and their final headings.
+    *
+    * @param left The left tacho counts, in degrees.
+    * @param right The right tacho counts, in degrees.
+    */
+   private static void accuracy(int [] left, int [] right) {
+      FixedPointOdometry fixed = new FixedPointOdometry();
+      double [] pose = new double [3], dh = new double [2], oldDH = new double [2];
+      double maxError = 0.0;
+      
+      for (int k = 0; k < left.length; k++) {
+         fixed.update(left[k], right[k]);
+         midpoint(left[k], right[k], pose, dh, oldDH);
+         
+         double error = Math.sqrt((fixed.getX() - pose[0]) * (fixed.getX() - pose[0])
+                                  + (fixed.getY() - pose[1]) * (fixed.getY() - pose[1]));
+         if (error > maxError)
+            maxError = error;
+      }
+      
+      double heading = Odometer.minimumAngleFromTo(pose[2], fixed.getTheta());
+      System.out.println("max err " + (float)maxError + " cm");
+      System.out.println("head err " + (float)Math.abs(heading) + " deg");
+      System.out.println("over " + (int)(oldDH[0] / 100.0) + " m");
+   }
+   
+   /**
+    * Integrates the script with the fixed-point engine.
+    *
+    * @param left The left tacho counts, in degrees.
+    * @param right The right tacho counts, in degrees.
+    * @param fixed The engine.
+    */
+   private static void integrateFixed(int [] left, int [] right, FixedPointOdometry fixed) {
+      for (int k = 0; k < left.length; k++)
+         fixed.update(left[k], right[k]);
+   }
+   
+   /**
+    * Integrates the script with the double precision midpoint update.
+    *
+    * @param left The left tacho counts, in degrees.
+    * @param right The right tacho counts, in degrees.
+    * @param pose The pose, x, y and theta.
+    */
+   private static void integrateDouble(int [] left, int [] right, double [] pose) {
+      double [] dh = new double [2], oldDH = new double [2];
+      
+      for (int k = 0; k < left.length; k++)
+         midpoint(left[k], right[k], pose, dh, oldDH);
+   }
+   
+   /**
+    * Integrates one update the way the odometer's double precision midpoint
+    * engine does.
+    *
+    * @param leftTacho The left tacho count, in degrees.
+    * @param rightTacho The right tacho count, in degrees.
+    * @param pose The pose, x, y and theta, updated.
+    * @param dh Scratch array for the displacement and heading.
+    * @param oldDH The displacement and heading of the previous update, updated.
+    */
+   private static void midpoint(int leftTacho, int rightTacho, double [] pose, double [] dh, double [] oldDH) {
+      TwoWheeledRobot.toDisplacementAndHeading(leftTacho, rightTacho, dh);
+      double dDist = dh[0] - oldDH[0], dTheta = dh[1] - oldDH[1];
+      oldDH[0] = dh[0];
+      oldDH[1] = dh[1];
+      
+      pose[0] += dDist * Math.sin((pose[2] + dTheta / 2.0) * Math.PI / 180.0);
+      pose[1] += dDist * Math.cos((pose[2] + dTheta / 2.0) * Math.PI / 180.0);
+      pose[2] = (pose[2] + dTheta) % 360.0;
+      if (pose[2] < 0.0)
+         pose[2] += 360.0;
+   }
+   
+   /**
+    * Prints the cost of an update, and the share of the odometer's shortest
+    * and of a 10 ms period it takes up.
+    *
+    * @param name The name of what was timed.
+    * @param elapsed The time taken, in ms.
+    * @param count The number of updates timed.
+    */
+   private static void report(String name, long elapsed, int count) {
+      long micros = elapsed * 1000 / count;
+      System.out.println(name + " " + micros + "us");
+      System.out.println(" " + (micros / (10 * Odometer.MIN_PERIOD)) + "% of " + Odometer.MIN_PERIOD
+                         + "ms, " + (micros / 100) + "% of 10ms");
+   }
+
+}
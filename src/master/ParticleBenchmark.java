@@ -0,0 +1,147 @@
+package master;
+
+import java.util.Random;
+
+import lejos.nxt.Button;
+
+/**
+ * Benchmark of the particle localizer's convergence and cost, against its
+ * particle and thread counts. Runs anywhere: the spin and the ultrasonic
+ * distances are simulated, so neither the motors nor the sensors are used.
+ *
+ * Each trial follows Localizer.doMCLocalization(): the particles are
+ * spread over the starting quadrant, and the robot turns in place from
+ * START, RSPEED-like steps at a time, with some noise on each step. Every
+ * step gives the filter a distance to the course walls, with noise and
+ * the odd stray reading, and resamples it when it degenerates. A trial
+ * converges once a full turn is done and the spreads are under
+ * Localizer's thresholds, as on the robot. For each setting, the number of
+ * trials that converged, their mean position and heading errors and the
+ * mean time per filter step are printed.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see ParticleLocalizer
+ * @see Localizer
+ */
+public class ParticleBenchmark {
+   
+   /** Defines the number of trials per setting. */
+   public static final int TRIALS = 10;
+   /** Defines the robot's true starting pose, x, y and theta, in cm and degrees. */
+   public static final double [] START = {40.0, 60.0, 123.0};
+   /** Defines the rotation of the robot between distances, in degrees. */
+   public static final double STEP = 5.0;
+   /** Defines the standard deviation of the simulated distances, in cm. */
+   public static final double RANGE_NOISE = 2.0;
+   /** Defines one in how many simulated distances is a stray reading. */
+   public static final int STRAY_RATE = 20;
+   
+   private static final int [] PARTICLES = {200, 500, 1000, 1000};
+   private static final int [] THREADS = {1, 1, 1, 2};
+   
+   /**
+    * Runs the benchmark for each setting, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      double [] result = new double [4];
+      
+      for (int i = 0; i < PARTICLES.length; i++) {
+         run(PARTICLES[i], THREADS[i], TRIALS, result);
+         
+         System.out.println(PARTICLES[i] + "p " + THREADS[i] + "t: " + (int)result[0] + "/" + TRIALS);
+         System.out.println(" pos " + (float)result[1] + " cm");
+         System.out.println(" head " + (float)result[2] + " deg");
+         System.out.println(" step " + (float)result[3] + " ms");
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Runs simulated spins through a particle localizer.
+    *
+    * @param particles The number of particles.
+    * @param threads The number of threads sharing the updates.
+    * @param trials The number of spins.
+    * @param result The array in which the number of spins that converged,
+    * their mean position and heading errors, in cm and degrees, and the
+    * mean time per filter step, in ms, are returned.
+    */
+   public static void run(int particles, int threads, int trials, double [] result) {
+      ParticleLocalizer pf = new ParticleLocalizer(particles, threads);
+      Random random = new Random(1);
+      double [] est = new double [5];
+      int converged = 0, steps = 0;
+      double position = 0.0, heading = 0.0;
+      long time = 0;
+      
+      for (int trial = 0; trial < trials; trial++) {
+         double theta = START[2], turned = 0.0;
+         boolean done = false;
+         
+         pf.spread(PoseEstimator.WALL_MIN, PoseEstimator.WALL_MIN,
+                   PoseEstimator.WALL_MAX / 2, PoseEstimator.WALL_MAX / 2);
+         
+         while (!done && turned < 360.0 * Localizer.MCL_MAX_TURNS) {
+            
+            // the odometer sees STEP, the robot turns a little more or less
+            double dTheta = STEP + random.nextGaussian() * 0.3;
+            theta = Odometer.fixAngle(theta + dTheta);
+            turned += STEP;
+            
+            int distance = (int)Math.min(USPoller.DEFAULT_FILTER,
+                                         range(theta) + random.nextGaussian() * RANGE_NOISE);
+            if (random.nextInt(STRAY_RATE) == 0)
+               distance = random.nextInt(USPoller.DEFAULT_FILTER);
+            
+            long start = System.currentTimeMillis();
+            pf.move(0.0, STEP);
+            pf.measure(distance, USPoller.DEFAULT_FILTER);
+            if (pf.getEffectiveCount() < pf.getCount() / 2)
+               pf.resample();
+            pf.getEstimate(est);
+            time += System.currentTimeMillis() - start;
+            steps++;
+            
+            done = turned >= 360.0 && est[3] < Localizer.MCL_POSITION_SPREAD
+                   && est[4] < Localizer.MCL_HEADING_SPREAD;
+         }
+         
+         if (done) {
+            double dx = est[0] - START[0], dy = est[1] - START[1];
+            converged++;
+            position += Math.sqrt(dx * dx + dy * dy);
+            heading += Math.abs(Odometer.minimumAngleFromTo(theta, est[2]));
+         }
+      }
+      
+      result[0] = converged;
+      result[1] = converged > 0 ? position / converged : Double.NaN;
+      result[2] = converged > 0 ? heading / converged : Double.NaN;
+      result[3] = (double)time / steps;
+   }
+   
+   /**
+    * Gives the true distance from START to the course walls along a heading.
+    *
+    * @param theta The heading, in degrees.
+    *
+    * @return The distance, in cm.
+    */
+   private static double range(double theta) {
+      double sin = Math.sin(theta * Math.PI / 180.0), cos = Math.cos(theta * Math.PI / 180.0);
+      double range = Double.MAX_VALUE;
+      
+      if (Math.abs(sin) > 1e-3)
+         range = ((sin > 0.0 ? PoseEstimator.WALL_MAX : PoseEstimator.WALL_MIN) - START[0]) / sin;
+      if (Math.abs(cos) > 1e-3)
+         range = Math.min(range, ((cos > 0.0 ? PoseEstimator.WALL_MAX : PoseEstimator.WALL_MIN) - START[1]) / cos);
+      
+      return range;
+   }
+
+}
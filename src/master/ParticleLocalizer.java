@@ -0,0 +1,416 @@
+package master;
+
+import java.util.Random;
+
+/**
+ * Monte Carlo localization of the robot on the course, using the ultrasonic
+ * distances to the known course walls. Unlike the falling edge routine in
+ * Localizer, it makes no assumption about the robot's starting orientation.
+ * 
+ * The particles are kept in parallel float arrays, with no object per
+ * particle, and are resampled in place, so a localization run creates no
+ * garbage. The particle count can be tuned to what the brick can afford;
+ * on a desktop, the motion and measurement updates can be split across
+ * several worker threads to run large particle counts against a simulated
+ * course.
+ * 
+ * Note that the course walls alone are symmetric, so the particles should
+ * be spread over a region which contains only one of the symmetric poses,
+ * such as the starting quadrant.
+ * 
+ * 
+ * @see Localizer
+ * @see PoseEstimator
+ * @see USPoller
+ */
+public class ParticleLocalizer {
+   
+   /** Defines the default number of particles, affordable on the brick. */
+   public static final int DEFAULT_PARTICLES = 200;
+   /** Defines the standard deviation of an ultrasonic range, in cm. */
+   public static final float RANGE_SIGMA = 6.0f;
+   /** Defines the standard deviation of the distance travelled, per cm travelled. */
+   public static final float DISTANCE_SIGMA = 0.05f;
+   /** Defines the standard deviation of the rotation, per degree turned. */
+   public static final float TURN_SIGMA = 0.05f;
+   /** Defines the minimum standard deviation of each rotation update, in degrees. */
+   public static final float MIN_TURN_SIGMA = 0.5f;
+   /**
+    * Defines the standard deviation of the position jitter added on each
+    * motion update, in cm, which keeps resampling from collapsing the
+    * particles onto a few positions while the robot turns in place.
+    */
+   public static final float POSITION_JITTER = 0.5f;
+   /** Defines the likelihood given to any range, so one bad echo cannot wipe out all particles. */
+   public static final float OUTLIER_LIKELIHOOD = 0.02f;
+   
+   private static final int TASK_MOVE = 1;
+   private static final int TASK_MEASURE = 2;
+   
+   // Particle storage
+   private final int count;
+   private final float [] px, py, pt, pw;
+   private final int [] copies;
+   private final Random random;
+   
+   // Parameters of the current update, shared with the workers
+   private float moveDist, moveTurn;
+   private int measured, maxRange;
+   
+   // Worker threads, and the state used to hand them each update
+   private final Worker [] workers;
+   private int task, generation, pending;
+   
+   /**
+    * Creates a new particle localizer, running its updates on the calling
+    * thread only.
+    * 
+    * @param particles The number of particles.
+    */
+   public ParticleLocalizer(int particles) {
+      this(particles, 1);
+   }
+   
+   /**
+    * Creates a new particle localizer.
+    * 
+    * @param particles The number of particles.
+    * @param threads The number of threads sharing the updates, including the calling one.
+    */
+   public ParticleLocalizer(int particles, int threads) {
+      count = particles;
+      px = new float [count];
+      py = new float [count];
+      pt = new float [count];
+      pw = new float [count];
+      copies = new int [count];
+      random = new Random();
+      
+      workers = new Worker [threads - 1];
+      for (int i = 0; i < workers.length; i++) {
+         workers[i] = new Worker(i + 1, threads);
+         workers[i].setDaemon(true);
+         workers[i].start();
+      }
+   }
+   
+   /**
+    * Spreads the particles uniformly over a region of the course, with
+    * any orientation.
+    * 
+    * @param xMin The lowest x coordinate of the region, in cm.
+    * @param yMin The lowest y coordinate of the region, in cm.
+    * @param xMax The highest x coordinate of the region, in cm.
+    * @param yMax The highest y coordinate of the region, in cm.
+    */
+   public void spread(double xMin, double yMin, double xMax, double yMax) {
+      for (int i = 0; i < count; i++) {
+         px[i] = (float)(xMin + random.nextFloat() * (xMax - xMin));
+         py[i] = (float)(yMin + random.nextFloat() * (yMax - yMin));
+         pt[i] = random.nextFloat() * 360.0f;
+         pw[i] = 1.0f;
+      }
+   }
+   
+   /**
+    * Moves every particle by the motion measured by the odometer, with
+    * noise proportional to the motion.
+    * 
+    * @param dist The distance travelled, in cm.
+    * @param dTheta The rotation, in degrees.
+    */
+   public void move(double dist, double dTheta) {
+      moveDist = (float)dist;
+      moveTurn = (float)dTheta;
+      runTask(TASK_MOVE);
+   }
+   
+   /**
+    * Weighs every particle by the likelihood of an ultrasonic distance,
+    * measured straight ahead, given the course walls.
+    * 
+    * @param distance The measured distance, in cm.
+    * @param clamp The distance at which readings are clamped, in cm.
+    */
+   public void measure(int distance, int clamp) {
+      measured = distance;
+      maxRange = clamp;
+      runTask(TASK_MEASURE);
+   }
+   
+   /**
+    * Finds the effective number of particles, which drops as the weights
+    * concentrate on fewer of them.
+    * 
+    * @return The effective number of particles.
+    */
+   public float getEffectiveCount() {
+      float sum = 0.0f, squares = 0.0f;
+      
+      for (int i = 0; i < count; i++) {
+         sum += pw[i];
+         squares += pw[i] * pw[i];
+      }
+      
+      return (squares > 0.0f ? sum * sum / squares : 0.0f);
+   }
+   
+   /**
+    * Resamples the particles in proportion to their weights, in place.
+    * A systematic pass first counts how many copies of each particle
+    * survive; the particles with more than one copy are then copied into
+    * the slots of those with none.
+    */
+   public void resample() {
+      float total = 0.0f;
+      
+      for (int i = 0; i < count; i++)
+         total += pw[i];
+      
+      if (total <= 0.0f) {
+         for (int i = 0; i < count; i++)
+            pw[i] = 1.0f;
+         return;
+      }
+      
+      // systematic resampling, counting copies
+      float step = total / count;
+      float u = random.nextFloat() * step;
+      float cumulative = 0.0f;
+      
+      for (int i = 0; i < count; i++) {
+         cumulative += pw[i];
+         copies[i] = 0;
+         while (u < cumulative) {
+            copies[i]++;
+            u += step;
+         }
+      }
+      
+      // fill the discarded slots with the extra copies
+      int free = 0;
+      for (int i = 0; i < count; i++) {
+         while (copies[i] > 1) {
+            while (free < count && copies[free] != 0)
+               free++;
+            if (free == count)
+               break;
+            
+            px[free] = px[i];
+            py[free] = py[i];
+            pt[free] = pt[i];
+            copies[free] = 1;
+            copies[i]--;
+         }
+      }
+      
+      for (int i = 0; i < count; i++)
+         pw[i] = 1.0f;
+   }
+   
+   /**
+    * Finds the weighted mean pose of the particles, and how spread out
+    * they are.
+    * 
+    * @param pos The array of double in which the estimated x, y, theta,
+    * position spread (cm) and heading spread (degrees) are returned.
+    */
+   public void getEstimate(double [] pos) {
+      double total = 0.0, mx = 0.0, my = 0.0, sin = 0.0, cos = 0.0;
+      
+      for (int i = 0; i < count; i++) {
+         double t = pt[i] * Math.PI / 180.0;
+         total += pw[i];
+         mx += pw[i] * px[i];
+         my += pw[i] * py[i];
+         sin += pw[i] * Math.sin(t);
+         cos += pw[i] * Math.cos(t);
+      }
+      
+      if (total <= 0.0)
+         total = 1.0;
+      
+      mx /= total;
+      my /= total;
+      
+      double spread = 0.0;
+      for (int i = 0; i < count; i++)
+         spread += pw[i] * ((px[i] - mx) * (px[i] - mx) + (py[i] - my) * (py[i] - my));
+      
+      // the mean resultant length of the headings gives their circular spread
+      double resultant = Math.sqrt(sin * sin + cos * cos) / total;
+      
+      pos[0] = mx;
+      pos[1] = my;
+      pos[2] = Odometer.fixAngle(Math.atan2(sin, cos) * 180.0 / Math.PI);
+      pos[3] = Math.sqrt(spread / total);
+      pos[4] = Math.sqrt(-2.0 * Math.log(resultant > 1e-9 ? Math.min(resultant, 1.0) : 1e-9)) * 180.0 / Math.PI;
+   }
+   
+   /**
+    * Get the number of particles.
+    * 
+    * @return The number of particles.
+    */
+   public int getCount() {
+      return count;
+   }
+   
+   /**
+    * Runs an update over all particles, sharing it with the workers.
+    * 
+    * @param t The update to run.
+    */
+   private void runTask(int t) {
+      if (workers.length == 0) {
+         runSlice(t, 0, count, random);
+         return;
+      }
+      
+      synchronized (this) {
+         task = t;
+         pending = workers.length;
+         generation++;
+         notifyAll();
+      }
+      
+      runSlice(t, 0, count / (workers.length + 1), random);
+      
+      synchronized (this) {
+         while (pending > 0) {
+            try { wait(); } catch (InterruptedException e) {}
+         }
+      }
+   }
+   
+   /**
+    * Runs an update over a range of the particles.
+    * 
+    * @param t The update to run.
+    * @param from The first particle of the range.
+    * @param to The particle following the range.
+    * @param r The random number generator of the calling thread.
+    */
+   private void runSlice(int t, int from, int to, Random r) {
+      if (t == TASK_MOVE) {
+         float distSigma = DISTANCE_SIGMA * Math.abs(moveDist);
+         float turnSigma = TURN_SIGMA * Math.abs(moveTurn) + MIN_TURN_SIGMA;
+         
+         for (int i = from; i < to; i++) {
+            float d = moveDist + distSigma * gaussian(r);
+            float h = pt[i] + moveTurn / 2.0f;
+            double t0 = h * Math.PI / 180.0;
+            
+            px[i] += d * (float)Math.sin(t0) + POSITION_JITTER * gaussian(r);
+            py[i] += d * (float)Math.cos(t0) + POSITION_JITTER * gaussian(r);
+            pt[i] += moveTurn + turnSigma * gaussian(r);
+            
+            if (pt[i] < 0.0f)
+               pt[i] += 360.0f;
+            else if (pt[i] >= 360.0f)
+               pt[i] -= 360.0f;
+         }
+      } else if (t == TASK_MEASURE) {
+         float k = -0.5f / (RANGE_SIGMA * RANGE_SIGMA);
+         
+         for (int i = from; i < to; i++) {
+            
+            // particles which drove out of the course are impossible
+            if (px[i] < PoseEstimator.WALL_MIN || px[i] > PoseEstimator.WALL_MAX ||
+                py[i] < PoseEstimator.WALL_MIN || py[i] > PoseEstimator.WALL_MAX) {
+               pw[i] = 0.0f;
+               continue;
+            }
+            
+            float expected = wallRange(px[i], py[i], pt[i]);
+            float error;
+            
+            // a clamped reading only says the wall is at least that far
+            if (measured >= maxRange)
+               error = (expected >= maxRange ? 0.0f : maxRange - expected);
+            else
+               error = measured - (expected > maxRange ? maxRange : expected);
+            
+            pw[i] *= (float)Math.exp(k * error * error) + OUTLIER_LIKELIHOOD;
+         }
+      }
+   }
+   
+   /**
+    * Finds the distance from a pose to the course wall straight ahead.
+    * 
+    * @param x The x coordinate, in cm.
+    * @param y The y coordinate, in cm.
+    * @param theta The orientation, in degrees.
+    * 
+    * @return The distance to the wall, in cm.
+    */
+   private static float wallRange(float x, float y, float theta) {
+      double t = theta * Math.PI / 180.0;
+      float sin = (float)Math.sin(t), cos = (float)Math.cos(t);
+      float range = Float.MAX_VALUE;
+      
+      if (sin > 1e-3f)
+         range = (float)(PoseEstimator.WALL_MAX - x) / sin;
+      else if (sin < -1e-3f)
+         range = (float)(PoseEstimator.WALL_MIN - x) / sin;
+      
+      if (cos > 1e-3f)
+         range = Math.min(range, (float)(PoseEstimator.WALL_MAX - y) / cos);
+      else if (cos < -1e-3f)
+         range = Math.min(range, (float)(PoseEstimator.WALL_MIN - y) / cos);
+      
+      return range - (float)PoseEstimator.US_FORWARD;
+   }
+   
+   /**
+    * Draws an approximately normal random number, as the scaled sum of four
+    * uniform ones, which avoids the logarithm of the exact methods.
+    * 
+    * @param r The random number generator to use.
+    * 
+    * @return A random number with zero mean and unit standard deviation.
+    */
+   private static float gaussian(Random r) {
+      return (r.nextFloat() + r.nextFloat() + r.nextFloat() + r.nextFloat() - 2.0f) * 1.7320508f;
+   }
+   
+   /**
+    * Worker thread, which runs its share of each update.
+    */
+   private class Worker extends Thread {
+      
+      private final int index, slices;
+      private final Random r = new Random();
+      private int done;
+      
+      Worker(int index_, int slices_) {
+         index = index_;
+         slices = slices_;
+      }
+      
+      public void run() {
+         int t;
+         
+         while (true) {
+            
+            // wait for the next update
+            synchronized (ParticleLocalizer.this) {
+               while (generation == done) {
+                  try { ParticleLocalizer.this.wait(); } catch (InterruptedException e) {}
+               }
+               done = generation;
+               t = task;
+            }
+            
+            runSlice(t, (int)((long)count * index / slices), (int)((long)count * (index + 1) / slices), r);
+            
+            synchronized (ParticleLocalizer.this) {
+               pending--;
+               ParticleLocalizer.this.notifyAll();
+            }
+         }
+      }
+   }
+   
+}
@@ -0,0 +1,186 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of the time taken to cross the course diagonally, along the
+ * axes against following a path with the pure pursuit tracker. The
+ * odometer follows a simulated motion, fed to it through
+ * Odometer.integrate(), so the benchmark runs anywhere; on the brick,
+ * run it with the wheels off the ground, since they are still commanded.
+ *
+ * A drive thread reads the speeds commanded to the robot every PERIOD ms,
+ * brings each wheel towards its commanded speed by no more than
+ * WHEEL_ACCEL, and moves the odometer by the result. The heading hold's
+ * corrections are not simulated, which does not matter while the
+ * simulated wheels never slip. Each run goes from (0, 0) to
+ * (TILES, TILES) tiles: in two axis legs, in a staircase of one tile
+ * legs, straight with the tracker, and with the tracker through three
+ * waypoints. The time of each run and the final distance to the goal are
+ * printed, along with the tracker's largest cross-track error.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see PathTracker
+ * @see Navigation
+ */
+public class PathBenchmark {
+   
+   /** Defines the simulated odometer's period, in ms. */
+   public static final int PERIOD = 25;
+   /** Defines the largest acceleration of a simulated wheel, in cm/s^2. */
+   public static final double WHEEL_ACCEL = 70.0;
+   /** Defines the extent of the diagonal, in tiles along each axis. */
+   public static final int TILES = 5;
+   /** Defines the number of runs. */
+   public static final int RUNS = 4;
+   
+   private static final String [] NAMES = {"axes", "stairs", "pursuit", "waypoints"};
+   
+   /**
+    * Runs the benchmark, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      double [] result = new double [3];
+      
+      for (int run = 0; run < RUNS; run++) {
+         run(robot, run, result);
+         
+         System.out.println(NAMES[run] + " " + (long)result[0] + "ms");
+         System.out.println(" end " + (float)result[1] + " cm");
+         if (run >= 2)
+            System.out.println(" track " + (float)result[2] + " cm");
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Crosses the diagonal once.
+    *
+    * @param robot The robot, whose commanded speeds drive the simulation.
+    * @param run The run, from 0 to RUNS - 1.
+    * @param result The array in which the time taken, in ms, the final
+    * distance to the goal, and the tracker's largest cross-track error, in
+    * cm, are returned.
+    */
+   public static void run(TwoWheeledRobot robot, int run, double [] result) {
+      Odometer odo = new Odometer(robot, PERIOD, false);
+      Drive drive = new Drive(odo);
+      double tile = PoseEstimator.TILE, goal = TILES * tile;
+      
+      odo.integrate(0.0, 0.0, System.currentTimeMillis());
+      drive.start();
+      long start = System.currentTimeMillis();
+      result[2] = 0.0;
+      
+      if (run == 0) {
+         Navigation.turnTo(odo, 90.0);
+         Navigation.goForward(odo, goal, 90.0);
+         Navigation.turnTo(odo, 0.0);
+         Navigation.goForward(odo, goal, 0.0);
+      } else if (run == 1) {
+         for (int i = 0; i < TILES; i++) {
+            Navigation.turnTo(odo, 90.0);
+            Navigation.goForward(odo, tile, 90.0);
+            Navigation.turnTo(odo, 0.0);
+            Navigation.goForward(odo, tile, 0.0);
+         }
+      } else {
+         PathTracker tracker = Navigation.createPathTracker(odo);
+         if (run == 2)
+            tracker.setPath(new double [] {goal}, new double [] {goal}, 1);
+         else
+            tracker.setPath(new double [] {2 * tile, 2 * tile, goal}, new double [] {0.0, 3 * tile, goal}, 3);
+         Navigation.followPath(odo, tracker);
+         result[2] = tracker.getMaxCrossTrackError();
+      }
+      
+      result[0] = System.currentTimeMillis() - start;
+      drive.finish();
+      
+      double dx = odo.getX() - goal, dy = odo.getY() - goal;
+      result[1] = Math.sqrt(dx * dx + dy * dy);
+   }
+   
+   /**
+    * Thread moving the odometer as the robot's wheels would, following
+    * the speeds commanded to the robot within the wheels' acceleration.
+    */
+   private static class Drive extends Thread {
+      
+      private final Odometer odo;
+      private volatile boolean running = true;
+      
+      /**
+       * Creates a new drive.
+       *
+       * @param odo The odometer to move, and whose robot's speeds are followed.
+       */
+      Drive(Odometer odo) {
+         this.odo = odo;
+         setDaemon(true);
+      }
+      
+      public void run() {
+         TwoWheeledRobot robot = odo.getTwoWheeledRobot();
+         double half = TwoWheeledRobot.ODO_WIDTH * Math.PI / 360.0;
+         double left = 0.0, right = 0.0;
+         long last = System.currentTimeMillis();
+         
+         while (running) {
+            try {
+               Thread.sleep(PERIOD);
+            } catch (InterruptedException e) {}
+            
+            long now = System.currentTimeMillis();
+            double dt = (now - last) / 1000.0;
+            last = now;
+            
+            // bring each wheel towards its commanded speed, in cm/s
+            double forward = robot.getForwardSpeed(), rotation = robot.getRotationSpeed();
+            double newLeft = approach(left, forward + rotation * half, WHEEL_ACCEL * dt);
+            double newRight = approach(right, forward - rotation * half, WHEEL_ACCEL * dt);
+            
+            // move by the mean speed of each wheel over the period
+            double dLeft = (left + newLeft) / 2.0 * dt, dRight = (right + newRight) / 2.0 * dt;
+            left = newLeft;
+            right = newRight;
+            odo.integrate((dLeft + dRight) / 2.0, (dLeft - dRight) / TwoWheeledRobot.ODO_WIDTH * 180.0 / Math.PI, now);
+         }
+      }
+      
+      /**
+       * Stops the drive, and waits for it to end.
+       */
+      void finish() {
+         running = false;
+         try {
+            join();
+         } catch (InterruptedException e) {}
+      }
+      
+      /**
+       * Moves a speed towards a target, by no more than a step.
+       *
+       * @param speed The speed.
+       * @param target The target speed.
+       * @param step The largest change.
+       *
+       * @return The new speed.
+       */
+      private static double approach(double speed, double target, double step) {
+         if (target > speed + step)
+            return speed + step;
+         if (target < speed - step)
+            return speed - step;
+         return target;
+      }
+   }
+
+}
@@ -0,0 +1,391 @@
+package master;
+
+/**
+ * Follows a polyline of waypoints with a pure pursuit controller: after
+ * each odometer update, the robot steers along the circular arc which
+ * passes through a point a lookahead distance further along the path.
+ * This lets the robot drive diagonals and round the corners of the path,
+ * rather than moving along the axes and stopping to turn at each leg.
+ *
+ * The robot only stops at the last waypoint. It slows down for each corner
+ * to the speed at which it can take the arc that pursuit rounds the corner
+ * into, and accelerates out of it, along the path's velocity profile.
+ *
+ * The tracker reports the cross-track error, the distance between the
+ * robot and the closest point of the path, as it goes.
+ *
+ *
+ * @see Navigation#followPath(Odometer, PathTracker)
+ * @see MotionProfile
+ */
+public class PathTracker {
+   
+   /** Defines the maximum number of waypoints in a path, including the starting position. */
+   public static final int MAX_WAYPOINTS = 32;
+   /** Defines the default lookahead distance, in cm. */
+   public static final double DEFAULT_LOOKAHEAD = 15.0;
+   /** Defines the distance from the last waypoint at which the path is complete, in cm. */
+   public static final double GOAL_TOLERANCE = 1.0;
+   /** Defines the heading error above which the robot turns in place before driving, in degrees. */
+   public static final double ALIGN_ANGLE = 45.0;
+   /** Defines the largest sideways acceleration allowed in corners, in cm/s^2. */
+   public static final double MAX_LATERAL_ACCEL = 20.0;
+   
+   private Odometer odo;
+   private TwoWheeledRobot robot;
+   private USPoller usp;
+   private SpeedGovernor governor;
+   private MotionProfile profile;
+   private double lookahead;
+   
+   // Waypoints, as given
+   private double [] wx, wy;
+   private int waypoints;
+   
+   // Path vertices, with the length of each segment, the path length up to each vertex,
+   // the speed at which to take each corner, and the waypoint of each vertex
+   private double [] px, py, segLength, pathLength, cornerSpeed;
+   private int [] vertexWaypoint;
+   private int count;
+   private volatile boolean complete;
+   
+   // Progress along the path
+   private int segment;
+   private volatile double crossTrack, maxCrossTrack, progress;
+   private double [] pos = new double [3];
+   private double [] target = new double [2];
+   
+   /**
+    * Creates a path tracker for the given robot.
+    *
+    * @param odo_ The odometer tracking the robot's movement.
+    * @param profile_ The velocity profile to follow along the path.
+    * @param lookahead_ The lookahead distance, in cm; longer is smoother, shorter follows the path more closely.
+    */
+   public PathTracker(Odometer odo_, MotionProfile profile_, double lookahead_) {
+      odo = odo_;
+      robot = odo.getTwoWheeledRobot();
+      profile = profile_;
+      lookahead = lookahead_;
+      
+      wx = new double [MAX_WAYPOINTS];
+      wy = new double [MAX_WAYPOINTS];
+      px = new double [MAX_WAYPOINTS];
+      py = new double [MAX_WAYPOINTS];
+      segLength = new double [MAX_WAYPOINTS];
+      pathLength = new double [MAX_WAYPOINTS];
+      cornerSpeed = new double [MAX_WAYPOINTS];
+      vertexWaypoint = new int [MAX_WAYPOINTS];
+   }
+   
+   /**
+    * Sets an ultrasonic poller, with which the tracker slows down as it
+    * closes in on an obstacle ahead, and stops if it is closer than
+    * Navigation.CLEARANCE_NEAR.
+    *
+    * @param usp_ The robot's ultrasonic poller, or null to drive blind.
+    */
+   public void setUSPoller(USPoller usp_) {
+      usp = usp_;
+      governor = (usp == null ? null : new SpeedGovernor(usp, Navigation.CLEARANCE_NEAR, profile.getMaxSpeed()));
+   }
+   
+   /**
+    * Sets the path to follow. The path starts from wherever the robot is
+    * when it starts following it.
+    *
+    * @param xs The x coordinates of the waypoints, in cm.
+    * @param ys The y coordinates of the waypoints, in cm.
+    * @param n The number of waypoints.
+    *
+    * @return False if there are too many waypoints.
+    */
+   public boolean setPath(double [] xs, double [] ys, int n) {
+      if (n + 1 > MAX_WAYPOINTS)
+         return false;
+      
+      for (int i = 0; i < n; i++) {
+         wx[i] = xs[i];
+         wy[i] = ys[i];
+      }
+      waypoints = n;
+      complete = false;
+      return true;
+   }
+   
+   /**
+    * Builds the path's segments, from the robot's current position
+    * through each waypoint.
+    */
+   private void build() {
+      odo.getPosition(pos);
+      px[0] = pos[0];
+      py[0] = pos[1];
+      count = 1;
+      
+      // skip waypoints on top of the previous one, which have no direction
+      for (int i = 0; i < waypoints; i++) {
+         double dx = wx[i] - px[count - 1], dy = wy[i] - py[count - 1];
+         double length = Math.sqrt(dx * dx + dy * dy);
+         if (length < GOAL_TOLERANCE)
+            continue;
+         
+         segLength[count - 1] = length;
+         pathLength[count] = pathLength[count - 1] + length;
+         px[count] = wx[i];
+         py[count] = wy[i];
+         vertexWaypoint[count] = i;
+         count++;
+      }
+      
+      // pursuit rounds each corner into an arc tangent to both segments,
+      // about half a lookahead distance from the corner
+      for (int i = 1; i < count - 1; i++) {
+         double cos = ((px[i] - px[i - 1]) * (px[i + 1] - px[i]) + (py[i] - py[i - 1]) * (py[i + 1] - py[i]))
+                      / (segLength[i - 1] * segLength[i]);
+         double deflection = Math.acos(Math.max(-1.0, Math.min(1.0, cos)));
+         
+         cornerSpeed[i] = profile.getMaxSpeed();
+         if (deflection > 0.001) {
+            double radius = lookahead / 2.0 / Math.tan(deflection / 2.0);
+            cornerSpeed[i] = Math.min(cornerSpeed[i], Math.sqrt(MAX_LATERAL_ACCEL * radius));
+         }
+      }
+      
+      segment = 0;
+      progress = 0.0;
+      crossTrack = 0.0;
+      maxCrossTrack = 0.0;
+   }
+   
+   /**
+    * Drives along the path, on the calling thread, until the robot reaches
+    * the last waypoint, its motion is cancelled, or an obstacle blocks it.
+    * The robot also stops if it gets past the end of the path without
+    * coming within GOAL_TOLERANCE of the last waypoint.
+    *
+    * @return True if the robot stopped within GOAL_TOLERANCE of the last waypoint.
+    */
+   public boolean follow() {
+      UpdateSignal updates = odo.getUpdateSignal();
+      int gen;
+      boolean reached = false;
+      
+      build();
+      if (count < 2) {
+         complete = true;
+         return true;
+      }
+      
+      profile.plan(pathLength[count - 1]);
+      
+      // face the path first, if it starts at a sharp angle
+      odo.getPosition(pos);
+      track();
+      double bearing = Math.atan2(target[0] - pos[0], target[1] - pos[1]) * 180.0 / Math.PI;
+      if (Math.abs(Odometer.minimumAngleFromTo(pos[2], bearing)) > ALIGN_ANGLE)
+         Navigation.turnTo(odo, Odometer.fixAngle(bearing));
+      
+      gen = updates.getGeneration();
+      if (governor != null)
+         governor.reset();
+      
+      while (!MotionExecutor.cancelRequested()) {
+         odo.getPosition(pos);
+         track();
+         
+         // done once within tolerance of the goal; past the end of the path
+         // but further away, the robot missed it, and stops rather than circle it
+         double gx = px[count - 1] - pos[0], gy = py[count - 1] - pos[1];
+         if (gx * gx + gy * gy < GOAL_TOLERANCE * GOAL_TOLERANCE) {
+            reached = true;
+            break;
+         }
+         if (progress >= pathLength[count - 1])
+            break;
+         
+         if (usp != null && usp.getDistHi() < Navigation.CLEARANCE_NEAR)
+            break;
+         
+         // steer along the arc through the lookahead point: its curvature
+         // is 2 sin(alpha) / d, alpha being the angle to the point, and d its distance
+         double dx = target[0] - pos[0], dy = target[1] - pos[1];
+         double d = Math.sqrt(dx * dx + dy * dy);
+         double alpha = Odometer.minimumAngleFromTo(pos[2], Math.atan2(dx, dy) * 180.0 / Math.PI);
+         double speed = getSpeed();
+         if (governor != null) {
+            speed = Math.min(speed, governor.getSpeed(pathLength[count - 1] - progress));
+            if (speed == 0.0)
+               break;
+         }
+         
+         double turn = 0.0;
+         if (d > 0.0)
+            turn = 2.0 * speed * Trig.sin(alpha) / d * 180.0 / Math.PI;
+         
+         robot.setSpeeds(speed, turn);
+         
+         gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
+      }
+      
+      robot.setSpeeds(0, 0);
+      complete = reached;
+      return reached;
+   }
+   
+   /**
+    * Computes the speed along the path, within the profile and the speed
+    * limit of each corner, which holds over the arc around the corner.
+    *
+    * @return The forward speed to command, in cm/s.
+    */
+   private double getSpeed() {
+      double speed = profile.getSpeed(progress);
+      
+      for (int i = 1; i < count - 1; i++) {
+         double d = Math.abs(progress - pathLength[i]) - lookahead / 2.0;
+         speed = Math.min(speed, profile.getSpeedAround(d > 0.0 ? d : 0.0, cornerSpeed[i]));
+      }
+      
+      return speed;
+   }
+   
+   /**
+    * Tells whether the robot reached the last waypoint of the path.
+    *
+    * @return True if the path was followed to its end.
+    */
+   public boolean isComplete() {
+      return complete;
+   }
+   
+   /**
+    * Get the distance between the robot and the closest point of the path,
+    * as of the last update.
+    *
+    * @return The cross-track error, in cm, positive when the robot is right of the path.
+    */
+   public double getCrossTrackError() {
+      return crossTrack;
+   }
+   
+   /**
+    * Get the largest cross-track error since the path was set.
+    *
+    * @return The largest distance between the robot and the path, in cm.
+    */
+   public double getMaxCrossTrackError() {
+      return maxCrossTrack;
+   }
+   
+   /**
+    * Get the number of waypoints in the path.
+    *
+    * @return The number of waypoints set.
+    */
+   public int getWaypointCount() {
+      return waypoints;
+   }
+   
+   /**
+    * Get the x coordinate of a waypoint.
+    *
+    * @param i The index of the waypoint.
+    *
+    * @return The x coordinate, in cm.
+    */
+   public double getWaypointX(int i) {
+      return wx[i];
+   }
+   
+   /**
+    * Get the y coordinate of a waypoint.
+    *
+    * @param i The index of the waypoint.
+    *
+    * @return The y coordinate, in cm.
+    */
+   public double getWaypointY(int i) {
+      return wy[i];
+   }
+   
+   /**
+    * Get the next waypoint the robot is heading for, as of the last update.
+    *
+    * @return The index of the next waypoint, or the number of waypoints if the path is complete.
+    */
+   public int getNextWaypoint() {
+      if (complete)
+         return waypoints;
+      if (segment + 1 >= count)
+         return (count > 1 ? vertexWaypoint[count - 1] : 0);
+      
+      return vertexWaypoint[segment + 1];
+   }
+   
+   /**
+    * Get the distance covered along the path.
+    *
+    * @return The path length up to the closest point of the path, in cm.
+    */
+   public double getProgress() {
+      return progress;
+   }
+   
+   /**
+    * Finds the point of the path closest to the robot, from the current
+    * segment onwards, and the lookahead point, one lookahead distance
+    * further along the path.
+    */
+   private void track() {
+      double best = Double.MAX_VALUE;
+      int bestSegment = segment;
+      double bestT = 0.0;
+      
+      // only look a couple of segments ahead, so crossing paths are never skipped
+      for (int i = segment; i < count - 1 && i <= segment + 2; i++) {
+         double ux = (px[i + 1] - px[i]) / segLength[i];
+         double uy = (py[i + 1] - py[i]) / segLength[i];
+         double t = (pos[0] - px[i]) * ux + (pos[1] - py[i]) * uy;
+         if (t < 0.0)
+            t = 0.0;
+         else if (t > segLength[i] && i < count - 2)
+            t = segLength[i];
+         
+         double ex = pos[0] - (px[i] + t * ux), ey = pos[1] - (py[i] + t * uy);
+         double dist = ex * ex + ey * ey;
+         if (dist < best) {
+            best = dist;
+            bestSegment = i;
+            bestT = t;
+         }
+      }
+      
+      segment = bestSegment;
+      progress = pathLength[segment] + bestT;
+      
+      // signed distance from the segment's line
+      double ux = (px[segment + 1] - px[segment]) / segLength[segment];
+      double uy = (py[segment + 1] - py[segment]) / segLength[segment];
+      double e = uy * (pos[0] - px[segment]) - ux * (pos[1] - py[segment]);
+      crossTrack = e;
+      if (Math.abs(e) > maxCrossTrack)
+         maxCrossTrack = Math.abs(e);
+      
+      // lookahead point
+      double s = progress + lookahead;
+      int j = segment;
+      while (j < count - 2 && pathLength[j + 1] <= s)
+         j++;
+      
+      if (s >= pathLength[count - 1]) {
+         target[0] = px[count - 1];
+         target[1] = py[count - 1];
+      } else {
+         double k = (s - pathLength[j]) / segLength[j];
+         target[0] = px[j] + k * (px[j + 1] - px[j]);
+         target[1] = py[j] + k * (py[j + 1] - py[j]);
+      }
+   }
+
+}
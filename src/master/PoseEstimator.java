@@ -0,0 +1,174 @@
+package master;
+
+/**
+ * Extended Kalman filter pose estimator, which weighs the odometry against
+ * the grid lines crossed by the light sensors and the walls ranged by the
+ * ultrasonic sensor, instead of overwriting the pose with either.
+ * 
+ * The prediction step is the Odometer itself, which integrates the tacho
+ * deltas and propagates the pose covariance on every update. This class
+ * adds the measurement updates: each line crossing or wall range is turned
+ * into a scalar measurement, predicted from the pose at the time it was
+ * sampled, and fused into the odometer's pose and covariance. All the
+ * working storage is preallocated, so the filter runs without creating
+ * garbage.
+ * 
+ * 
+ * @see Odometer
+ * @see GridSnapper
+ * @see USPoller
+ */
+public class PoseEstimator {
+   
+   /** Defines the size of a grid tile, in cm. */
+   public static final double TILE = 30.48;
+   /** Defines the coordinate of the West and South walls, in cm. */
+   public static final double WALL_MIN = -TILE;
+   /** Defines the coordinate of the East and North walls, in cm. */
+   public static final double WALL_MAX = 11 * TILE;
+   
+   /** Defines the distance of the light sensors ahead of the wheel axis, in cm. */
+   public static final double LS_FORWARD = -Localizer.LSOFFSET;
+   /** Defines the distance of each light sensor from the robot's center line, in cm. */
+   public static final double LS_LATERAL = Localizer.LSDIST / 2.0;
+   /** Defines the distance of the ultrasonic sensor ahead of the wheel axis, in cm. */
+   public static final double US_FORWARD = 0.0;
+   
+   /** Defines the variance of a line crossing position, in cm^2. */
+   public static final double LINE_VARIANCE = 0.25;
+   /** Defines the variance of an ultrasonic wall range, in cm^2. */
+   public static final double RANGE_VARIANCE = 4.0;
+   /** Defines the validation gate of the measurements, in standard deviations. */
+   public static final double GATE = 3.0;
+   /** Defines the largest angle between the ultrasonic beam and a wall's normal that still gives a reliable echo, in degrees. */
+   public static final double MAX_INCIDENCE = 30.0;
+   
+   private Odometer odo;
+   
+   // Preallocated working storage
+   private double [] pose = new double [3];
+   private double [] h = new double [3];
+   
+   private int lineFused, lineRejected, rangeFused, rangeRejected;
+   
+   /**
+    * Creates a new estimator, fusing measurements into the given odometer.
+    * 
+    * @param odo_ The odometer tracking the robot's movement.
+    */
+   public PoseEstimator(Odometer odo_) {
+      odo = odo_;
+   }
+   
+   /**
+    * Fuses a line crossing detected by one of the light sensors. The sensor
+    * is assumed to have been over the grid line nearest to where the pose
+    * at that time puts it, across the robot's main direction of travel.
+    * 
+    * @param left True if the line was seen by the left light sensor.
+    * @param time The time at which the line was sampled, in ms.
+    * 
+    * @return True if the crossing was consistent with the pose, and fused.
+    */
+   public synchronized boolean lineCrossed(boolean left, long time) {
+      odo.getPoseAt(time, pose);
+      
+      double t = pose[2] * Math.PI / 180.0;
+      double sin = Math.sin(t), cos = Math.cos(t);
+      double lateral = (left ? -LS_LATERAL : LS_LATERAL);
+      double sensor, line;
+      
+      // forward is (sin, cos), and right is (cos, -sin)
+      if (Math.abs(cos) >= Math.abs(sin)) {
+         
+         // travelling North or South, so crossing a line of constant y
+         sensor = pose[1] + LS_FORWARD * cos - lateral * sin;
+         h[0] = 0.0;
+         h[1] = 1.0;
+         h[2] = (-LS_FORWARD * sin - lateral * cos) * Math.PI / 180.0;
+      } else {
+         
+         // travelling East or West, so crossing a line of constant x
+         sensor = pose[0] + LS_FORWARD * sin + lateral * cos;
+         h[0] = 1.0;
+         h[1] = 0.0;
+         h[2] = (LS_FORWARD * cos - lateral * sin) * Math.PI / 180.0;
+      }
+      
+      line = Math.floor(sensor / TILE + 0.5) * TILE;
+      
+      if (odo.fuse(h, line - sensor, LINE_VARIANCE, GATE)) {
+         lineFused++;
+         return true;
+      }
+      
+      lineRejected++;
+      return false;
+   }
+   
+   /**
+    * Fuses a distance measured by the ultrasonic sensor, if the beam points
+    * squarely enough at one of the course walls. Readings much shorter than
+    * the wall, such as obstacles, fall outside the gate and are rejected.
+    * 
+    * @param distance The measured distance, in cm.
+    * @param maxRange The distance at which readings are clamped, in cm.
+    * @param time The time at which the distance was pinged, in ms.
+    * 
+    * @return True if the range was fused.
+    */
+   public synchronized boolean rangeMeasured(int distance, int maxRange, long time) {
+      if (distance >= maxRange)
+         return false;
+      
+      odo.getPoseAt(time, pose);
+      
+      double t = pose[2] * Math.PI / 180.0;
+      double sin = Math.sin(t), cos = Math.cos(t);
+      double wx = (sin > 0.0 ? WALL_MAX : WALL_MIN) - pose[0];
+      double wy = (cos > 0.0 ? WALL_MAX : WALL_MIN) - pose[1];
+      double range, minComponent = Math.cos(MAX_INCIDENCE * Math.PI / 180.0);
+      
+      // the beam hits whichever wall it reaches first
+      if (Math.abs(wx * cos) < Math.abs(wy * sin)) {
+         if (Math.abs(sin) < minComponent)
+            return false;
+         
+         range = wx / sin - US_FORWARD;
+         h[0] = -1.0 / sin;
+         h[1] = 0.0;
+         h[2] = -wx * cos / (sin * sin) * Math.PI / 180.0;
+      } else {
+         if (Math.abs(cos) < minComponent)
+            return false;
+         
+         range = wy / cos - US_FORWARD;
+         h[0] = 0.0;
+         h[1] = -1.0 / cos;
+         h[2] = wy * sin / (cos * cos) * Math.PI / 180.0;
+      }
+      
+      if (odo.fuse(h, distance - range, RANGE_VARIANCE, GATE)) {
+         rangeFused++;
+         return true;
+      }
+      
+      rangeRejected++;
+      return false;
+   }
+   
+   /**
+    * Makes the measurement counts accessible, to check how many of them
+    * were consistent with the odometry.
+    * 
+    * @param counts The array of int in which the fused and rejected line
+    * crossings, then the fused and rejected ranges are returned.
+    */
+   public synchronized void getCounts(int [] counts) {
+      counts[0] = lineFused;
+      counts[1] = lineRejected;
+      counts[2] = rangeFused;
+      counts[3] = rangeRejected;
+   }
+   
+}
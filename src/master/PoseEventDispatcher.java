@@ -0,0 +1,152 @@
+package master;
+
+/**
+ * Thread which delivers the Odometer's node and direction changes to the
+ * registered PoseListeners. The odometer only posts the change into a
+ * preallocated ring and returns, so slow listeners never delay an update,
+ * and no objects are allocated per event.
+ * 
+ * 
+ * @see Odometer
+ * @see PoseListener
+ */
+public class PoseEventDispatcher extends Thread {
+   
+   /** Flags a change of grid node. */
+   public static final int NODE_CHANGED = 1;
+   /** Flags a change of cardinal direction. */
+   public static final int DIRECTION_CHANGED = 2;
+   
+   /** Defines the maximum number of events waiting to be delivered. */
+   public static final int QUEUE_SIZE = 16;
+   /** Defines the maximum number of registered listeners. */
+   public static final int MAX_LISTENERS = 8;
+   
+   // Event ring, guarded by this dispatcher's monitor
+   private int [] changes, nodeX, nodeY, direction;
+   private int head, count, dropped;
+   
+   // Registered listeners, guarded by their own lock
+   private PoseListener [] listeners;
+   private int listenerCount;
+   private Object listenerLock;
+   
+   /**
+    * Creates and starts a new dispatcher thread.
+    */
+   public PoseEventDispatcher() {
+      changes = new int [QUEUE_SIZE];
+      nodeX = new int [QUEUE_SIZE];
+      nodeY = new int [QUEUE_SIZE];
+      direction = new int [QUEUE_SIZE];
+      listeners = new PoseListener [MAX_LISTENERS];
+      listenerLock = new Object();
+      
+      this.setDaemon(true);
+      this.start();
+   }
+   
+   /**
+    * Queues an event for delivery. If the queue is full, the oldest
+    * event is dropped to make room for it.
+    * 
+    * @param change The changes which occured (NODE_CHANGED and/or DIRECTION_CHANGED).
+    * @param nx The robot's nodal x position.
+    * @param ny The robot's nodal y position.
+    * @param dir The robot's direction.
+    */
+   public synchronized void post(int change, int nx, int ny, int dir) {
+      if (count == QUEUE_SIZE) {
+         head = (head + 1) % QUEUE_SIZE;
+         count--;
+         dropped++;
+      }
+      
+      int tail = (head + count) % QUEUE_SIZE;
+      changes[tail] = change;
+      nodeX[tail] = nx;
+      nodeY[tail] = ny;
+      direction[tail] = dir;
+      count++;
+      
+      notify();
+   }
+   
+   /**
+    * Waits for events, and calls the listeners for each of them, in order.
+    */
+   public void run() {
+      int change, nx, ny, dir;
+      
+      while (true) {
+         
+         // take the oldest event off the queue
+         synchronized (this) {
+            while (count == 0) {
+               try { wait(); } catch (InterruptedException e) {}
+            }
+            
+            change = changes[head];
+            nx = nodeX[head];
+            ny = nodeY[head];
+            dir = direction[head];
+            head = (head + 1) % QUEUE_SIZE;
+            count--;
+         }
+         
+         // deliver it outside the queue's monitor, so posting never waits
+         synchronized (listenerLock) {
+            for (int i = 0; i < listenerCount; i++) {
+               if ((change & NODE_CHANGED) != 0)
+                  listeners[i].nodeChanged(nx, ny);
+               if ((change & DIRECTION_CHANGED) != 0)
+                  listeners[i].directionChanged(dir);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Registers a listener.
+    * 
+    * @param listener The listener to be added.
+    * 
+    * @return False if MAX_LISTENERS listeners are already registered.
+    */
+   public boolean addListener(PoseListener listener) {
+      synchronized (listenerLock) {
+         if (listenerCount == MAX_LISTENERS)
+            return false;
+         
+         listeners[listenerCount++] = listener;
+         return true;
+      }
+   }
+   
+   /**
+    * Unregisters a listener.
+    * 
+    * @param listener The listener to be removed.
+    */
+   public void removeListener(PoseListener listener) {
+      synchronized (listenerLock) {
+         for (int i = 0; i < listenerCount; i++) {
+            if (listeners[i] == listener) {
+               listeners[i] = listeners[--listenerCount];
+               listeners[listenerCount] = null;
+               return;
+            }
+         }
+      }
+   }
+   
+   /**
+    * Get the number of events dropped because the queue was full.
+    * 
+    * @return The number of dropped events.
+    */
+   public synchronized int getDropped() {
+      return dropped;
+   }
+   
+}
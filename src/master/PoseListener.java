@@ -0,0 +1,29 @@
+package master;
+
+/**
+ * Interface for the classes which need to know as soon as the robot
+ * crosses into a new grid node or changes its cardinal direction,
+ * rather than polling the odometer for it.
+ * 
+ * 
+ * @see Odometer
+ * @see PoseEventDispatcher
+ */
+public interface PoseListener {
+   
+   /**
+    * Called when the robot enters a new grid node.
+    * 
+    * @param nodeX The robot's new x node coordinate, in "feet".
+    * @param nodeY The robot's new y node coordinate, in "feet".
+    */
+   public void nodeChanged(int nodeX, int nodeY);
+   
+   /**
+    * Called when the robot changes its cardinal direction.
+    * 
+    * @param direction The robot's new direction (0 = N, 1 = E, 2 = S, 3 = W).
+    */
+   public void directionChanged(int direction);
+   
+}
@@ -0,0 +1,139 @@
+package master;
+
+/**
+ * Sets the forward speed from the clearance measured ahead by the high
+ * ultrasonic sensor, so the robot runs fast through open space and slows
+ * down as it closes in on an obstacle, instead of crawling at a constant
+ * speed everywhere.
+ *
+ * The speed is the lowest of: a speed proportional to the free distance
+ * left before the stop distance; the speed from which the robot can brake
+ * to a stop within that distance; and the speed which keeps the time to
+ * collision above MIN_TIME_TO_COLLISION, counting how fast the obstacle
+ * itself approaches, as measured from successive samples.
+ *
+ *
+ * @see Navigation
+ * @see USPoller
+ */
+public class SpeedGovernor {
+   
+   /** Defines the default top speed, in open space, in cm/s. */
+   public static final double DEFAULT_MAX_SPEED = 25.0;
+   /** Defines the lowest speed commanded while there is free distance left, in cm/s. */
+   public static final double MIN_SPEED = 2.0;
+   /** Defines the braking deceleration, in cm/s^2. */
+   public static final double DECELERATION = 15.0;
+   /** Defines the speed per cm of free distance, in 1/s. */
+   public static final double CLEARANCE_GAIN = 0.5;
+   /** Defines the shortest time to collision allowed, in s. */
+   public static final double MIN_TIME_TO_COLLISION = 1.5;
+   /** Defines the weight of each new sample in the closing speed estimate. */
+   private static final double CLOSING_WEIGHT = 0.5;
+   
+   private USPoller usp;
+   private double stopDistance, maxSpeed;
+   
+   // Last sample, closing speed estimate, and last speed commanded
+   private int lastDist;
+   private long lastTime;
+   private double closing, speed;
+   
+   /**
+    * Creates a governor which stops the robot at the given distance from
+    * obstacles.
+    *
+    * @param usp_ The robot's ultrasonic poller.
+    * @param stopDistance_ The distance from an obstacle at which the robot must be stopped, in cm.
+    * @param maxSpeed_ The top speed, in cm/s.
+    */
+   public SpeedGovernor(USPoller usp_, double stopDistance_, double maxSpeed_) {
+      usp = usp_;
+      stopDistance = stopDistance_;
+      maxSpeed = maxSpeed_;
+   }
+   
+   /**
+    * Creates a governor with the default top speed.
+    *
+    * @param usp_ The robot's ultrasonic poller.
+    * @param stopDistance_ The distance from an obstacle at which the robot must be stopped, in cm.
+    */
+   public SpeedGovernor(USPoller usp_, double stopDistance_) {
+      this(usp_, stopDistance_, DEFAULT_MAX_SPEED);
+   }
+   
+   /**
+    * Forgets the closing speed, before a new straight run.
+    */
+   public void reset() {
+      lastTime = 0;
+      closing = 0.0;
+      speed = 0.0;
+   }
+   
+   /**
+    * Computes the forward speed for the latest ultrasonic sample, and the
+    * distance left to the target of the run.
+    *
+    * @param remaining The distance left to drive, in cm.
+    *
+    * @return The forward speed to command, in cm/s, 0 if the robot must stop.
+    */
+   public double getSpeed(double remaining) {
+      int dist = usp.getDistHi();
+      long time = usp.getSampleTime(USPoller.HIGH);
+      
+      // closing speed, from each new sample
+      if (lastTime != 0 && time > lastTime) {
+         double rate = (lastDist - dist) * 1000.0 / (time - lastTime);
+         closing += CLOSING_WEIGHT * (rate - closing);
+      }
+      if (time != lastTime) {
+         lastDist = dist;
+         lastTime = time;
+      }
+      
+      double free = Math.min(dist - stopDistance, remaining);
+      if (free <= 0.0) {
+         speed = 0.0;
+         return speed;
+      }
+      
+      // how fast the obstacle itself approaches, beyond the robot's own speed
+      double approach = closing - speed;
+      if (approach < 0.0)
+         approach = 0.0;
+      
+      double s = maxSpeed;
+      s = Math.min(s, CLEARANCE_GAIN * (dist - stopDistance));
+      s = Math.min(s, Math.sqrt(2.0 * DECELERATION * free));
+      s = Math.min(s, (dist - stopDistance) / MIN_TIME_TO_COLLISION - approach);
+      
+      speed = (s < MIN_SPEED ? MIN_SPEED : s);
+      return speed;
+   }
+   
+   /**
+    * Get the rate at which the measured clearance decreases.
+    *
+    * @return The closing speed, in cm/s, negative if the clearance grows.
+    */
+   public double getClosingSpeed() {
+      return closing;
+   }
+   
+   /**
+    * Computes the time until the robot reaches the stop distance, at the
+    * current closing speed.
+    *
+    * @return The time to collision, in s, or infinity if the clearance is not closing.
+    */
+   public double getTimeToCollision() {
+      if (closing <= 0.0)
+         return Double.POSITIVE_INFINITY;
+      
+      return (lastDist - stopDistance) / closing;
+   }
+
+}
@@ -0,0 +1,176 @@
+package master;
+
+/**
+ * Subscription to the moments an ultrasonic distance crosses a threshold,
+ * such as a wall coming into view while the robot spins. The poller checks
+ * it after each sample, on its own thread, and latches the sample's time
+ * and the robot's heading at that time (see Odometer.getPoseAt()), so the
+ * edge is placed where it was pinged, not where the waiting thread got to
+ * read it.
+ *
+ * The distance is near once it is at or below the threshold, and far once
+ * it is at or above the threshold plus the hysteresis, so noise around the
+ * threshold does not produce a train of edges. A falling edge enters near,
+ * a rising edge enters far.
+ *
+ *
+ * @see USPoller
+ * @see UltrasonicDataCollector
+ */
+public class ThresholdSubscription {
+   
+   /** No edge yet: the distance has not been clearly near or far. */
+   public static final int NONE = 0;
+   /** The distance fell to the threshold. */
+   public static final int FALLING = 1;
+   /** The distance rose to the threshold plus the hysteresis. */
+   public static final int RISING = 2;
+   
+   /** Watches both sensors: near when both are near, far when both are far. */
+   public static final int BOTH = 2;
+   
+   private final Odometer odo;
+   private final int sensor, threshold, hysteresis;
+   
+   // Last edge, and the sample which caused it, guarded by this subscription's monitor
+   private int edge = NONE;
+   private int distance, count;
+   private long time;
+   private double [] pose = new double [3];
+   
+   /**
+    * Creates a subscription. Register it with USPoller.subscribe().
+    *
+    * @param odo_ The odometer, from which the heading at each edge is found.
+    * @param sensor_ USPoller.LOW, USPoller.HIGH or BOTH.
+    * @param threshold_ The distance at or below which the sensor is near, in cm.
+    * @param hysteresis_ The distance above the threshold at which the sensor is far again, in cm.
+    */
+   public ThresholdSubscription(Odometer odo_, int sensor_, int threshold_, int hysteresis_) {
+      odo = odo_;
+      sensor = sensor_;
+      threshold = threshold_;
+      hysteresis = hysteresis_;
+   }
+   
+   /**
+    * Checks a sample for an edge, and wakes up the waiting threads if there
+    * is one. Called on the sampling thread, after each sample.
+    *
+    * @param distLo The low sensor's distance, in cm.
+    * @param distHi The high sensor's distance, in cm.
+    * @param sampleTime The time the sample was pinged, in ms.
+    */
+   void update(int distLo, int distHi, long sampleTime) {
+      int nearDist, farDist;
+      
+      if (sensor == USPoller.LOW) {
+         nearDist = farDist = distLo;
+      } else if (sensor == USPoller.HIGH) {
+         nearDist = farDist = distHi;
+      } else {
+         nearDist = Math.max(distLo, distHi);
+         farDist = Math.min(distLo, distHi);
+      }
+      
+      int crossed;
+      if (edge != FALLING && nearDist <= threshold) {
+         crossed = FALLING;
+      } else if (edge != RISING && farDist >= threshold + hysteresis) {
+         crossed = RISING;
+      } else {
+         return;
+      }
+      
+      synchronized (this) {
+         odo.getPoseAt(sampleTime, pose);
+         edge = crossed;
+         distance = (crossed == FALLING ? nearDist : farDist);
+         time = sampleTime;
+         count++;
+         notifyAll();
+      }
+   }
+   
+   /**
+    * Waits until the last edge is the given one. Returns at once if it
+    * already is, so waiting for the far side of a wall does not hang when
+    * the robot already faces away from it.
+    *
+    * @param edge_ FALLING or RISING.
+    * @param timeout The longest time to wait, in ms, or 0 to wait forever.
+    *
+    * @return True if the last edge is the given one.
+    */
+   public synchronized boolean awaitEdge(int edge_, long timeout) {
+      long end = System.currentTimeMillis() + timeout;
+      
+      while (edge != edge_) {
+         long remaining = end - System.currentTimeMillis();
+         if (timeout > 0 && remaining <= 0)
+            break;
+         
+         try {
+            wait(timeout > 0 ? remaining : 0);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      
+      return edge == edge_;
+   }
+   
+   /**
+    * Forgets the last edge, so the next sample which is clearly near or far
+    * makes one, even if it is on the same side.
+    */
+   public synchronized void reset() {
+      edge = NONE;
+   }
+   
+   /**
+    * Get the last edge.
+    *
+    * @return NONE, FALLING or RISING.
+    */
+   public synchronized int getEdge() {
+      return edge;
+   }
+   
+   /**
+    * Get the time of the sample which made the last edge.
+    *
+    * @return The time it was pinged, as given by System.currentTimeMillis().
+    */
+   public synchronized long getTime() {
+      return time;
+   }
+   
+   /**
+    * Get the robot's heading when the sample which made the last edge was pinged.
+    *
+    * @return The heading, in degrees.
+    */
+   public synchronized double getTheta() {
+      return pose[2];
+   }
+   
+   /**
+    * Get the distance of the sample which made the last edge.
+    *
+    * @return The distance, in cm.
+    */
+   public synchronized int getDistance() {
+      return distance;
+   }
+   
+   /**
+    * Get the number of edges since the subscription was created.
+    *
+    * @return The number of edges.
+    */
+   public synchronized int getCount() {
+      return count;
+   }
+
+}
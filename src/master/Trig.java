@@ -7,6 +7,26 @@ package master;
  */
 public class Trig{
    
+   /** Defines the number of binary angle units in a full revolution. */
+   public static final int FULL_CIRCLE = 1 << 16;
+   /** Defines the number of fractional bits of the fixed-point sine and cosine. */
+   public static final int FIXED_BITS = 14;
+   /** Defines the fixed-point value of 1.0 returned by the table lookups. */
+   public static final int FIXED_ONE = 1 << FIXED_BITS;
+   
+   // Quarter wave sine table, indexed by the top 8 bits of a quadrant angle,
+   // and interpolated with the remaining 6 bits. The last entry is padding so
+   // that the interpolation never reads past the end of the table.
+   private static final int TABLE_BITS = 8;
+   private static final int FRACTION_BITS = 14 - TABLE_BITS;
+   private static final int [] SINE_TABLE = new int [(1 << TABLE_BITS) + 2];
+   
+   static {
+      for (int i = 0; i <= (1 << TABLE_BITS); i++)
+         SINE_TABLE[i] = (int)(Math.sin(i * Math.PI / (2 << TABLE_BITS)) * FIXED_ONE + 0.5);
+      SINE_TABLE[(1 << TABLE_BITS) + 1] = FIXED_ONE;
+   }
+   
    /**
     * Static method that computes the sine of a given angle.
     * 
@@ -40,4 +60,62 @@ public class Trig{
       return (180/Math.PI)*Math.atan(ratio);
    }
    
+   /**
+    * Static method that computes the sine of a binary angle, using only
+    * integer math and a lookup table.
+    * 
+    * @param angle The desired angle, in units of 1/65536 of a revolution.
+    * 
+    * @return The sine of the given angle, scaled by FIXED_ONE.
+    */
+   public static int sinFixed(int angle){
+      int quadrant = (angle >> 14) & 3;
+      int a = angle & 0x3FFF;
+      
+      // mirror the angle in the second and fourth quadrants
+      if ((quadrant & 1) != 0)
+         a = 0x4000 - a;
+      
+      int index = a >> FRACTION_BITS;
+      int fraction = a & ((1 << FRACTION_BITS) - 1);
+      int value = SINE_TABLE[index] +
+            (((SINE_TABLE[index + 1] - SINE_TABLE[index]) * fraction) >> FRACTION_BITS);
+      
+      return (quadrant < 2 ? value : -value);
+   }
+   
+   /**
+    * Static method that computes the cosine of a binary angle, using only
+    * integer math and a lookup table.
+    * 
+    * @param angle The desired angle, in units of 1/65536 of a revolution.
+    * 
+    * @return The cosine of the given angle, scaled by FIXED_ONE.
+    */
+   public static int cosFixed(int angle){
+      return sinFixed(angle + 0x4000);
+   }
+   
+   /**
+    * Static method that converts an angle in DEGREES to a binary angle.
+    * 
+    * @param angle The desired angle in DEGREES.
+    * 
+    * @return The angle in units of 1/65536 of a revolution, between 0 and 65535.
+    */
+   public static int toBinaryAngle(double angle){
+      return (int)Math.floor(angle * FULL_CIRCLE / 360.0 + 0.5) & (FULL_CIRCLE - 1);
+   }
+   
+   /**
+    * Static method that converts a binary angle to DEGREES.
+    * 
+    * @param angle The angle in units of 1/65536 of a revolution.
+    * 
+    * @return The angle in DEGREES, between 0 and 360.
+    */
+   public static double fromBinaryAngle(int angle){
+      return (angle & (FULL_CIRCLE - 1)) * (360.0 / FULL_CIRCLE);
+   }
+   
 }
\ No newline at end of file
@@ -1,6 +1,5 @@
 package master;
 
-import lejos.nxt.Motor;
 import lejos.nxt.NXTRegulatedMotor;
 
 /**
@@ -28,18 +27,83 @@ public class TwoWheeledRobot {
    /** Defines the robot wheelbase used in Navigation calculations, in cm. */
    public static final double NAV_WIDTH = 17.42;
    
-   private NXTRegulatedMotor leftMotor, rightMotor;
-   private double forwardSpeed, rotationSpeed;
+   private CoalescedMotor leftMotor, rightMotor;
+   private volatile double forwardSpeed, rotationSpeed;
+   private Odometer odometer;
+   
+   // Heading hold, applied while driving straight
+   private HeadingController headingController = new HeadingController();
+   private volatile boolean holding;
+   private double heldHeading, correction;
    
    /**
-    * Constructor which defines the robot's basic properties.
+    * Constructor which defines the robot's basic properties. The motors
+    * are commanded through their shared CoalescedMotor layer, and
+    * synchronized, so both wheels start, stop and change speed together.
     * 
     * @param a The left motor of the robot.
     * @param b The right motor of the robot.
     */
    public TwoWheeledRobot(NXTRegulatedMotor a, NXTRegulatedMotor b) {
-      leftMotor = leftMotor;
-      rightMotor = rightMotor;
+      leftMotor = CoalescedMotor.get(a);
+      rightMotor = CoalescedMotor.get(b);
+      CoalescedMotor.synchronize(leftMotor, rightMotor, true);
+   }
+   
+   /**
+    * Selects whether both wheels are commanded as one operation, or one
+    * after the other.
+    * 
+    * @param on True to synchronize the wheels.
+    */
+   public void setSynchronized(boolean on) {
+      CoalescedMotor.synchronize(leftMotor, rightMotor, on);
+   }
+   
+   /**
+    * Sets the odometer tracking this robot, which is told whenever
+    * new speeds are commanded.
+    * 
+    * @param odo The odometer tracking this robot's movement.
+    */
+   void setOdometer(Odometer odo) {
+      odometer = odo;
+   }
+   
+   /**
+    * Get the forward speed last commanded to the robot.
+    * 
+    * @return The commanded forward speed, in cm/s.
+    */
+   public double getForwardSpeed() {
+      return forwardSpeed;
+   }
+   
+   /**
+    * Get the rotation speed last commanded to the robot.
+    * 
+    * @return The commanded rotation speed, in degrees/s.
+    */
+   public double getRotationSpeed() {
+      return rotationSpeed;
+   }
+   
+   /**
+    * Get the command layer of the left motor.
+    * 
+    * @return The left motor.
+    */
+   public CoalescedMotor getLeftMotor() {
+      return leftMotor;
+   }
+   
+   /**
+    * Get the command layer of the right motor.
+    * 
+    * @return The right motor.
+    */
+   public CoalescedMotor getRightMotor() {
+      return rightMotor;
    }
    
    /**
@@ -74,57 +138,142 @@ public class TwoWheeledRobot {
     * @param data The array in which the position and heading are returned.
     */
    public void getDisplacementAndHeading(double [] data) {
-      int leftTacho, rightTacho;
-      leftTacho = leftMotor.getTachoCount();
-      rightTacho = rightMotor.getTachoCount();
-      
+      toDisplacementAndHeading(leftMotor.getTachoCount(), rightMotor.getTachoCount(), data);
+   }
+   
+   /**
+    * Converts a pair of tacho counts to the robot's displacement and heading
+    * relative to its original position.
+    * 
+    * @param leftTacho The left motor tacho count, in degrees.
+    * @param rightTacho The right motor tacho count, in degrees.
+    * @param data The array in which the position and heading are returned.
+    */
+   public static void toDisplacementAndHeading(int leftTacho, int rightTacho, double [] data) {
       data[0] = (leftTacho * ODO_LEFT_RADIUS + rightTacho * ODO_RIGHT_RADIUS) * Math.PI / 360.0;
       data[1] = (leftTacho * ODO_LEFT_RADIUS - rightTacho * ODO_RIGHT_RADIUS) / ODO_WIDTH;
    }
    
+   /**
+    * Reads the raw tachometer counts of both motors, for odometry which
+    * does its own conversion to displacement and heading.
+    * 
+    * @param counts The array in which the left and right tacho counts are returned, in degrees.
+    */
+   public void getTachoCounts(int [] counts) {
+      counts[0] = leftMotor.getTachoCount();
+      counts[1] = rightMotor.getTachoCount();
+   }
+   
    /**
     * Sets both the forward and rotation speeds of the robot.
     * 
     * @param forwardSpeed The desired forward speed of the robot, in cm/s.
     * @param rotationalSpeed The desired rotation speed of the robot, in degrees/s.
     */
-   public void setSpeeds(double forwardSpeed, double rotationalSpeed) {
-      double leftSpeed, rightSpeed;
-      
+   public synchronized void setSpeeds(double forwardSpeed, double rotationalSpeed) {
       this.forwardSpeed = forwardSpeed;
       this.rotationSpeed = rotationalSpeed; 
       
-      leftSpeed = (forwardSpeed + rotationalSpeed * NAV_WIDTH * Math.PI / 360.0) * 180.0 / (NAV_LEFT_RADIUS * Math.PI);
-      rightSpeed = (forwardSpeed - rotationalSpeed * NAV_WIDTH * Math.PI / 360.0) * 180.0 / (NAV_RIGHT_RADIUS * Math.PI);
+      // keep the heading correction while driving straight, but never
+      // turn in place to apply it once stopped
+      if (holding && forwardSpeed != 0.0 && rotationalSpeed == 0.0)
+         drive(forwardSpeed, correction);
+      else
+         drive(forwardSpeed, rotationalSpeed);
       
-      // set motor directions
-      if (leftSpeed > 0.0) {
-         leftMotor.forward();
-      } else {
-         leftMotor.backward();
-         leftSpeed = -leftSpeed;
+      if (odometer != null)
+         odometer.speedsChanged();
+   }
+   
+   /**
+    * Holds the given heading while the robot drives straight: after each
+    * odometer update, the wheel speeds are adjusted by a PID controller
+    * acting on the heading error, for as long as the commanded rotation
+    * speed is zero.
+    * 
+    * @param heading The heading to hold, in degrees.
+    */
+   public synchronized void holdHeading(double heading) {
+      heldHeading = heading;
+      correction = 0.0;
+      headingController.reset();
+      holding = true;
+   }
+   
+   /**
+    * Stops holding the heading, and drives at the commanded speeds again.
+    */
+   public synchronized void releaseHeading() {
+      if (holding) {
+         holding = false;
+         drive(forwardSpeed, rotationSpeed);
       }
+   }
+   
+   /**
+    * Tells whether the robot is holding a heading.
+    * 
+    * @return True if a heading is being held.
+    */
+   public boolean isHoldingHeading() {
+      return holding;
+   }
+   
+   /**
+    * Sets the controller used to hold the heading, to change its gains.
+    * 
+    * @param controller The heading controller to use.
+    */
+   public synchronized void setHeadingController(HeadingController controller) {
+      headingController = controller;
+      headingController.reset();
+   }
+   
+   /**
+    * Called by the odometer after each update. While holding a heading
+    * and driving straight, corrects the wheel speeds.
+    * 
+    * @param theta The robot's orientation, in degrees.
+    * @param time The time of the update, in ms.
+    */
+   void headingUpdate(double theta, long time) {
+      if (!holding)
+         return;
       
-      if (rightSpeed > 0.0) {
-         rightMotor.forward();
-      } else {
-         rightMotor.backward();
-         rightSpeed = -rightSpeed;
+      synchronized (this) {
+         if (holding && forwardSpeed != 0.0 && rotationSpeed == 0.0) {
+            double error = Odometer.minimumAngleFromTo(theta, heldHeading);
+            correction = headingController.update(error, time);
+            drive(forwardSpeed, correction);
+         }
       }
+   }
+   
+   /**
+    * Sets the wheel speeds which make the robot move at the given speeds.
+    * 
+    * @param forwardSpeed The forward speed, in cm/s.
+    * @param rotationalSpeed The rotation speed, in degrees/s.
+    */
+   private void drive(double forwardSpeed, double rotationalSpeed) {
+      double leftSpeed, rightSpeed;
       
-      // set motor speeds
-      if (leftSpeed > 900.0) {
-         leftMotor.setSpeed(900);
-      } else {
-         leftMotor.setSpeed((int)leftSpeed);
-      }
+      leftSpeed = (forwardSpeed + rotationalSpeed * NAV_WIDTH * Math.PI / 360.0) * 180.0 / (NAV_LEFT_RADIUS * Math.PI);
+      rightSpeed = (forwardSpeed - rotationalSpeed * NAV_WIDTH * Math.PI / 360.0) * 180.0 / (NAV_RIGHT_RADIUS * Math.PI);
       
-      if (rightSpeed > 900.0) {
-         rightMotor.setSpeed(900);
-      } else {
-         rightMotor.setSpeed((int)rightSpeed);
-      }
+      // clamp to the motors' top speed; unchanged wheel commands are dropped
+      if (leftSpeed > 900.0)
+         leftSpeed = 900.0;
+      else if (leftSpeed < -900.0)
+         leftSpeed = -900.0;
+      
+      if (rightSpeed > 900.0)
+         rightSpeed = 900.0;
+      else if (rightSpeed < -900.0)
+         rightSpeed = -900.0;
       
+      CoalescedMotor.drive(leftMotor, (int)leftSpeed, rightMotor, (int)rightSpeed);
    }
    
 }
\ No newline at end of file
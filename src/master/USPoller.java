@@ -6,6 +6,18 @@ import lejos.nxt.UltrasonicSensor;
  * Wrapper class for the ultrasonic sensors, which adds a distance
  * filter, and improves the ping/wait routine.
  * 
+ * The sensors are pinged in turn, never together, so neither hears the
+ * other's echoes: each ping waits until the echoes of the other sensor's
+ * last ping have died down, which takes the time of flight to the distance
+ * that sensor measured. Each sensor is read as soon as its measurement is
+ * ready, while the other one pings. Readings which look like the other
+ * sensor's echo are rejected. Every sample is tagged with the time it was pinged, and the
+ * distances are published as a consistent pair.
+ * 
+ * Each sensor's readings then go through a Hampel filter (see MedianFilter),
+ * so single ping spikes do not reach the consumers, which can set a wider
+ * window for a sensor, or keep their own filters for slower decisions.
+ * 
  * 
  * @see BlockFinder
  * @see LCDInfo
@@ -14,6 +26,24 @@ public class USPoller extends Thread {
    
    /** Defines the default maximum value for filtering */
    public static final int DEFAULT_FILTER = 120;
+   /** Index of the low sensor, for the per-sensor getters. */
+   public static final int LOW = 0;
+   /** Index of the high sensor, for the per-sensor getters. */
+   public static final int HIGH = 1;
+   /** Defines the time a sensor takes to have a distance ready after it pings, in ms. */
+   public static final int SENSOR_DELAY = 20;
+   /** Defines the shortest wait between a ping and the other sensor's, in ms. */
+   public static final int MIN_ECHO_WINDOW = 3;
+   /** Defines the longest wait between a ping and the other sensor's, the time of flight to the sensors' 255 cm range, in ms. */
+   public static final int MAX_ECHO_WINDOW = 15;
+   /** Defines the distance beyond the measured one from which echoes may still come back, in cm. */
+   public static final int ECHO_MARGIN = 20;
+   /** Defines how close a reading must be to the other sensor's echo to be rejected as cross-talk, in cm. */
+   public static final int CROSSTALK_TOLERANCE = 3;
+   /** Defines the maximum number of threshold subscriptions. */
+   public static final int MAX_SUBSCRIPTIONS = 8;
+   /** Defines the speed of sound, in cm/ms. */
+   private static final double SOUND_SPEED = 34.3;
    
    /** The robot's high mounted ultrasonic sensor */
    public UltrasonicSensor usHi;
@@ -21,11 +51,36 @@ public class USPoller extends Thread {
    public UltrasonicSensor usLo;
    
    /** The distance stored for the high US sensor */
-   public int distHi;
+   public volatile int distHi;
    /** The distance stored for the low US sensor */
-   public int distLo;
+   public volatile int distLo;
    /** The maximum distance considered before filtering */
    public int filter;
+   /** The time at which the latest stored distance was pinged, in ms */
+   public volatile long sampleTime;
+   
+   private PoseEstimator estimator;
+   // Lock of the filters and statistics, rather than this thread's own monitor
+   private final Object lock = new Object();
+   // Spike filter of each sensor, guarded by the lock
+   private MedianFilter [] spikeFilters = new MedianFilter [2];
+   // Time of the first reading held back by each filter, 0 if none
+   private long [] onset = new long [2];
+   
+   // Threshold subscriptions, guarded by their own lock
+   private ThresholdSubscription [] subscriptions = new ThresholdSubscription [MAX_SUBSCRIPTIONS];
+   private int subscriptionCount;
+   private Object subscriptionLock = new Object();
+   private UpdateSignal updates = new UpdateSignal();
+   
+   // Time each sensor's distance was pinged, guarded by the sequence counter
+   private long timeLo, timeHi;
+   // sequence counter: odd while a sample is being published, even otherwise
+   private volatile int seq;
+   
+   // Per-sensor statistics, guarded by the lock
+   private int [] samples = new int [2], rejected = new int [2];
+   private long statsStart = System.currentTimeMillis();
    
    /**
     * Constructor which defines the sensors to be used, and the distance
@@ -38,9 +93,9 @@ public class USPoller extends Thread {
    public USPoller (UltrasonicSensor usLo_, UltrasonicSensor usHi_, int maxFilter){
       usLo = usLo_;
       usHi = usHi_;
-      usLo.ping();
-      usHi.ping();
       filter = maxFilter;
+      spikeFilters[LOW] = new MedianFilter(MedianFilter.DEFAULT_WINDOW, MedianFilter.DEFAULT_THRESHOLD, filter);
+      spikeFilters[HIGH] = new MedianFilter(MedianFilter.DEFAULT_WINDOW, MedianFilter.DEFAULT_THRESHOLD, filter);
       
       // Start this US polling Thread.
       this.start();
@@ -59,30 +114,224 @@ public class USPoller extends Thread {
    
     /**
     * Continuously polls both ultrasonic sensors, and stores the distance
-    * they measure. First, each sensor pings, then waits for a reasonable 
-    * period for the ping to return. It the reads the distance obtained, 
-    * and filters out any spurious values above the filter by clamping 
-    * all large values down to the filter value.
+    * they measure. The sensors take turns: each one is read once its last
+    * ping is ready, then pings again as soon as the other sensor's echoes
+    * have died down. Readings are filtered by clamping all values above the
+    * filter down to it.
     */
    public void run(){
       
+      UltrasonicSensor [] sensors = {usLo, usHi};
+      long [] pingTime = new long [2];
+      // last reading of each sensor, before clamping, for the echo window
+      int [] last = {255, 255};
+      boolean [] pinged = new boolean [2];
+      int i = LOW;
+      
       while(true){
-         // Ping each sensor
-         usLo.ping();
-         usHi.ping();
+         int j = 1 - i;
+         
+         // Read this sensor, once the distance of its last ping is ready
+         if (pinged[i]) {
+            sleepUntil(pingTime[i] + SENSOR_DELAY);
+            
+            int dist = sensors[i].getDistance();
+            
+            // Reject errors, and readings which match the other sensor's
+            // echo, heard after this sensor pinged
+            int crosstalk = last[j] - (int)((pingTime[i] - pingTime[j]) * SOUND_SPEED / 2.0);
+            if (dist <= 0 || (pinged[j] && Math.abs(dist - crosstalk) <= CROSSTALK_TOLERANCE
+                              && Math.abs(dist - last[i]) > CROSSTALK_TOLERANCE)) {
+               synchronized (lock) {
+                  rejected[i]++;
+               }
+            } else {
+               last[i] = dist;
+               
+               // Clamp all data above the filter, down to the filter
+               publish(i, (dist > filter ? filter : dist), pingTime[i]);
+            }
+         }
          
-         // Sleep a moment while the pings completes.
-         try { Thread.sleep(50); } catch (Exception e) {}
-         distLo = usLo.getDistance();
-         distHi = usHi.getDistance();
+         // Ping it again, once the other sensor's echoes have died down
+         sleepUntil(pingTime[j] + echoWindow(last[j]));
+         pingTime[i] = System.currentTimeMillis();
+         sensors[i].ping();
+         pinged[i] = true;
          
-         // Clamp all data above the filter, down to the filter
-         distLo = (distLo > filter ? filter : distLo);
-         distHi = (distHi > filter ? filter : distHi);
+         i = j;
       }
       
    }
    
+   /**
+    * Filters a sample, stores it, and signals it.
+    * 
+    * @param sensor LOW or HIGH.
+    * @param dist The distance read, clamped to the filter, in cm.
+    * @param time The time the sensor pinged, in ms.
+    */
+   private void publish(int sensor, int dist, long time){
+      long edgeTime = time;
+      
+      synchronized (lock) {
+         int filtered = spikeFilters[sensor].filter(dist);
+         
+         // A real change is held back as an outlier for a few samples: date
+         // its edges from the first of them, when it was first pinged
+         if (filtered != dist) {
+            if (onset[sensor] == 0)
+               onset[sensor] = time;
+         } else {
+            int previous = (sensor == LOW ? distLo : distHi);
+            if (onset[sensor] != 0 && Math.abs(dist - previous) > CROSSTALK_TOLERANCE)
+               edgeTime = onset[sensor];
+            onset[sensor] = 0;
+         }
+         dist = filtered;
+         
+         seq++;
+         if (sensor == LOW) {
+            distLo = dist;
+            timeLo = time;
+         } else {
+            distHi = dist;
+            timeHi = time;
+         }
+         sampleTime = time;
+         samples[sensor]++;
+         seq++;
+      }
+      
+      // Let the estimator range the walls with the high sensor
+      if (sensor == HIGH && estimator != null)
+         estimator.rangeMeasured(dist, filter, time);
+      
+      // Check the subscriptions for edges, before the waiters on the signal wake up
+      synchronized (subscriptionLock) {
+         for (int i = 0; i < subscriptionCount; i++)
+            subscriptions[i].update(distLo, distHi, edgeTime);
+      }
+      
+      updates.fire();
+   }
+   
+   /**
+    * Computes how long after a ping its echoes may still come back: the time
+    * of flight to a bit beyond the distance the sensor measured.
+    * 
+    * @param dist The distance last measured by the sensor, in cm.
+    * 
+    * @return The time to wait before the other sensor pings, in ms.
+    */
+   private static int echoWindow(int dist){
+      int window = (int)Math.ceil(2.0 * (dist + ECHO_MARGIN) / SOUND_SPEED);
+      
+      if (window < MIN_ECHO_WINDOW)
+         return MIN_ECHO_WINDOW;
+      else if (window > MAX_ECHO_WINDOW)
+         return MAX_ECHO_WINDOW;
+      else
+         return window;
+   }
+   
+   /**
+    * Sleeps until the given time.
+    * 
+    * @param time The time to wake up at, as given by System.currentTimeMillis().
+    */
+   private static void sleepUntil(long time){
+      long delay = time - System.currentTimeMillis();
+      if (delay > 0) {
+         try { Thread.sleep(delay); } catch (Exception e) {}
+      }
+   }
+   
+   /**
+    * Set a pose estimator to be given the high sensor's distances, as
+    * wall range measurements.
+    * 
+    * @param estimator_ The estimator to use, or null for none.
+    */
+   public void setEstimator(PoseEstimator estimator_){
+      estimator = estimator_;
+   }
+   
+   /**
+    * Registers a threshold subscription, which is then checked after each
+    * sample of either sensor.
+    * 
+    * @param subscription The subscription to be added.
+    * 
+    * @return False if MAX_SUBSCRIPTIONS subscriptions are already registered.
+    */
+   public boolean subscribe(ThresholdSubscription subscription){
+      synchronized (subscriptionLock) {
+         if (subscriptionCount == MAX_SUBSCRIPTIONS)
+            return false;
+         
+         subscriptions[subscriptionCount++] = subscription;
+         return true;
+      }
+   }
+   
+   /**
+    * Unregisters a threshold subscription.
+    * 
+    * @param subscription The subscription to be removed.
+    */
+   public void unsubscribe(ThresholdSubscription subscription){
+      synchronized (subscriptionLock) {
+         for (int i = 0; i < subscriptionCount; i++) {
+            if (subscriptions[i] == subscription) {
+               subscriptions[i] = subscriptions[--subscriptionCount];
+               subscriptions[subscriptionCount] = null;
+               return;
+            }
+         }
+      }
+   }
+   
+   /**
+    * Sets the spike filter window of a sensor. Wider windows remove longer
+    * bursts of bad readings, but delay real changes by more samples while
+    * they still look like outliers.
+    * 
+    * @param sensor LOW or HIGH.
+    * @param window The number of readings in the window, odd, at most MedianFilter.MAX_WINDOW.
+    * @param threshold The outlier threshold, in standard deviations, or 0 to always use the median.
+    */
+   public void setSpikeFilter(int sensor, int window, double threshold){
+      synchronized (lock) {
+         int dist = (sensor == LOW ? distLo : distHi);
+         spikeFilters[sensor] = new MedianFilter(window, threshold, dist);
+      }
+   }
+   
+   /**
+    * Obtains the number of a sensor's readings replaced by the spike filter,
+    * since its window was last set.
+    * 
+    * @param sensor LOW or HIGH.
+    * 
+    * @return The number of outliers.
+    */
+   public int getOutlierCount(int sensor){
+      synchronized (lock) {
+         return spikeFilters[sensor].getOutliers();
+      }
+   }
+   
+   /**
+    * Get the signal fired after each new pair of distances, so that threads
+    * waiting for a distance condition can block on it instead of polling.
+    * 
+    * @return The poller's update signal.
+    */
+   public UpdateSignal getUpdateSignal(){
+      return updates;
+   }
+   
    /**
     * Obtains the distance measured by the low ultrasonic sensor.
     * 
@@ -101,6 +350,107 @@ public class USPoller extends Thread {
       return distHi;
    }
    
+   /**
+    * Obtains the time at which the latest stored distance was measured.
+    * 
+    * @return The time of the last ping read, as given by System.currentTimeMillis().
+    */
+   public long getSampleTime(){
+      return sampleTime;
+   }
+   
+   /**
+    * Obtains the time at which one sensor's stored distance was measured.
+    * 
+    * @param sensor LOW or HIGH.
+    * 
+    * @return The time of that sensor's last ping read, as given by System.currentTimeMillis().
+    */
+   public long getSampleTime(int sensor){
+      int s;
+      long time;
+      
+      do {
+         s = seq;
+         time = (sensor == LOW ? timeLo : timeHi);
+      } while ((s & 1) != 0 || s != seq);
+      
+      return time;
+   }
+   
+   /**
+    * Obtains both distances, and the times they were measured, as a
+    * consistent pair: no sample is published while they are read.
+    * 
+    * @param dists The array in which the low and high distances are returned, in cm.
+    * @param times The array in which the low and high sample times are returned, in ms.
+    */
+   public void getSamples(int [] dists, long [] times){
+      int s;
+      
+      do {
+         s = seq;
+         dists[LOW] = distLo;
+         dists[HIGH] = distHi;
+         times[LOW] = timeLo;
+         times[HIGH] = timeHi;
+      } while ((s & 1) != 0 || s != seq);
+   }
+   
+   /**
+    * Obtains the rate at which a sensor's samples were published since the
+    * statistics were reset.
+    * 
+    * @param sensor LOW or HIGH.
+    * 
+    * @return The sample rate, in Hz.
+    */
+   public double getSampleRate(int sensor){
+      synchronized (lock) {
+         long elapsed = System.currentTimeMillis() - statsStart;
+         return (elapsed > 0 ? samples[sensor] * 1000.0 / elapsed : 0.0);
+      }
+   }
+   
+   /**
+    * Obtains the number of a sensor's samples published since the
+    * statistics were reset.
+    * 
+    * @param sensor LOW or HIGH.
+    * 
+    * @return The number of samples.
+    */
+   public int getSampleCount(int sensor){
+      synchronized (lock) {
+         return samples[sensor];
+      }
+   }
+   
+   /**
+    * Obtains the number of a sensor's readings rejected, as errors or as
+    * the other sensor's echo, since the statistics were reset.
+    * 
+    * @param sensor LOW or HIGH.
+    * 
+    * @return The number of readings rejected.
+    */
+   public int getRejectedCount(int sensor){
+      synchronized (lock) {
+         return rejected[sensor];
+      }
+   }
+   
+   /**
+    * Resets the sample rate and rejection statistics.
+    */
+   public void resetStats(){
+      synchronized (lock) {
+         samples[LOW] = samples[HIGH] = 0;
+         rejected[LOW] = rejected[HIGH] = 0;
+         statsStart = System.currentTimeMillis();
+      }
+   }
+   
    /**
     * Obtains the difference in distances measured by the high and low sensors.
     * 
@@ -13,11 +13,23 @@ public class UltrasonicDataCollector {
 	// fields
 	private final int WALL_DISTANCE_THRESHOLD = 50;
 	private int rawDistance;
+	private int distance;
+	
+	// median of the last readings, so a single bad ping does not count as an object
+	private final MedianFilter medianFilter;
 
 	// constructor
 	public UltrasonicDataCollector(UltrasonicSensor ultrasonicSensor) {
 		
+		this(ultrasonicSensor, MedianFilter.DEFAULT_WINDOW);
+		
+	}
+	
+	// constructor, with the number of readings the median is taken over
+	public UltrasonicDataCollector(UltrasonicSensor ultrasonicSensor, int window) {
+		
 		this.ultrasonicSensor = ultrasonicSensor;
+		this.medianFilter = new MedianFilter(window, 255);
 		ultrasonicSensor.capture();
 		
 	}
@@ -27,9 +39,10 @@ public class UltrasonicDataCollector {
 		// get current sensor value
 		ultrasonicSensor.ping();
 		rawDistance =  ultrasonicSensor.getDistance();
+		distance = medianFilter.filter(rawDistance);
 		
-		// if the raw value is below wall threshold an object is detected
-		if(rawDistance < WALL_DISTANCE_THRESHOLD) {
+		// if the filtered value is below wall threshold an object is detected
+		if(distance < WALL_DISTANCE_THRESHOLD) {
 			return true;
 		}
 		
@@ -38,6 +51,38 @@ public class UltrasonicDataCollector {
 		
 	}
 	
+	// this method creates a subscription to the edges of the wall threshold, with hysteresis on the far side
+	public ThresholdSubscription subscribe(Odometer odometer, int hysteresis) {
+		return new ThresholdSubscription(odometer, USPoller.LOW, WALL_DISTANCE_THRESHOLD - 1, hysteresis);
+	}
+	
+	// this method pings until the subscription's last edge is the given one, feeding it each
+	// filtered reading with the time it was pinged, so the edge is latched with the heading at the ping;
+	// returns false if the timeout, in ms, elapsed first
+	public boolean awaitEdge(ThresholdSubscription subscription, int edge, long timeout) {
+		
+		long end = System.currentTimeMillis() + timeout;
+		
+		while(subscription.getEdge() != edge) {
+			if(System.currentTimeMillis() >= end) {
+				return false;
+			}
+			long pingTime = System.currentTimeMillis();
+			ultrasonicSensor.ping();
+			rawDistance =  ultrasonicSensor.getDistance();
+			distance = medianFilter.filter(rawDistance);
+			subscription.update(distance, distance, pingTime);
+		}
+		
+		return true;
+		
+	}
+	
+	// this method returns the last filtered distance
+	public int getDistance() {
+		return distance;
+	}
+	
 	
 	
 }
\ No newline at end of file
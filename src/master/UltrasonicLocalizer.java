@@ -15,6 +15,11 @@ public class UltrasonicLocalizer implements TimerListener{
 	// fields
 	public enum LocalizationType {FALLING_EDGE, RISING_EDGE};
 	private final double THETA_CORRECTION_CONSTANT = 18;
+	private final int EDGE_HYSTERESIS = 5;
+	private final int MAX_ATTEMPTS = 3;
+	private final long EDGE_TIMEOUT = 8000;
+	private final long EDGE_SLICE = 100;
+	private int attempts;
 	private boolean usLocalizerComplete;
 	private boolean usLocalizerRunning;
 	private double angleA, angleB, offsetTheta;
@@ -40,42 +45,55 @@ public class UltrasonicLocalizer implements TimerListener{
 		// if localization is incomplete and is not running, begin a new localization procedure
 		if(!getUsLocalizerComplete() && !getUsLocalizerRunning()) {
 			setUsLocalizerRunning(true);
-			doLocalization(UltrasonicLocalizer.LocalizationType.FALLING_EDGE);
+			
+			// run a failed localization again on the next timeout, unless it was aborted or failed too often
+			if(!doLocalization(UltrasonicLocalizer.LocalizationType.FALLING_EDGE) && !motorController.isAborted()
+					&& ++attempts < MAX_ATTEMPTS) {
+				setUsLocalizerRunning(false);
+				return;
+			}
+			attempts = 0;
 			setUsLocalizerComplete(true);			
 		}
 		 
 	}
 	
-	// this method carries out the localization of type given as argument
-	public void doLocalization(LocalizationType localizationType) {
+	// this method carries out the localization of type given as argument,
+	// returns false if a wall edge was not found or the robot could not be turned to a true bearing of zero
+	public boolean doLocalization(LocalizationType localizationType) {
 		 LCD.drawString("Finding Heading", 0, 3);
+		
+		// edges of the wall threshold, latched with the heading at the ping which crossed it
+		ThresholdSubscription wall = ultrasonicDataCollector.subscribe(odometer, EDGE_HYSTERESIS);
 		if(localizationType == LocalizationType.FALLING_EDGE) {
 			
 			// bring robot to complete stop to begin falling edge localization
 			while(!motorController.stop());
 			
 			// first stage is to rotate the robot until no wall is seen	
-			while(ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateCW();
+			motorController.searchRotateCW();
+			if(!awaitEdge(wall, ThresholdSubscription.RISING)) {
+				return false;
 			}
 		
 			// second stage is to keep rotating until a wall is seen	
-			while(!ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateCW();
+			if(!awaitEdge(wall, ThresholdSubscription.FALLING)) {
+				return false;
 			}
-			angleA =odometer.getTheta();
+			angleA = wall.getTheta();
 			
 			// third stage is to rotate the other way until no wall is seen
-			while(ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateACW();
-			}			
+			motorController.searchRotateACW();
+			if(!awaitEdge(wall, ThresholdSubscription.RISING)) {
+				return false;
+			}
 			
 			
 			// fourth stage is to keep rotating until a wall is seen
-			while(!ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateACW();
+			if(!awaitEdge(wall, ThresholdSubscription.FALLING)) {
+				return false;
 			}
-			angleB = odometer.getTheta();
+			angleB = wall.getTheta();
 			
 			// calculate the offset angle to be added to the odometry bearing
 			if(angleA < angleB) {
@@ -90,14 +108,16 @@ public class UltrasonicLocalizer implements TimerListener{
 			
 			// rotate to a true bearing of zero
 		
-			turnTo(0);
+			if(!turnTo(0)) {
+				return false;
+			}
 			
 			
 			// check to see if motors have come to a stop, if so, switch off localizerRunning so that controller knows that the process is complete 
 			while(motorController.isMoving());
 			LCD.clear();
 			 LCD.drawString("theta" + odometer.getTheta(), 0, 3);
-			return;
+			return true;
 			
 			
 		} else {
@@ -106,28 +126,30 @@ public class UltrasonicLocalizer implements TimerListener{
 			while(!motorController.stop());
 			
 			// first stage is to rotate the robot until a wall is seen	
-			while(!ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateACW();
+			motorController.searchRotateACW();
+			if(!awaitEdge(wall, ThresholdSubscription.FALLING)) {
+				return false;
 			}
 		
 
 		
 			// second stage is to keep rotating until no wall is seen	
-			while(ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateACW();
+			if(!awaitEdge(wall, ThresholdSubscription.RISING)) {
+				return false;
 			}
-			angleA =odometer.getTheta();
+			angleA = wall.getTheta();
 			
 			// third stage is to rotate the other way until a wall is seen
-			while(!ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateCW();
-			}			
+			motorController.searchRotateCW();
+			if(!awaitEdge(wall, ThresholdSubscription.FALLING)) {
+				return false;
+			}
 			
 			// fourth stage is to keep rotating until no wall is seen
-			while(ultrasonicDataCollector.proximityDetector()) {
-				motorController.searchRotateCW();
+			if(!awaitEdge(wall, ThresholdSubscription.RISING)) {
+				return false;
 			}
-			angleB = odometer.getTheta();
+			angleB = wall.getTheta();
 			
 			// calculate the offset angle to be added to the odometry bearing
 			if(angleA < angleB) {
@@ -142,16 +164,35 @@ public class UltrasonicLocalizer implements TimerListener{
 			
 			// rotate to a true bearing of zero
 	
-			turnTo(0);
+			if(!turnTo(0)) {
+				return false;
+			}
 			
 			// check to see if motors have come to a stop, if so, switch off localizerRunning so that controller knows that the process is complete 
 			while(motorController.isMoving());
-			return;		
+			return true;		
 			
 		}
 
 	}
 
+	// this method waits for an edge of the wall threshold, a slice at a time so that an abort is noticed,
+	// returns false if aborted or no edge was seen within a full turn, in which case the wheels are stopped
+	private boolean awaitEdge(ThresholdSubscription wall, int edge) {
+		
+		long end = System.currentTimeMillis() + EDGE_TIMEOUT;
+		
+		while(!ultrasonicDataCollector.awaitEdge(wall, edge, EDGE_SLICE)) {
+			if(motorController.isAborted() || System.currentTimeMillis() >= end) {
+				motorController.stop();
+				return false;
+			}
+		}
+		
+		return true;
+		
+	}
+	
 	// this method returns the value of uslocalizerComplete
 	public boolean getUsLocalizerComplete() {
 		
@@ -196,21 +237,22 @@ public class UltrasonicLocalizer implements TimerListener{
 		}
 	}
 	
-	// this method rotates the robot to the desired true bearing
-	public void turnTo(double theta) {
+	// this method rotates the robot to the desired true bearing,
+	// returns false if the rotation was aborted or late, in which case the wheels are stopped
+	public boolean turnTo(double theta) {
 		
 		double rotation = theta - odometer.getTheta();
 		
-		// make a minimal rotation
+		// make a minimal rotation; rotate() returns false if aborted or late, and must not be retried
 		if (rotation > 180) {
-			while(!motorController.rotate(rotation - 360));
+			return motorController.rotate(rotation - 360);
 		}
 		
 		else if (rotation < -180) {
-			while(!motorController.rotate(rotation + 360));
+			return motorController.rotate(rotation + 360);
 		}
 		
-		else while(!motorController.rotate(rotation));
+		else return motorController.rotate(rotation);
 		
 	}
 
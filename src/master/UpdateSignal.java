@@ -0,0 +1,113 @@
+package master;
+
+/**
+ * Signal fired by a thread each time it publishes new data, such as the
+ * Odometer after each update, or the USPoller after each ping. Threads
+ * waiting for a condition on that data block on the signal, and check the
+ * condition again after each update, instead of spinning on the getters.
+ *
+ * Each update increments a generation counter, so a waiter never misses an
+ * update which occured between two checks of its condition.
+ *
+ *
+ * @see Odometer
+ * @see USPoller
+ */
+public class UpdateSignal {
+   
+   /**
+    * Defines the longest time a waiter blocks without an update, in ms,
+    * after which it checks its condition anyway, in case the updating
+    * thread was stopped.
+    */
+   public static final long MAX_WAIT = 100;
+   
+   /** Condition on the signalled data, checked after each update. */
+   public interface Condition {
+      
+      /**
+       * Checks the condition.
+       *
+       * @return True if the waiter should stop waiting.
+       */
+      boolean test();
+   }
+   
+   private volatile int generation;
+   private volatile int waiters;
+   
+   /**
+    * Signals an update. Called by the updating thread, after the new data
+    * has been published. Does not take the signal's monitor when nobody
+    * is waiting.
+    */
+   public void fire() {
+      generation++;
+      
+      if (waiters > 0) {
+         synchronized (this) {
+            notifyAll();
+         }
+      }
+   }
+   
+   /**
+    * Get the number of updates signalled so far.
+    *
+    * @return The current generation.
+    */
+   public int getGeneration() {
+      return generation;
+   }
+   
+   /**
+    * Waits for an update after the given generation, or until the timeout
+    * elapses. Returns immediately if an update has already occured since.
+    *
+    * @param seen The last generation seen by the caller.
+    * @param timeout The longest time to wait, in ms.
+    *
+    * @return The current generation, which should be passed in the next call.
+    */
+   public synchronized int awaitNext(int seen, long timeout) {
+      long end = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      
+      waiters++;
+      while (generation == seen && remaining > 0) {
+         try {
+            wait(remaining);
+         } catch (InterruptedException e) {
+            break;
+         }
+         remaining = end - System.currentTimeMillis();
+      }
+      waiters--;
+      
+      return generation;
+   }
+   
+   /**
+    * Waits until the given condition is true, checking it once per update.
+    *
+    * @param condition The condition to wait for.
+    * @param timeout The longest time to wait, in ms, or 0 to wait forever.
+    *
+    * @return True if the condition is true, false if the timeout elapsed first.
+    */
+   public boolean awaitUntil(Condition condition, long timeout) {
+      long end = System.currentTimeMillis() + timeout;
+      int gen = generation;
+      
+      while (!condition.test()) {
+         long remaining = (timeout > 0 ? end - System.currentTimeMillis() : MAX_WAIT);
+         if (remaining <= 0)
+            return false;
+         
+         gen = awaitNext(gen, Math.min(remaining, MAX_WAIT));
+      }
+      
+      return true;
+   }
+
+}
@@ -0,0 +1,198 @@
+package master;
+
+import lejos.nxt.Button;
+import lejos.nxt.Motor;
+
+/**
+ * Benchmark of a thread waiting for the odometer to reach a position,
+ * spinning on its getters against blocking on its UpdateSignal. Runs
+ * anywhere: the motion is simulated, and fed to the odometer through
+ * Odometer.integrate(), so the motors never turn.
+ *
+ * A ticker thread updates the odometer every PERIOD ms, as if the robot
+ * drove North at SPEED, while the calling thread waits for it to pass
+ * TARGET. A background thread counts as fast as it can all along,
+ * standing for the rest of the robot's work: the more the waiter takes,
+ * the less it counts. For each way of waiting, the number of times the
+ * waiter checked the position, how long after the crossing update it
+ * noticed, the ticker's worst lateness and the background count per ms
+ * are printed.
+ *
+ * Press escape to leave once the results are shown.
+ *
+ *
+ * @see UpdateSignal
+ * @see Odometer
+ */
+public class UpdateSignalBenchmark {
+   
+   /** Defines the simulated odometer's period, in ms. */
+   public static final int PERIOD = 25;
+   /** Defines the simulated forward speed, in cm/s. */
+   public static final double SPEED = 10.0;
+   /** Defines the y coordinate the waiter waits for, in cm. */
+   public static final double TARGET = 20.0;
+   
+   /**
+    * Runs the benchmark spinning then blocking, twice, and prints its results.
+    *
+    * @param args Unused.
+    */
+   public static void main(String [] args) {
+      TwoWheeledRobot robot = new TwoWheeledRobot(Motor.A, Motor.B);
+      double [] result = new double [4];
+      
+      for (int i = 0; i < 4; i++) {
+         boolean spin = (i % 2 == 0);
+         measure(robot, spin, result);
+         
+         System.out.println(spin ? "spin" : "wait");
+         System.out.println(" checks " + (long)result[0]);
+         System.out.println(" exit " + (long)result[1] + "us");
+         System.out.println(" late " + (float)result[2] + " ms");
+         System.out.println(" spare " + (long)result[3] + "/ms");
+      }
+      
+      while (Button.readButtons() != Button.ID_ESCAPE);
+   }
+   
+   /**
+    * Waits once for a simulated odometer to pass TARGET.
+    *
+    * @param robot The robot to give the odometer, whose motors are not used.
+    * @param spin True to spin on the odometer's getters, false to block on its signal.
+    * @param result The array in which the number of position checks, the
+    * time from the crossing update to the waiter's exit, in us, the ticker's
+    * worst lateness, in ms, and the background thread's count per ms are
+    * returned.
+    */
+   public static void measure(TwoWheeledRobot robot, boolean spin, double [] result) {
+      Odometer odo = new Odometer(robot, PERIOD, false);
+      Ticker ticker = new Ticker(odo);
+      Counter counter = new Counter();
+      double [] pos = new double [3];
+      long checks = 0;
+      
+      odo.integrate(0.0, 0.0, System.currentTimeMillis());
+      counter.start();
+      ticker.start();
+      long start = System.currentTimeMillis();
+      
+      if (spin) {
+         while (pos[1] < TARGET) {
+            odo.getPosition(pos);
+            checks++;
+         }
+      } else {
+         UpdateSignal updates = odo.getUpdateSignal();
+         int gen = updates.getGeneration();
+         while (pos[1] < TARGET) {
+            gen = updates.awaitNext(gen, UpdateSignal.MAX_WAIT);
+            odo.getPosition(pos);
+            checks++;
+         }
+      }
+      
+      long exit = System.nanoTime();
+      long elapsed = System.currentTimeMillis() - start;
+      ticker.finish();
+      counter.finish();
+      
+      result[0] = checks;
+      result[1] = (exit - ticker.crossTime) / 1000;
+      result[2] = ticker.maxLate / 1000000.0;
+      result[3] = counter.count / Math.max(1, elapsed);
+   }
+   
+   /**
+    * Thread updating the odometer every PERIOD ms, and noting when the
+    * odometer passed TARGET and how late its updates were.
+    */
+   private static class Ticker extends Thread {
+      
+      private final Odometer odo;
+      private volatile boolean running = true;
+      volatile long crossTime, maxLate;
+      
+      /**
+       * Creates a new ticker.
+       *
+       * @param odo The odometer to update.
+       */
+      Ticker(Odometer odo) {
+         this.odo = odo;
+         setDaemon(true);
+      }
+      
+      public void run() {
+         long next = System.nanoTime();
+         
+         while (running) {
+            long late = System.nanoTime() - next;
+            if (late > maxLate)
+               maxLate = late;
+            
+            // stamped before the update, since it wakes the waiter
+            long now = System.nanoTime();
+            odo.integrate(SPEED * PERIOD / 1000.0, 0.0, System.currentTimeMillis());
+            if (crossTime == 0 && odo.getY() >= TARGET)
+               crossTime = now;
+            
+            next += PERIOD * 1000000L;
+            long sleep = (next - System.nanoTime()) / 1000000;
+            if (sleep > 0) {
+               try {
+                  Thread.sleep(sleep);
+               } catch (InterruptedException e) {}
+            }
+         }
+      }
+      
+      /**
+       * Stops the ticker, and waits for it to end.
+       */
+      void finish() {
+         running = false;
+         try {
+            join();
+         } catch (InterruptedException e) {}
+      }
+   }
+   
+   /**
+    * Thread counting as fast as it can, until it is stopped.
+    */
+   private static class Counter extends Thread {
+      
+      private volatile boolean running = true;
+      volatile long count;
+      
+      /**
+       * Creates a new counter.
+       */
+      Counter() {
+         setDaemon(true);
+      }
+      
+      public void run() {
+         long n = 0;
+         while (running) {
+            n++;
+            if ((n & 0xFF) == 0)
+               count = n;
+         }
+         count = n;
+      }
+      
+      /**
+       * Stops the counter, and waits for it to end.
+       */
+      void finish() {
+         running = false;
+         try {
+            join();
+         } catch (InterruptedException e) {}
+      }
+   }
+
+}
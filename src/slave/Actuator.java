@@ -0,0 +1,101 @@
+package slave;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import lejos.nxt.Button;
+import lejos.nxt.NXTRegulatedMotor;
+
+public class Actuator {
+	final static int ABORT=11; // command code sent by the master brick to abort a move
+	final static int NONE=-1; // no command code pending
+	final static int TICK=20;
+	
+	static DataInputStream input; // stream from the master brick, set by NXTSlave
+	static int pending=NONE; // command code read during a move which was not an abort
+	static volatile boolean aborted=false;
+	
+	/**
+	 * run:
+	 * 
+	 * Parameters: motor to run, speed, direction, longest time to run in ms
+	 * Output: true if the move completed, false if it was aborted
+	 * Purpose: runs the motor until the time elapses or it stalls at the end of
+	 *          its travel, checking every tick for an abort from the master brick
+	 *          or the escape button, instead of sleeping for the whole time
+	 * 
+	 */
+	public static boolean run(NXTRegulatedMotor motor, int speed, boolean forward, int time){
+		
+		long deadline=System.currentTimeMillis()+time;
+		aborted=false;
+		
+		motor.setSpeed(speed);
+		if(forward)
+			motor.forward();
+		else
+			motor.backward();
+		
+		while(System.currentTimeMillis()<deadline && !motor.isStalled()){
+			if(abortRequested()){
+				motor.stop();
+				aborted=true;
+				return false;
+			}
+			
+			try{Thread.sleep(TICK);}catch(Exception e){}
+		}
+		
+		motor.setSpeed(0);
+		return true;
+	}
+	
+	
+	/**
+	 * abortRequested:
+	 * 
+	 * Parameters: none
+	 * Output: true if the current move must stop
+	 * Purpose: checks the escape button, and reads an abort code from the
+	 *          master brick if one arrived during the move. Any other code
+	 *          is kept for readCode(), rather than lost
+	 * 
+	 */
+	static boolean abortRequested(){
+		
+		if((Button.readButtons() & Button.ID_ESCAPE)!=0)
+			return true;
+		
+		try{
+			if(input!=null && pending==NONE && input.available()>=4){
+				int code=input.readInt();
+				if(code==ABORT)
+					return true;
+				pending=code;
+			}
+		}catch(Exception e){}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * readCode:
+	 * 
+	 * Parameters: stream from the master brick
+	 * Output: the next command code
+	 * Purpose: returns the code read during the last move if there is one,
+	 *          or else waits for the next one on the stream
+	 * 
+	 */
+	static int readCode(DataInputStream in) throws IOException{
+		
+		if(pending!=NONE){
+			int code=pending;
+			pending=NONE;
+			return code;
+		}
+		
+		return in.readInt();
+	}
+}
@@ -2,23 +2,19 @@ package slave;
 
 public class Arm {
 	final static int ARMSPEED=50;
-    final static int RAISETIME=5400;
+    final static int RAISETIME=5400; // longest time to raise or lower, the arm stops early when it stalls
     
     /**
      * lower:
      * 
      * Parameters: none
-     * Output: none
+     * Output: true if lowered, false if aborted
      * Purpose: lowers claw in order to collect the ball
      * 
      */
-    public static void lower(){
+    public static boolean lower(){
     	
-    	NXTSlave.clawArm.setSpeed(ARMSPEED);
-    	NXTSlave.clawArm.forward();
-	    
-	    try{Thread.sleep(RAISETIME);}catch(Exception e){}
-	    NXTSlave.clawArm.setSpeed(0);
+    	return Actuator.run(NXTSlave.clawArm, ARMSPEED, true, RAISETIME);
     }
     
     
@@ -26,16 +22,12 @@ public class Arm {
      * raise:
      * 
      * Parameters: none
-     * Output: none
+     * Output: true if raised, false if aborted
      * Purpose: raises claw and puts balls in basket; default position
      * 
      */
-    public static void raise(){
+    public static boolean raise(){
     	
-    	NXTSlave.clawArm.setSpeed(ARMSPEED);
-    	NXTSlave.clawArm.backward();
-	    
-	    try{Thread.sleep(RAISETIME);}catch(Exception e){}
-	    NXTSlave.clawArm.setSpeed(0);
+    	return Actuator.run(NXTSlave.clawArm, ARMSPEED, false, RAISETIME);
     }
 }
@@ -3,25 +3,20 @@ package slave;
 
 public class Claw {
 	final static int CLAWSPEED=60; //if motor claw is set to forward, it closes the claw
-    final static int CLOSETIME=9167;
+    final static int CLOSETIME=9167; // longest time to open or close, the claw stops early when it stalls
 	
 	/**
 	 * open:
 	 * 
 	 * Parameters: none
-	 * Output: none
+	 * Output: true if opened, false if aborted
 	 * Purpose: opens claw
 	 * 
 	 */
-	public static void open(){
+	public static boolean open(){
 		
 	    // open the claw to release the ball
-	    NXTSlave.claw.setSpeed(CLAWSPEED);
-	    NXTSlave.claw.forward();
-	    
-	    try{Thread.sleep(CLOSETIME);}catch(Exception e){}
-	    
-	    NXTSlave.claw.setSpeed(0);
+	    return Actuator.run(NXTSlave.claw, CLAWSPEED, true, CLOSETIME);
 		
 	}
 	
@@ -30,18 +25,13 @@ public class Claw {
 	 * close:
 	 * 
 	 * Parameters: none
-	 * Output: none
+	 * Output: true if closed, false if aborted
 	 * Purpose: closes claw and collects ball
 	 */
-	public static void close()
+	public static boolean close()
 	{
 		// close the claw
-		NXTSlave.claw.setSpeed(CLAWSPEED);
-		NXTSlave.claw.backward();
-		
-	    try{Thread.sleep(CLOSETIME);}catch(Exception e){}
-	    
-	    NXTSlave.claw.setSpeed(0);
+		return Actuator.run(NXTSlave.claw, CLAWSPEED, false, CLOSETIME);
 	}
 	
 }
@@ -43,22 +43,29 @@ public class NXTSlave
 			// data input and output streams 
 			DataInputStream input = connection.openDataInputStream();
 			DataOutputStream output = connection.openDataOutputStream();
+			Actuator.input = input; // read abort codes during moves
+			Actuator.pending = Actuator.NONE;
 			
 			while(true){ // wait for master brick
 				
 				try{
-					code = input.readInt();
+					code = Actuator.readCode(input);
+					
+					// abort with no move running, nothing to stop
+					if(code == Actuator.ABORT){
+						continue;
+					}
 					
 					// open claw
 					if(code == 1){
 						LCD.clear();
 						LCD.drawString("Openinc claw...", 0, 0);
 						
-						Claw.open();
+						boolean done = Claw.open();
 						
 						// claw opened successful
 						try {
-							output.writeBoolean(true);
+							output.writeBoolean(done);
 							output.flush();
 
 							LCD.clear();
@@ -72,11 +79,11 @@ public class NXTSlave
 						LCD.clear();
 						LCD.drawString("close claw...", 0, 0);
 						
-						Claw.close();
+						boolean done = Claw.close();
 						
 						// claw closed successful
 						try {
-							output.writeBoolean(true);
+							output.writeBoolean(done);
 							output.flush();
 
 							LCD.clear();
@@ -91,11 +98,11 @@ public class NXTSlave
 						LCD.clear();
 						LCD.drawString("close claw...", 0, 0);
 						
-						Arm.lower();
+						boolean done = Arm.lower();
 						
 						// Claw Arm lowered successful
 						try {
-							output.writeBoolean(true);
+							output.writeBoolean(done);
 							output.flush();
 
 							LCD.clear();
@@ -108,11 +115,11 @@ public class NXTSlave
 						LCD.clear();
 						LCD.drawString("raise arm...", 0, 0);
 						
-						Arm.raise();
+						boolean done = Arm.raise();
 						
 						// Claw Arm raised successful
 						try {
-							output.writeBoolean(true);
+							output.writeBoolean(done);
 							output.flush();
 
 							LCD.clear();